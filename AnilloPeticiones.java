@@ -0,0 +1,173 @@
+package cc.blockchain;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jcsp.lang.AltingChannelInput;
+import org.jcsp.lang.Any2OneChannel;
+import org.jcsp.lang.Channel;
+import org.jcsp.lang.SharedChannelOutput;
+import org.jcsp.util.OverWriteOldestBuffer;
+
+/**
+ * Anillo de peticiones con varios productores y un único consumidor, al
+ * estilo de Disruptor. Las posiciones se reservan una sola vez; cada
+ * productor reclama la siguiente secuencia con un incremento atómico, guarda
+ * su petición y marca la posición como publicada con el número de vuelta de
+ * la secuencia. El consumidor recorre las posiciones publicadas en orden, en
+ * lotes, y solo anuncia hasta dónde ha consumido al terminar cada lote.
+ *
+ * Cuando el consumidor va a esperar lo anuncia, y el productor que publica
+ * mientras tanto toca un timbre: un canal de JCSP con buffer de una posición
+ * que sobrescribe, de modo que el consumidor puede esperar el timbre en la
+ * misma selección que el resto de sus canales y tocarlo nunca bloquea. Si el
+ * anillo está lleno, los productores esperan a que el consumidor libere
+ * posiciones.
+ */
+class AnilloPeticiones {
+
+	// Intentos de un productor con el anillo lleno antes de ceder el procesador
+	private static final int GIROS = 64;
+
+	private final Object[] entradas;
+	private final AtomicIntegerArray vueltas;
+	private final int mascara;
+	private final int bitsVuelta;
+
+	// Secuencias de productores y consumidor, en objetos separados y con
+	// relleno para que no compartan línea de caché
+	private final Secuencia reclamada = new Secuencia(-1);
+	private final Secuencia consumida = new Secuencia(-1);
+
+	// Solo el consumidor: siguiente secuencia a leer
+	private long siguiente;
+
+	private volatile boolean esperando;
+	private final Any2OneChannel timbre = Channel.any2one(new OverWriteOldestBuffer(1));
+	// JCSP crea un extremo nuevo en cada llamada a in() u out()
+	private final SharedChannelOutput timbreSalida = timbre.out();
+	private final AltingChannelInput timbreEntrada = timbre.in();
+
+	/**
+	 * Secuencia con relleno tras su valor.
+	 */
+	@SuppressWarnings("unused")
+	private static class Secuencia extends AtomicLong {
+		private static final long serialVersionUID = 1L;
+		long r1, r2, r3, r4, r5, r6, r7;
+
+		Secuencia(long inicial) {
+			super(inicial);
+		}
+	}
+
+	/**
+	 * Constructor de un anillo vacío.
+	 *
+	 * @param capacidad Número de posiciones, que se redondea a la siguiente
+	 *                  potencia de dos
+	 */
+	AnilloPeticiones(int capacidad) {
+		int tamano = capacidad <= 2 ? 2 : Integer.highestOneBit(capacidad - 1) << 1;
+		this.entradas = new Object[tamano];
+		this.vueltas = new AtomicIntegerArray(tamano);
+		for (int i = 0; i < tamano; i++) {
+			vueltas.set(i, -1);
+		}
+		this.mascara = tamano - 1;
+		this.bitsVuelta = Integer.numberOfTrailingZeros(tamano);
+	}
+
+	/**
+	 * Publica una petición. Espera si el anillo está lleno.
+	 *
+	 * @param peticion Petición a publicar
+	 */
+	void publicar(Object peticion) {
+		long secuencia = reclamada.incrementAndGet();
+		int giros = 0;
+		while (secuencia - entradas.length > consumida.get()) {
+			if (++giros < GIROS) {
+				Thread.onSpinWait();
+			} else {
+				LockSupport.parkNanos(1000);
+			}
+		}
+		int posicion = (int) secuencia & mascara;
+		entradas[posicion] = peticion;
+		// Escritura volátil: ordena la publicación antes de leer si el
+		// consumidor espera, y así el timbre no puede perderse
+		vueltas.set(posicion, (int) (secuencia >>> bitsVuelta));
+		if (esperando) {
+			esperando = false;
+			timbreSalida.write(Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Comprueba si la siguiente posición ya está publicada. Solo lo llama el
+	 * consumidor.
+	 *
+	 * @return true si hay alguna petición que leer
+	 */
+	boolean hayPeticiones() {
+		return vueltas.get((int) siguiente & mascara) == (int) (siguiente >>> bitsVuelta);
+	}
+
+	/**
+	 * Toma la siguiente petición publicada. La posición no se devuelve a los
+	 * productores hasta {@link #liberar()}.
+	 *
+	 * @return Petición, o null si no hay ninguna publicada
+	 */
+	Object tomar() {
+		if (!hayPeticiones()) {
+			return null;
+		}
+		int posicion = (int) siguiente & mascara;
+		Object peticion = entradas[posicion];
+		entradas[posicion] = null;
+		siguiente++;
+		return peticion;
+	}
+
+	/**
+	 * Devuelve a los productores las posiciones consumidas en el último lote.
+	 */
+	void liberar() {
+		consumida.lazySet(siguiente - 1);
+	}
+
+	/**
+	 * Anuncia que el consumidor va a esperar en su selección. Si ya hay
+	 * peticiones publicadas, retira el anuncio.
+	 *
+	 * @return true si hay peticiones y el consumidor no debe esperar
+	 */
+	boolean prepararEspera() {
+		esperando = true;
+		if (hayPeticiones()) {
+			esperando = false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Retira el anuncio de espera del consumidor.
+	 */
+	void terminarEspera() {
+		esperando = false;
+	}
+
+	/**
+	 * Devuelve el canal del timbre, que el consumidor incluye en su selección
+	 * y lee cuando lo despierta.
+	 *
+	 * @return Entrada del timbre
+	 */
+	AltingChannelInput timbre() {
+		return timbreEntrada;
+	}
+}
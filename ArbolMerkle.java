@@ -0,0 +1,164 @@
+package cc.blockchain;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Niveles superiores del árbol de Merkle de un bloque. Las hojas se agrupan en
+ * subárboles alineados de 2^{@value #BITS_SUBARBOL} hojas; el árbol guarda
+ * solo las raíces de los subárboles y los niveles por encima de ellas. Una
+ * prueba de inclusión recalcula el subárbol de la hoja y toma el resto del
+ * camino de los niveles guardados, así que su coste no depende del tamaño del
+ * bloque.
+ *
+ * Las raíces de los subárboles se calculan en paralelo con fork-join. Una vez
+ * construido, el árbol no cambia y puede usarse desde cualquier hilo.
+ */
+class ArbolMerkle {
+
+	static final int BITS_SUBARBOL = 4;
+
+	// Subárboles que calcula cada tarea sin dividirse más
+	private static final int UMBRAL = 8;
+
+	private final Bloque bloque;
+
+	// superiores[0] son las raíces de los subárboles; el último nivel es la raíz
+	private final byte[][][] superiores;
+
+	/**
+	 * Calcula los niveles superiores del árbol de un bloque.
+	 *
+	 * @param bloque Bloque sellado
+	 */
+	ArbolMerkle(Bloque bloque) {
+		this.bloque = bloque;
+		int ancho = ((bloque.numTransacciones - 1) >>> BITS_SUBARBOL) + 1;
+		byte[][] raices = new byte[ancho][];
+		ForkJoinPool.commonPool().invoke(new Subarboles(raices, 0, ancho));
+		int niveles = 1;
+		for (int w = ancho; w > 1; w = (w + 1) / 2) {
+			niveles++;
+		}
+		this.superiores = new byte[niveles][][];
+		superiores[0] = raices;
+		for (int l = 1; l < niveles; l++) {
+			superiores[l] = subir(superiores[l - 1], superiores[l - 1].length);
+		}
+	}
+
+	/**
+	 * Devuelve la raíz del árbol.
+	 *
+	 * @return Raíz de Merkle del bloque
+	 */
+	byte[] raiz() {
+		return superiores[superiores.length - 1][0];
+	}
+
+	/**
+	 * Construye la prueba de inclusión de una transferencia del bloque.
+	 *
+	 * @param posicion Posición de la transferencia en el bloque
+	 * @return Prueba de inclusión
+	 */
+	PruebaInclusion prueba(int posicion) {
+		byte[][] hermanos = new byte[BITS_SUBARBOL + superiores.length][];
+		boolean[] izquierdos = new boolean[hermanos.length];
+		int numHermanos = 0;
+
+		// Camino dentro del subárbol de la hoja
+		int inicio = posicion >>> BITS_SUBARBOL << BITS_SUBARBOL;
+		int ancho = Math.min(1 << BITS_SUBARBOL, bloque.numTransacciones - inicio);
+		byte[][] nivel = hojas(inicio, ancho);
+		int indice = posicion - inicio;
+		while (ancho > 1) {
+			if ((indice ^ 1) < ancho) {
+				hermanos[numHermanos] = nivel[indice ^ 1];
+				izquierdos[numHermanos++] = (indice & 1) == 1;
+			}
+			nivel = subir(nivel, ancho);
+			ancho = nivel.length;
+			indice >>>= 1;
+		}
+
+		// Camino por los niveles guardados
+		indice = posicion >>> BITS_SUBARBOL;
+		for (int l = 0; l < superiores.length - 1; l++) {
+			if ((indice ^ 1) < superiores[l].length) {
+				hermanos[numHermanos] = superiores[l][indice ^ 1];
+				izquierdos[numHermanos++] = (indice & 1) == 1;
+			}
+			indice >>>= 1;
+		}
+		return new PruebaInclusion(bloque.primeraTransaccion + posicion, bloque.origenes[posicion],
+				bloque.destinos[posicion], bloque.valores[posicion], bloque.altura, hermanos, izquierdos, numHermanos,
+				raiz());
+	}
+
+	/**
+	 * Calcula los hashes de un rango de hojas del bloque.
+	 *
+	 * @param inicio Posición de la primera hoja
+	 * @param ancho  Número de hojas
+	 * @return Hashes de las hojas
+	 */
+	private byte[][] hojas(int inicio, int ancho) {
+		byte[][] nivel = new byte[ancho][];
+		for (int i = 0; i < ancho; i++) {
+			nivel[i] = bloque.hashHoja(inicio + i);
+		}
+		return nivel;
+	}
+
+	/**
+	 * Calcula un nivel del árbol a partir del anterior. Un nodo sin pareja sube
+	 * sin cambios.
+	 *
+	 * @param nivel Nivel de partida
+	 * @param ancho Número de nodos del nivel de partida
+	 * @return Nivel siguiente
+	 */
+	static byte[][] subir(byte[][] nivel, int ancho) {
+		byte[][] siguiente = new byte[(ancho + 1) / 2][];
+		for (int i = 0; i < siguiente.length; i++) {
+			siguiente[i] = 2 * i + 1 < ancho ? Bloque.hashNodo(nivel[2 * i], nivel[2 * i + 1]) : nivel[2 * i];
+		}
+		return siguiente;
+	}
+
+	/**
+	 * Tarea que calcula las raíces de un rango de subárboles.
+	 */
+	private class Subarboles extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final byte[][] raices;
+		private final int desde;
+		private final int hasta;
+
+		Subarboles(byte[][] raices, int desde, int hasta) {
+			this.raices = raices;
+			this.desde = desde;
+			this.hasta = hasta;
+		}
+
+		@Override
+		protected void compute() {
+			if (hasta - desde <= UMBRAL) {
+				for (int s = desde; s < hasta; s++) {
+					int inicio = s << BITS_SUBARBOL;
+					int ancho = Math.min(1 << BITS_SUBARBOL, bloque.numTransacciones - inicio);
+					byte[][] nivel = hojas(inicio, ancho);
+					while (nivel.length > 1) {
+						nivel = subir(nivel, nivel.length);
+					}
+					raices[s] = nivel[0];
+				}
+				return;
+			}
+			int medio = (desde + hasta) >>> 1;
+			invokeAll(new Subarboles(raices, desde, medio), new Subarboles(raices, medio, hasta));
+		}
+	}
+}
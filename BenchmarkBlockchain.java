@@ -0,0 +1,350 @@
+package cc.blockchain;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jcsp.lang.Channel;
+
+/**
+ * Banco de pruebas de rendimiento de las operaciones de {@link Blockchain}.
+ * Mide el rendimiento y los percentiles de latencia de una operación con un
+ * número configurable de hilos, de cuentas, de sesgo en la elección de
+ * cuentas (distribución Zipf: 0 es uniforme, valores próximos a 1 concentran
+ * el tráfico en unas pocas cuentas calientes) y de transferencias bloqueadas
+ * en el servidor durante la medición.
+ *
+ * Uso: java cc.blockchain.BenchmarkBlockchain [clave=valor ...]
+ *
+ * Claves (valor por defecto entre paréntesis): operacion (transferir), una de
+ * crear, disponible, transferir, alertarMax o mixta (consultas de saldo y
+ * transferencias); motor (csp), una de csp, directa, particionada, cerrojos
+ * (con cerrojos por cuenta en lugar de un proceso servidor), atomica (con
+ * saldos atómicos y sin cerrojos en las operaciones que no esperan), registro
+ * (con registro de escritura en un fichero temporal), traza (anotando la
+ * traza de peticiones en un fichero temporal), equitativa, ponderada,
+ * prioridad o vaciado (con la política de selección del servidor de ese
+ * nombre y medida de esperas en cola), rafaga (con ráfagas de hasta 256
+ * peticiones), metricas (con las métricas del servidor, que se imprimen al
+ * terminar), anillo (con las peticiones en un anillo de 1024 posiciones en
+ * lugar de en canales) o buffer (con canales de 1024 posiciones que bloquean
+ * al llenarse, y sus métricas); hilos (1); cuentas (10000); zipf (0);
+ * pendientes (0); lecturas (90), porcentaje de consultas de la operación
+ * mixta; calentamiento (2) y duracion (5), en segundos.
+ *
+ * Escribe una línea legible y otra separada por tabuladores para poder
+ * comparar versiones. Las cifras de los motores CSP dependen de la
+ * implementación de JCSP, así que antes de medir escribe en la salida de
+ * errores de qué fichero se ha cargado la biblioteca.
+ */
+public class BenchmarkBlockchain {
+
+	private static final int SALDO_INICIAL = 100000000;
+
+	private final String operacion;
+	private final String motor;
+	private final int hilos;
+	private final int numCuentas;
+	private final double zipf;
+	private final int pendientes;
+	private final int lecturas;
+	private final int calentamiento;
+	private final int duracion;
+
+	private Blockchain blockchain;
+	private String[] privados;
+	private String[] publicos;
+	private double[] acumulada;
+	private volatile boolean midiendo;
+	private volatile boolean terminado;
+
+	/**
+	 * Constructor del banco de pruebas a partir de sus parámetros.
+	 *
+	 * @param parametros Parámetros clave=valor
+	 */
+	private BenchmarkBlockchain(HashMap<String, String> parametros) {
+		this.operacion = parametros.getOrDefault("operacion", "transferir");
+		this.motor = parametros.getOrDefault("motor", "csp");
+		this.hilos = Integer.parseInt(parametros.getOrDefault("hilos", "1"));
+		this.numCuentas = Integer.parseInt(parametros.getOrDefault("cuentas", "10000"));
+		this.zipf = Double.parseDouble(parametros.getOrDefault("zipf", "0"));
+		this.pendientes = Integer.parseInt(parametros.getOrDefault("pendientes", "0"));
+		this.lecturas = Integer.parseInt(parametros.getOrDefault("lecturas", "90"));
+		this.calentamiento = Integer.parseInt(parametros.getOrDefault("calentamiento", "2"));
+		this.duracion = Integer.parseInt(parametros.getOrDefault("duracion", "5"));
+	}
+
+	/**
+	 * Punto de entrada del banco de pruebas.
+	 *
+	 * @param args Parámetros clave=valor
+	 * @throws InterruptedException Si se interrumpe la espera de los clientes
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		HashMap<String, String> parametros = new HashMap<>();
+		for (String arg : args) {
+			int igual = arg.indexOf('=');
+			if (igual < 0) {
+				throw new IllegalArgumentException("Parámetro sin valor: " + arg);
+			}
+			parametros.put(arg.substring(0, igual), arg.substring(igual + 1));
+		}
+		System.err.println("JCSP: " + Channel.class.getProtectionDomain().getCodeSource().getLocation());
+		new BenchmarkBlockchain(parametros).ejecutar();
+		System.exit(0);
+	}
+
+	/**
+	 * Crea el motor a medir según su nombre.
+	 *
+	 * @param motor Nombre del motor
+	 * @return Blockchain a medir
+	 */
+	static Blockchain crearMotor(String motor) {
+		switch (motor) {
+			case "csp":
+				return new BlockchainCSP();
+			case "directa":
+				return new BlockchainCSP(new ConfiguracionCSP().lecturaDirecta(true));
+			case "particionada":
+				return new BlockchainCSPParticionada();
+			case "cerrojos":
+				return new BlockchainCerrojos();
+			case "atomica":
+				return new BlockchainAtomica();
+			case "registro":
+				try {
+					Path fichero = Files.createTempFile("blockchain", ".log");
+					fichero.toFile().deleteOnExit();
+					return new BlockchainCSP(new ConfiguracionCSP().registro(fichero));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			case "traza":
+				try {
+					Path fichero = Files.createTempFile("traza", ".bin");
+					fichero.toFile().deleteOnExit();
+					return new BlockchainCSP(new ConfiguracionCSP().traza(fichero));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			case "rafaga":
+				return new BlockchainCSP(new ConfiguracionCSP().rafagaMaxima(256));
+			case "anillo":
+				return new BlockchainCSP(new ConfiguracionCSP().transporteAnillo(1024));
+			case "metricas":
+				return new BlockchainCSP(new ConfiguracionCSP().metricas(true));
+			case "buffer":
+				return new BlockchainCSP(
+						new ConfiguracionCSP().canalesConBuffer(1024, PoliticaDesborde.BLOQUEAR).metricas(true));
+			case "equitativa":
+				return new BlockchainCSP(new ConfiguracionCSP().medirEsperas(true));
+			case "ponderada":
+				return new BlockchainCSP(new ConfiguracionCSP().seleccionPonderada(1, 4, 1, 1).medirEsperas(true));
+			case "prioridad":
+				return new BlockchainCSP(new ConfiguracionCSP().seleccionPrioridadLecturas().medirEsperas(true));
+			case "vaciado":
+				return new BlockchainCSP(new ConfiguracionCSP().seleccionVaciado(16).medirEsperas(true));
+			default:
+				throw new IllegalArgumentException("Motor desconocido: " + motor);
+		}
+	}
+
+	/**
+	 * Prepara las cuentas y la cola de transferencias bloqueadas, lanza los
+	 * hilos de medición e imprime los resultados.
+	 *
+	 * @throws InterruptedException Si se interrumpe la espera de los clientes
+	 */
+	private void ejecutar() throws InterruptedException {
+		blockchain = crearMotor(motor);
+		privados = new String[numCuentas];
+		publicos = new String[numCuentas];
+		for (int i = 0; i < numCuentas; i++) {
+			privados[i] = "c" + i;
+			publicos[i] = "C" + i;
+			blockchain.crear(privados[i], publicos[i], SALDO_INICIAL);
+		}
+		acumulada = distribucionZipf(numCuentas, zipf);
+		bloquearTransferencias();
+
+		Histograma[] histogramas = new Histograma[hilos];
+		long[] operaciones = new long[hilos];
+		Thread[] clientes = new Thread[hilos];
+		for (int h = 0; h < hilos; h++) {
+			final int hilo = h;
+			histogramas[h] = new Histograma();
+			clientes[h] = new Thread(() -> operaciones[hilo] = cliente(hilo, histogramas[hilo]), "cliente" + h);
+			clientes[h].start();
+		}
+		Thread.sleep(calentamiento * 1000L);
+		midiendo = true;
+		long inicio = System.nanoTime();
+		Thread.sleep(duracion * 1000L);
+		terminado = true;
+		long fin = System.nanoTime();
+		for (Thread cliente : clientes) {
+			cliente.join();
+		}
+
+		Histograma total = new Histograma();
+		long totalOperaciones = 0;
+		for (int h = 0; h < hilos; h++) {
+			total.sumar(histogramas[h]);
+			totalOperaciones += operaciones[h];
+		}
+		long porSegundo = totalOperaciones * 1000000000L / (fin - inicio);
+		System.out.printf("%s motor=%s hilos=%d cuentas=%d zipf=%.2f pendientes=%d: %d op/s, "
+				+ "p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus%n", operacion, motor, hilos,
+				numCuentas, zipf, pendientes, porSegundo, total.percentil(50) / 1e3, total.percentil(90) / 1e3,
+				total.percentil(99) / 1e3, total.percentil(99.9) / 1e3, total.max() / 1e3);
+		System.out.printf("%s\t%s\t%d\t%d\t%.2f\t%d\t%d\t%d\t%d\t%d\t%d\t%d%n", operacion, motor, hilos, numCuentas,
+				zipf, pendientes, porSegundo, total.percentil(50), total.percentil(90), total.percentil(99),
+				total.percentil(99.9), total.max());
+		if (motor.equals("equitativa") || motor.equals("ponderada") || motor.equals("prioridad")
+				|| motor.equals("vaciado")) {
+			System.out.print(((BlockchainCSP) blockchain).esperasCola());
+		}
+		if (motor.equals("metricas") || motor.equals("buffer")) {
+			System.out.print(((BlockchainCSP) blockchain).metricas());
+		}
+	}
+
+	/**
+	 * Bucle de un hilo de medición. Solo registra las operaciones que terminan
+	 * dentro del intervalo de medición.
+	 *
+	 * @param hilo       Número del hilo
+	 * @param histograma Histograma donde registrar las latencias
+	 * @return Número de operaciones medidas
+	 */
+	private long cliente(int hilo, Histograma histograma) {
+		long medidas = 0;
+		long creadas = 0;
+		while (!terminado) {
+			long inicio = System.nanoTime();
+			switch (operacion) {
+				case "crear":
+					blockchain.crear("n" + hilo + "_" + creadas, "N" + hilo + "_" + creadas, 1);
+					creadas++;
+					break;
+				case "disponible":
+					blockchain.disponible(privados[elegirCuenta()]);
+					break;
+				case "transferir":
+					transferir();
+					break;
+				case "alertarMax":
+					blockchain.alertarMax(privados[elegirCuenta()], 0);
+					break;
+				case "mixta":
+					if (ThreadLocalRandom.current().nextInt(100) < lecturas) {
+						blockchain.disponible(privados[elegirCuenta()]);
+					} else {
+						transferir();
+					}
+					break;
+				default:
+					throw new IllegalArgumentException("Operación desconocida: " + operacion);
+			}
+			if (midiendo && !terminado) {
+				histograma.registrar(System.nanoTime() - inicio);
+				medidas++;
+			}
+		}
+		return medidas;
+	}
+
+	/**
+	 * Transfiere una unidad entre dos cuentas distintas elegidas según la
+	 * distribución configurada.
+	 */
+	private void transferir() {
+		int origen = elegirCuenta();
+		int destino = elegirCuenta();
+		if (destino == origen) {
+			destino = (origen + 1) % numCuentas;
+		}
+		blockchain.transferir(privados[origen], publicos[destino], 1);
+	}
+
+	/**
+	 * Deja {@code pendientes} transferencias bloqueadas por falta de fondos,
+	 * cada una con su propio hilo cliente esperando. El motor puede ser
+	 * cualquiera, así que no se consulta su cola y se da un margen fijo para que
+	 * el servidor reciba las transferencias.
+	 *
+	 * @throws InterruptedException Si se interrumpe la espera
+	 */
+	private void bloquearTransferencias() throws InterruptedException {
+		if (pendientes == 0) {
+			return;
+		}
+		blockchain.crear("sumidero", "SUMIDERO", 0);
+		CountDownLatch lanzadas = new CountDownLatch(pendientes);
+		for (int i = 0; i < pendientes; i++) {
+			final String idPrivado = "bloqueada" + i;
+			blockchain.crear(idPrivado, "BLOQUEADA" + i, 0);
+			Thread cliente = new Thread(null, () -> {
+				lanzadas.countDown();
+				blockchain.transferir(idPrivado, "SUMIDERO", 1);
+			}, idPrivado, 64 * 1024);
+			cliente.setDaemon(true);
+			cliente.start();
+		}
+		lanzadas.await();
+		// Da tiempo a que el servidor lea las transferencias recién lanzadas
+		Thread.sleep(Math.max(100, pendientes / 100));
+	}
+
+	/**
+	 * Elige una cuenta según la distribución configurada.
+	 *
+	 * @return Número de la cuenta
+	 */
+	private int elegirCuenta() {
+		if (acumulada == null) {
+			return ThreadLocalRandom.current().nextInt(numCuentas);
+		}
+		double u = ThreadLocalRandom.current().nextDouble();
+		int bajo = 0;
+		int alto = acumulada.length - 1;
+		while (bajo < alto) {
+			int medio = (bajo + alto) >>> 1;
+			if (acumulada[medio] < u) {
+				bajo = medio + 1;
+			} else {
+				alto = medio;
+			}
+		}
+		return bajo;
+	}
+
+	/**
+	 * Calcula la distribución acumulada de Zipf sobre {@code n} cuentas.
+	 *
+	 * @param n         Número de cuentas
+	 * @param exponente Exponente de la distribución
+	 * @return Probabilidades acumuladas, o null si la distribución es uniforme
+	 */
+	private static double[] distribucionZipf(int n, double exponente) {
+		if (exponente <= 0) {
+			return null;
+		}
+		double[] acumulada = new double[n];
+		double suma = 0;
+		for (int i = 0; i < n; i++) {
+			suma += 1 / Math.pow(i + 1, exponente);
+			acumulada[i] = suma;
+		}
+		for (int i = 0; i < n; i++) {
+			acumulada[i] /= suma;
+		}
+		return acumulada;
+	}
+}
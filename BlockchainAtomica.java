@@ -0,0 +1,293 @@
+package cc.blockchain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * La clase BlockchainAtomica implementa la blockchain sin proceso servidor y
+ * sin cerrojos en el camino habitual. Los saldos se guardan en arrays
+ * atómicos indexados por el slot de la cuenta: una consulta es una lectura
+ * atómica y una transferencia que puede realizarse ya carga el origen con una
+ * comparación e intercambio y abona el destino con una suma atómica.
+ *
+ * Solo las transferencias que deben esperar, por falta de fondos o porque su
+ * cuenta de origen tiene transferencias anteriores pendientes, y las alertas
+ * que aún no se cumplen entran en las colas de su cuenta y aparcan su hilo. La
+ * transferencia en cabeza es la única que puede cargar una cuenta con cola,
+ * así que se mantiene el orden FIFO. Quien abona una cuenta despierta a su
+ * cabeza y dispara las alertas cuyo máximo supera el saldo que ha dejado.
+ *
+ * Entre el cargo y el abono de una transferencia los fondos están en tránsito:
+ * una consulta simultánea puede ver el origen ya cargado y el destino aún sin
+ * abonar, como en {@link BlockchainCSPParticionada}. La llamada no termina
+ * hasta que se han aplicado los dos.
+ */
+public class BlockchainAtomica implements Blockchain {
+
+	// Los saldos se reparten en segmentos de tamaño fijo que no se copian al
+	// crecer, para que ninguna suma concurrente se pierda
+	private static final int BITS_SEGMENTO = 12;
+	private static final int TAMANO_SEGMENTO = 1 << BITS_SEGMENTO;
+
+	// Altas de cuentas: serializa la comprobación de IDs únicos y la
+	// asignación de slots
+	private final ReentrantLock cerrojoAltas = new ReentrantLock();
+	private final ConcurrentHashMap<String, Cuenta> privados = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Cuenta> publicos = new ConcurrentHashMap<>();
+	private final ArrayList<AtomicLongArray> segmentos = new ArrayList<>();
+	private int numCuentas;
+
+	/**
+	 * Cuenta de la blockchain: la posición de su saldo y sus peticiones en
+	 * espera. Las colas se modifican con el monitor de la cuenta; los
+	 * contadores se leen sin él para no tomarlo si no hay nadie esperando.
+	 */
+	private static class Cuenta {
+		final AtomicLongArray saldos;
+		final int indice;
+		final ArrayDeque<Espera> transferencias = new ArrayDeque<>();
+		final ArrayList<Espera> alertas = new ArrayList<>();
+		volatile int numTransferencias;
+		volatile int numAlertas;
+
+		Cuenta(AtomicLongArray saldos, int indice) {
+			this.saldos = saldos;
+			this.indice = indice;
+		}
+	}
+
+	/**
+	 * Hilo aparcado en una cola de su cuenta: una transferencia, con el monto
+	 * que necesita, o una alerta, con su saldo máximo.
+	 */
+	private static class Espera {
+		final Thread hilo = Thread.currentThread();
+		final int valor;
+		volatile boolean lista;
+
+		Espera(int valor) {
+			this.valor = valor;
+		}
+	}
+
+	/**
+	 * Crea una nueva cuenta en la blockchain.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param idPublico ID público de la cuenta
+	 * @param saldo     Saldo inicial de la cuenta
+	 * @throws IllegalArgumentException Si los parámetros son inválidos
+	 */
+	public void crear(String idPrivado, String idPublico, int saldo) {
+		if (idPrivado == null || idPublico == null || saldo < 0) {
+			throw new IllegalArgumentException();
+		}
+		cerrojoAltas.lock();
+		try {
+			if (privados.containsKey(idPrivado) || publicos.containsKey(idPublico)) {
+				throw new IllegalArgumentException();
+			}
+			int slot = numCuentas++;
+			if (slot >>> BITS_SEGMENTO == segmentos.size()) {
+				segmentos.add(new AtomicLongArray(TAMANO_SEGMENTO));
+			}
+			Cuenta cuenta = new Cuenta(segmentos.get(slot >>> BITS_SEGMENTO), slot & (TAMANO_SEGMENTO - 1));
+			cuenta.saldos.set(cuenta.indice, saldo);
+			privados.put(idPrivado, cuenta);
+			publicos.put(idPublico, cuenta);
+		} finally {
+			cerrojoAltas.unlock();
+		}
+	}
+
+	/**
+	 * Transfiere fondos entre cuentas en la blockchain. Si la cuenta de origen
+	 * no tiene fondos o tiene transferencias anteriores pendientes, el hilo
+	 * espera aparcado en la cola de la cuenta.
+	 *
+	 * @param idPrivado        ID privado de la cuenta de origen
+	 * @param idPublicoDestino ID público de la cuenta de destino
+	 * @param valor            Monto a transferir
+	 * @throws IllegalArgumentException Si los parámetros son inválidos o la
+	 *                                  transferencia falla
+	 */
+	public void transferir(String idPrivado, String idPublicoDestino, int valor) {
+		if (idPrivado == null || idPublicoDestino == null || valor <= 0) {
+			throw new IllegalArgumentException();
+		}
+		Cuenta origen = privados.get(idPrivado);
+		Cuenta destino = publicos.get(idPublicoDestino);
+		if (origen == null || destino == null || origen == destino) {
+			throw new IllegalArgumentException();
+		}
+		if (origen.numTransferencias > 0 || !cargar(origen, valor)) {
+			esperarTurno(origen, valor);
+		}
+		abonar(destino, valor);
+	}
+
+	/**
+	 * Consulta el saldo de una cuenta en la blockchain.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @return El saldo disponible en la cuenta
+	 * @throws IllegalArgumentException Si el ID privado es inválido o la cuenta no
+	 *                                  existe
+	 */
+	public int disponible(String idPrivado) {
+		if (idPrivado == null) {
+			throw new IllegalArgumentException();
+		}
+		Cuenta cuenta = privados.get(idPrivado);
+		if (cuenta == null) {
+			throw new IllegalArgumentException();
+		}
+		return (int) cuenta.saldos.get(cuenta.indice);
+	}
+
+	/**
+	 * Establece una alerta de saldo máximo para una cuenta en la blockchain.
+	 * Espera hasta que el saldo de la cuenta supera el máximo.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param max       Saldo máximo para la alerta
+	 * @throws IllegalArgumentException Si los parámetros son inválidos
+	 */
+	public void alertarMax(String idPrivado, int max) {
+		if (idPrivado == null || max < 0) {
+			throw new IllegalArgumentException();
+		}
+		Cuenta cuenta = privados.get(idPrivado);
+		if (cuenta == null) {
+			throw new IllegalArgumentException();
+		}
+		if (cuenta.saldos.get(cuenta.indice) > max) {
+			return;
+		}
+		Espera alerta = new Espera(max);
+		synchronized (cuenta) {
+			cuenta.alertas.add(alerta);
+			cuenta.numAlertas++;
+		}
+		// Anotada la alerta, o este hilo ve el último abono o quien abona ve
+		// la alerta y la dispara
+		if (cuenta.saldos.get(cuenta.indice) > max) {
+			synchronized (cuenta) {
+				if (cuenta.alertas.remove(alerta)) {
+					cuenta.numAlertas--;
+				}
+			}
+			return;
+		}
+		aparcar(alerta);
+	}
+
+	/**
+	 * Pone una transferencia en la cola de su cuenta de origen y espera a
+	 * llegar a la cabeza y cargar la cuenta. Después pasa la cabeza a la
+	 * siguiente.
+	 *
+	 * @param origen Cuenta de origen
+	 * @param valor  Monto a transferir
+	 */
+	private void esperarTurno(Cuenta origen, int valor) {
+		Espera espera = new Espera(valor);
+		synchronized (origen) {
+			origen.transferencias.add(espera);
+			origen.numTransferencias++;
+			espera.lista = origen.transferencias.peek() == espera;
+		}
+		boolean interrumpido = false;
+		// Anotada la transferencia, o este hilo ve el último abono o quien
+		// abona ve la cola y despierta a su cabeza
+		while (!espera.lista || !cargar(origen, valor)) {
+			LockSupport.park(this);
+			interrumpido |= Thread.interrupted();
+		}
+		synchronized (origen) {
+			origen.transferencias.poll();
+			origen.numTransferencias--;
+			Espera siguiente = origen.transferencias.peek();
+			if (siguiente != null) {
+				siguiente.lista = true;
+				LockSupport.unpark(siguiente.hilo);
+			}
+		}
+		if (interrumpido) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Aparca el hilo hasta que se dispara su alerta.
+	 *
+	 * @param alerta Alerta anotada en su cuenta
+	 */
+	private void aparcar(Espera alerta) {
+		boolean interrumpido = false;
+		while (!alerta.lista) {
+			LockSupport.park(this);
+			interrumpido |= Thread.interrupted();
+		}
+		if (interrumpido) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Carga una cuenta si tiene fondos suficientes.
+	 *
+	 * @param cuenta Cuenta a cargar
+	 * @param valor  Monto a cargar
+	 * @return true si se ha cargado, false si no tiene fondos
+	 */
+	private static boolean cargar(Cuenta cuenta, int valor) {
+		while (true) {
+			long saldo = cuenta.saldos.get(cuenta.indice);
+			if (saldo < valor) {
+				return false;
+			}
+			if (cuenta.saldos.compareAndSet(cuenta.indice, saldo, saldo - valor)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Abona una cuenta, despierta a su transferencia en cabeza si tiene fondos
+	 * y dispara las alertas cuyo máximo supera el nuevo saldo.
+	 *
+	 * @param cuenta Cuenta a abonar
+	 * @param valor  Monto a abonar
+	 */
+	private static void abonar(Cuenta cuenta, int valor) {
+		long saldo = cuenta.saldos.addAndGet(cuenta.indice, valor);
+		if (cuenta.numTransferencias > 0) {
+			synchronized (cuenta) {
+				Espera cabeza = cuenta.transferencias.peek();
+				if (cabeza != null && saldo >= cabeza.valor) {
+					LockSupport.unpark(cabeza.hilo);
+				}
+			}
+		}
+		if (cuenta.numAlertas > 0) {
+			synchronized (cuenta) {
+				Iterator<Espera> alertas = cuenta.alertas.iterator();
+				while (alertas.hasNext()) {
+					Espera alerta = alertas.next();
+					if (saldo > alerta.valor) {
+						alertas.remove();
+						cuenta.numAlertas--;
+						alerta.lista = true;
+						LockSupport.unpark(alerta.hilo);
+					}
+				}
+			}
+		}
+	}
+}
@@ -1,10 +1,24 @@
 package cc.blockchain;
 
 import org.jcsp.lang.*;
+import org.jcsp.util.Buffer;
+import org.jcsp.util.InfiniteBuffer;
 
-import es.upm.aedlib.map.HashTableMap;
-import es.upm.aedlib.map.Map;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 /**
  * La clase BlockchainCSP implementa una blockchain utilizando procesos
@@ -12,15 +26,155 @@ import java.util.ArrayList;
  */
 public class BlockchainCSP implements Blockchain, CSProcess {
 
+	// Servicios del proceso servidor, en el orden de sus guardas. Los cuatro
+	// primeros coinciden con el orden de EsperasCola.OPERACIONES.
+	private static final int CREAR = 0;
+	private static final int DISPONIBLE = 1;
+	private static final int TRANSFERIR = 2;
+	private static final int ALERTAR = 3;
+	private static final int LOTE = 4;
+	private static final int ABONAR = 5;
+	private static final int CANCELAR = 6;
+	private static final int TEMPORIZADOR = 7;
+	// Guardas del anillo de peticiones: su timbre y un salto que evita esperar
+	// cuando ya hay peticiones publicadas
+	private static final int TIMBRE = 8;
+	private static final int SALTO = 9;
+
+	// Peticiones del anillo atendidas como mucho antes de volver al bucle
+	private static final int LOTE_ANILLO = 256;
+
 	private Any2OneChannel chCrear;
 	private Any2OneChannel chDisponible;
 	private Any2OneChannel chTransferir;
 	private Any2OneChannel chAlertar;
+	private Any2OneChannel chLote;
+	private Any2OneChannel chAbonar;
+	private Any2OneChannel chCancelar;
+
+	// Extremos de escritura de los canales de petición, indexados por
+	// servicio. JCSP crea un extremo nuevo en cada llamada a in() u out(),
+	// así que se obtienen una sola vez y no en cada petición.
+	private SharedChannelOutput[] salidas;
+
+	private ConfiguracionCSP configuracion;
+	private TablaCuentas cuentas;
+	private ArrayList<ArrayDeque<PetTransferir>> peticionesTransferir;
+	private ColaEnteros cuentasListas;
+	private volatile int numTransferenciasPendientes;
+	private volatile int ultimoDesbloqueo;
+	private boolean desbloqueoPendiente;
+	private ArrayList<TreeMap<Integer, ArrayDeque<PetAlertar>>> peticionesAlertar;
+	private volatile int numAlertasPendientes;
+	private volatile int numCuentasConTransferencias;
+	private volatile int numCuentasConAlertas;
+
+	// Peticiones bloqueadas con plazo, por orden de vencimiento. Las que se
+	// liberan antes de vencer no se quitan al liberarlas: se descartan al
+	// llegar a la cima, y el montículo se compacta si ocupan más de la mitad.
+	private PriorityQueue<PetTransferir> plazosTransferir;
+	private PriorityQueue<PetAlertar> plazosAlertar;
+
+	// Holgura de los montículos de plazos antes de compactarlos
+	private static final int COMPACTAR_PLAZOS = 64;
+
+	// Respuesta a una petición con plazo que vence o se cancela
+	private static final Object VENCIDA = new Object();
+
+	// Alertas liberadas al abonar sus cuentas desde la última pasada
+	private int alertasLiberadas;
+
+	// Registro de escritura anticipada, o null si no se persiste el estado. Con
+	// registro, las respuestas y los abonos a otras particiones se difieren
+	// hasta que el grupo de peticiones en curso se ha llevado a disco.
+	private RegistroEscritura registro;
+	private ArrayList<Object> destinosDiferidos;
+	private ArrayList<Object> mensajesDiferidos;
+	private int peticionesGrupo;
+	private long inicioGrupo;
+
+	// Puntos de control periódicos, o null si no se usan. La instantánea en
+	// curso se copia por bloques entre petición y petición.
+	private PuntoControl puntoControl;
+	private PuntoControl.Instantanea instantanea;
+	private int numBloques;
+	private int siguienteBloque;
+	private long siguientePuntoControl;
+
+	// Constructor de bloques de las transferencias realizadas, o null si no
+	// se construyen bloques
+	private ConstructorBloques bloques;
+
+	// Canales de entrada por servicio, siguiente canal a revisar en una ráfaga
+	// y créditos de la selección ponderada
+	private AltingChannelInput[] entradas;
+	private int siguienteCanal;
+	private int[] pesos;
+	private int[] creditos;
+
+	// Esperas en cola por operación, o null si no se miden. Solo el servidor
+	// registra; las copias se toman con el histograma bloqueado.
+	private Histograma[] esperas;
+
+	// Anillo por el que llegan las peticiones de los clientes en lugar de por
+	// sus canales, o null si se usan los canales
+	private AnilloPeticiones anillo;
+
+	// Control de admisión de los canales de peticiones con buffer acotado, o
+	// null si no se acotan
+	private CanalesAcotados acotados;
+
+	// Métricas del servidor, o null si no se recogen
+	private MetricasServidor metricas;
 
-	private Map<String, Integer> cuentas;
-	private Map<String, String> identidades;
-	private ArrayList<PetTransferir> peticionesTransferir;
-	private ArrayList<PetAlertar> peticionesAlertar;
+	// Traza de las peticiones atendidas, o null si no se anotan
+	private TrazaPeticiones traza;
+
+	// Transferencias entre particiones: índice de esta partición, secuencias y
+	// reservas sin confirmar, y consultas de saldo de cuentas con una reserva,
+	// que se responden al confirmarla
+	private int particion;
+	private EstadoParticiones estadoParticiones;
+	private HashMap<Integer, ArrayList<PetDisponible>> lecturasRetenidas;
+
+	// Canal de respuesta reutilizable de cada hilo cliente con este servidor.
+	// Un hilo solo espera una respuesta a la vez, pero el canal no se comparte
+	// entre servidores: un One2OneChannel admite un solo escritor, y el
+	// servidor que escribió la respuesta anterior puede no haber salido aún
+	// de la escritura cuando otro escribe la siguiente.
+	private final ThreadLocal<CanalRespuesta> respuestas = ThreadLocal.withInitial(CanalRespuesta::new);
+
+	// Hilos que completan los futuros de las peticiones asíncronas, para que
+	// las acciones encadenadas por los clientes no se ejecuten en el servidor
+	private static final ExecutorService ENTREGAS = Executors
+			.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), tarea -> {
+				Thread hilo = new Thread(tarea, "blockchain-entregas");
+				hilo.setDaemon(true);
+				return hilo;
+			});
+
+	// Peticiones reutilizables de cada hilo cliente. El servidor deja de
+	// referenciar una petición antes de responderla, así que el hilo puede
+	// volver a usarla en su siguiente llamada.
+	private ThreadLocal<PetCrear> petsCrear;
+	private ThreadLocal<PetDisponible> petsDisponible;
+	private ThreadLocal<PetTransferir> petsTransferir;
+	private ThreadLocal<PetAlertar> petsAlertar;
+
+	/**
+	 * Canal de respuesta de un hilo cliente con sus dos extremos, obtenidos
+	 * una sola vez.
+	 */
+	private static class CanalRespuesta {
+		final ChannelInput entrada;
+		final ChannelOutput salida;
+
+		CanalRespuesta() {
+			One2OneChannel canal = Channel.one2one();
+			this.entrada = canal.in();
+			this.salida = canal.out();
+		}
+	}
 
 	/**
 	 * Clase interna para manejar las peticiones de creación de cuentas.
@@ -29,7 +183,9 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 		String idPrivado;
 		String idPublico;
 		int saldo;
-		One2OneChannel resp;
+		long enviada;
+		CanalRespuesta resp;
+		CompletableFuture<Object> futuro;
 
 		/**
 		 * Constructor para la petición de creación de cuentas.
@@ -39,10 +195,35 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 		 * @param saldo     Saldo inicial de la cuenta
 		 */
 		public PetCrear(String idPrivado, String idPublico, int saldo) {
+			preparar(idPrivado, idPublico, saldo);
+			this.resp = respuestas.get();
+		}
+
+		/**
+		 * Constructor para una petición asíncrona, que se responde completando
+		 * su futuro en lugar de escribir en un canal.
+		 *
+		 * @param idPrivado ID privado de la cuenta
+		 * @param idPublico ID público de la cuenta
+		 * @param saldo     Saldo inicial de la cuenta
+		 * @param futuro    Futuro a completar con la respuesta
+		 */
+		PetCrear(String idPrivado, String idPublico, int saldo, CompletableFuture<Object> futuro) {
+			preparar(idPrivado, idPublico, saldo);
+			this.futuro = futuro;
+		}
+
+		/**
+		 * Prepara la petición para una nueva llamada.
+		 *
+		 * @param idPrivado ID privado de la cuenta
+		 * @param idPublico ID público de la cuenta
+		 * @param saldo     Saldo inicial de la cuenta
+		 */
+		void preparar(String idPrivado, String idPublico, int saldo) {
 			this.idPrivado = idPrivado;
 			this.idPublico = idPublico;
 			this.saldo = saldo;
-			this.resp = Channel.one2one();
 		}
 	}
 
@@ -51,7 +232,10 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 	 */
 	public class PetDisponible {
 		String idPrivado;
-		One2OneChannel resp;
+		int saldo;
+		long enviada;
+		CanalRespuesta resp;
+		CompletableFuture<Object> futuro;
 
 		/**
 		 * Constructor para la petición de consulta de saldo.
@@ -60,7 +244,19 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 		 */
 		public PetDisponible(String idPrivado) {
 			this.idPrivado = idPrivado;
-			this.resp = Channel.one2one();
+			this.resp = respuestas.get();
+		}
+
+		/**
+		 * Constructor para una petición asíncrona, que se responde completando
+		 * su futuro en lugar de escribir en un canal.
+		 *
+		 * @param idPrivado ID privado de la cuenta
+		 * @param futuro    Futuro a completar con la respuesta
+		 */
+		PetDisponible(String idPrivado, CompletableFuture<Object> futuro) {
+			this.idPrivado = idPrivado;
+			this.futuro = futuro;
 		}
 	}
 
@@ -72,7 +268,20 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 		String idPublicoDestino;
 		int valor;
 		boolean blocked;
-		One2OneChannel resp;
+		volatile boolean cancelada;
+		int origen;
+		int destino;
+		PetLote lote;
+		int posicion;
+		BlockchainCSP particionDestino;
+		BlockchainCSP particionOrigen;
+		EstadoParticiones.Reserva reserva;
+		long transaccion;
+		long vencimiento;
+		long enviada;
+		long numTraza = -1;
+		CanalRespuesta resp;
+		CompletableFuture<Object> futuro;
 
 		/**
 		 * Constructor para la petición de transferencia de fondos.
@@ -82,11 +291,100 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 		 * @param valor            Monto a transferir
 		 */
 		public PetTransferir(String idPrivado, String idPublicoDestino, int valor) {
+			preparar(idPrivado, idPublicoDestino, valor);
+			this.resp = respuestas.get();
+		}
+
+		/**
+		 * Constructor para una petición asíncrona, que se responde completando
+		 * su futuro en lugar de escribir en un canal.
+		 *
+		 * @param idPrivado        ID privado de la cuenta de origen
+		 * @param idPublicoDestino ID público de la cuenta de destino
+		 * @param valor            Monto a transferir
+		 * @param futuro           Futuro a completar con la respuesta
+		 */
+		PetTransferir(String idPrivado, String idPublicoDestino, int valor, CompletableFuture<Object> futuro) {
+			preparar(idPrivado, idPublicoDestino, valor);
+			this.futuro = futuro;
+		}
+
+		/**
+		 * Prepara la petición para una nueva llamada.
+		 *
+		 * @param idPrivado        ID privado de la cuenta de origen
+		 * @param idPublicoDestino ID público de la cuenta de destino
+		 * @param valor            Monto a transferir
+		 */
+		void preparar(String idPrivado, String idPublicoDestino, int valor) {
 			this.idPrivado = idPrivado;
 			this.idPublicoDestino = idPublicoDestino;
 			this.valor = valor;
 			this.blocked = false;
-			this.resp = Channel.one2one();
+			this.particionDestino = null;
+			this.particionOrigen = null;
+			this.reserva = null;
+			this.transaccion = -1;
+			this.vencimiento = Long.MAX_VALUE;
+		}
+
+		/**
+		 * Constructor para una transferencia de un lote. La respuesta se envía
+		 * por el canal del lote cuando terminan todas sus transferencias.
+		 *
+		 * @param lote     Petición de lote a la que pertenece
+		 * @param posicion Posición de la transferencia en el lote
+		 */
+		PetTransferir(PetLote lote, int posicion) {
+			Transferencia transferencia = lote.transferencias.get(posicion);
+			this.idPrivado = transferencia.idPrivado;
+			this.idPublicoDestino = transferencia.idPublicoDestino;
+			this.valor = transferencia.valor;
+			this.blocked = false;
+			this.vencimiento = Long.MAX_VALUE;
+			this.lote = lote;
+			this.posicion = posicion;
+		}
+	}
+
+	/**
+	 * Clase interna para manejar las peticiones de transferencia por lotes.
+	 */
+	public class PetLote {
+		List<Transferencia> transferencias;
+		ModoLote modo;
+		EstadoTransferencia[] resultados;
+		int pendientes;
+		long numTraza = -1;
+		CanalRespuesta resp;
+		CompletableFuture<Object> futuro;
+
+		/**
+		 * Constructor para la petición de transferencia por lotes.
+		 *
+		 * @param transferencias Transferencias a realizar, en orden
+		 * @param modo           Comportamiento ante transferencias sin fondos
+		 */
+		public PetLote(List<Transferencia> transferencias, ModoLote modo) {
+			this.transferencias = transferencias;
+			this.modo = modo;
+			this.resultados = new EstadoTransferencia[transferencias.size()];
+			this.resp = respuestas.get();
+		}
+
+		/**
+		 * Constructor para una petición asíncrona, que se responde completando
+		 * su futuro en lugar de escribir en un canal.
+		 *
+		 * @param transferencias Transferencias a realizar, en orden
+		 * @param modo           Comportamiento ante transferencias sin fondos
+		 * @param futuro         Futuro a completar con la respuesta
+		 */
+		PetLote(List<Transferencia> transferencias, ModoLote modo, CompletableFuture<Object> futuro) {
+			this.transferencias = transferencias;
+			this.modo = modo;
+			this.resultados = new EstadoTransferencia[transferencias.size()];
+			this.futuro = futuro;
 		}
 	}
 
@@ -96,7 +394,14 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 	public class PetAlertar {
 		String idPrivado;
 		int max;
-		One2OneChannel resp;
+		int cuenta;
+		boolean blocked;
+		volatile boolean cancelada;
+		long vencimiento;
+		long enviada;
+		long numTraza = -1;
+		CanalRespuesta resp;
+		CompletableFuture<Object> futuro;
 
 		/**
 		 * Constructor para la petición de alerta de saldo.
@@ -105,25 +410,164 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 		 * @param max       Saldo máximo para la alerta
 		 */
 		public PetAlertar(String idPrivado, int max) {
+			preparar(idPrivado, max);
+			this.resp = respuestas.get();
+		}
+
+		/**
+		 * Constructor para una petición asíncrona, que se responde completando
+		 * su futuro en lugar de escribir en un canal.
+		 *
+		 * @param idPrivado ID privado de la cuenta
+		 * @param max       Saldo máximo para la alerta
+		 * @param futuro    Futuro a completar con la respuesta
+		 */
+		PetAlertar(String idPrivado, int max, CompletableFuture<Object> futuro) {
+			preparar(idPrivado, max);
+			this.futuro = futuro;
+		}
+
+		/**
+		 * Prepara la petición para una nueva llamada.
+		 *
+		 * @param idPrivado ID privado de la cuenta
+		 * @param max       Saldo máximo para la alerta
+		 */
+		void preparar(String idPrivado, int max) {
 			this.idPrivado = idPrivado;
 			this.max = max;
-			this.resp = Channel.one2one();
+			this.blocked = false;
+			this.vencimiento = Long.MAX_VALUE;
 		}
 	}
 
+	/**
+	 * Constructor para la clase BlockchainCSP con la configuración por defecto.
+	 */
+	public BlockchainCSP() {
+		this(new ConfiguracionCSP());
+	}
+
 	/**
 	 * Constructor para la clase BlockchainCSP.
 	 * Inicializa los canales y estructuras de datos, y comienza el proceso.
+	 *
+	 * @param configuracion Opciones del servidor
+	 * @throws IllegalArgumentException Si se piden puntos de control sin
+	 *                                  registro de escritura, o lectura
+	 *                                  directa con registro de escritura
 	 */
-	public BlockchainCSP() {
-		this.chCrear = Channel.any2one();
-		this.chAlertar = Channel.any2one();
-		this.chDisponible = Channel.any2one();
-		this.chTransferir = Channel.any2one();
-		this.cuentas = new HashTableMap<>();
-		this.identidades = new HashTableMap<>();
+	public BlockchainCSP(ConfiguracionCSP configuracion) {
+		this(configuracion, true);
+	}
+
+	/**
+	 * Constructor para la clase BlockchainCSP que puede no arrancar el proceso
+	 * servidor, para reproducir una traza con {@link #reproducir(Path)}.
+	 *
+	 * @param configuracion Opciones del servidor
+	 * @param arrancar      true para arrancar el proceso servidor
+	 * @throws IllegalArgumentException Si se piden puntos de control sin
+	 *                                  registro de escritura, o lectura
+	 *                                  directa con registro de escritura
+	 */
+	BlockchainCSP(ConfiguracionCSP configuracion, boolean arrancar) {
+		this.configuracion = configuracion;
+		if (configuracion.capacidadCanales() > 0) {
+			this.chCrear = Channel.any2one(new Buffer(configuracion.capacidadCanales()));
+			this.chAlertar = Channel.any2one(new Buffer(configuracion.capacidadCanales()));
+			this.chDisponible = Channel.any2one(new Buffer(configuracion.capacidadCanales()));
+			this.chTransferir = Channel.any2one(new Buffer(configuracion.capacidadCanales()));
+			this.chLote = Channel.any2one(new Buffer(configuracion.capacidadCanales()));
+			this.acotados = new CanalesAcotados(configuracion.capacidadCanales(), configuracion.desborde());
+		} else if (configuracion.hilosVirtuales()) {
+			// Con buffer, escribir una petición nunca espera dentro de un monitor
+			this.chCrear = Channel.any2one(new InfiniteBuffer());
+			this.chAlertar = Channel.any2one(new InfiniteBuffer());
+			this.chDisponible = Channel.any2one(new InfiniteBuffer());
+			this.chTransferir = Channel.any2one(new InfiniteBuffer());
+			this.chLote = Channel.any2one(new InfiniteBuffer());
+		} else {
+			this.chCrear = Channel.any2one();
+			this.chAlertar = Channel.any2one();
+			this.chDisponible = Channel.any2one();
+			this.chTransferir = Channel.any2one();
+			this.chLote = Channel.any2one();
+		}
+		this.chAbonar = Channel.any2one(new InfiniteBuffer());
+		this.chCancelar = Channel.any2one(new InfiniteBuffer());
+		this.salidas = new SharedChannelOutput[] { chCrear.out(), chDisponible.out(), chTransferir.out(),
+				chAlertar.out(), chLote.out(), chAbonar.out(), chCancelar.out() };
+		this.cuentas = new TablaCuentas(configuracion.lecturaDirecta());
 		this.peticionesTransferir = new ArrayList<>();
+		this.cuentasListas = new ColaEnteros();
 		this.peticionesAlertar = new ArrayList<>();
+		this.plazosTransferir = new PriorityQueue<>(Comparator.comparingLong(peticion -> peticion.vencimiento));
+		this.plazosAlertar = new PriorityQueue<>(Comparator.comparingLong(peticion -> peticion.vencimiento));
+		this.particion = configuracion.particion();
+		this.estadoParticiones = new EstadoParticiones();
+		this.lecturasRetenidas = new HashMap<>();
+		if (configuracion.puntoControl() != null && configuracion.registro() == null) {
+			throw new IllegalArgumentException();
+		}
+		// Los saldos publicados cambian al aplicar cada operación, antes de que
+		// su grupo llegue a disco
+		if (configuracion.lecturaDirecta() && configuracion.registro() != null) {
+			throw new IllegalArgumentException();
+		}
+		if (configuracion.registro() != null) {
+			long desde = 0;
+			if (configuracion.puntoControl() != null) {
+				desde = PuntoControl.cargar(configuracion.puntoControl(), cuentas, estadoParticiones);
+				for (int cuenta = 0; cuenta < cuentas.tamano(); cuenta++) {
+					peticionesTransferir.add(null);
+					peticionesAlertar.add(null);
+				}
+			}
+			recuperar(configuracion.registro(), desde);
+			this.registro = new RegistroEscritura(configuracion.registro());
+			this.destinosDiferidos = new ArrayList<>();
+			this.mensajesDiferidos = new ArrayList<>();
+			if (configuracion.puntoControl() != null) {
+				this.puntoControl = new PuntoControl(configuracion.puntoControl(), registro);
+				this.siguientePuntoControl = System.currentTimeMillis() + configuracion.intervaloPuntoControl();
+			}
+		}
+		if (configuracion.traza() != null) {
+			// Las cuentas recuperadas del registro abren la traza como creadas
+			this.traza = new TrazaPeticiones(configuracion.traza());
+			for (int cuenta = 0; cuenta < cuentas.tamano(); cuenta++) {
+				traza.crear(cuentas.idPrivado(cuenta), cuentas.idPublico(cuenta), cuentas.saldo(cuenta), true);
+			}
+		}
+		if (configuracion.tamanoBloque() > 0) {
+			this.bloques = new ConstructorBloques(configuracion.tamanoBloque(), configuracion.esperaBloque());
+		}
+		if (configuracion.medirEsperas()) {
+			this.esperas = new Histograma[EsperasCola.OPERACIONES.length];
+			for (int i = 0; i < esperas.length; i++) {
+				esperas[i] = new Histograma();
+			}
+		}
+		if (configuracion.capacidadAnillo() > 0) {
+			this.anillo = new AnilloPeticiones(configuracion.capacidadAnillo());
+		}
+		if (configuracion.metricas()) {
+			this.metricas = new MetricasServidor(this);
+		}
+		this.petsCrear = ThreadLocal.withInitial(() -> new PetCrear(null, null, 0));
+		this.petsDisponible = ThreadLocal.withInitial(() -> new PetDisponible(null));
+		this.petsTransferir = ThreadLocal.withInitial(() -> new PetTransferir(null, null, 0));
+		this.petsAlertar = ThreadLocal.withInitial(() -> new PetAlertar(null, 0));
+		if (arrancar) {
+			arrancar();
+		}
+	}
+
+	/**
+	 * Arranca el proceso servidor de un servidor construido sin arrancarlo.
+	 */
+	void arrancar() {
 		new ProcessManager(this).start();
 	}
 
@@ -133,12 +577,17 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 	 * @param idPrivado ID privado de la cuenta
 	 * @param idPublico ID público de la cuenta
 	 * @param saldo     Saldo inicial de la cuenta
-	 * @throws IllegalArgumentException Si los parámetros son inválidos
+	 * @throws IllegalArgumentException Si los parámetros son inválidos o algún
+	 *                                  ID ocupa más de
+	 *                                  {@link RegistroEscritura#MAX_BYTES_ID}
+	 *                                  bytes
 	 */
 	public void crear(String idPrivado, String idPublico, int saldo) {
-		PetCrear peticion = new PetCrear(idPrivado, idPublico, saldo);
-		chCrear.out().write(peticion);
-		Boolean result = (Boolean) peticion.resp.in().read();
+		PetCrear peticion = peticionCrear();
+		peticion.preparar(idPrivado, idPublico, saldo);
+		peticion.enviada = marcaEnvio();
+		enviarPeticion(CREAR, peticion);
+		Boolean result = (Boolean) esperar(peticion.resp, peticion.futuro);
 		if (!result || idPrivado == null || idPublico == null || saldo < 0) {
 			throw new IllegalArgumentException();
 		}
@@ -154,16 +603,93 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 	 *                                  transferencia falla
 	 */
 	public void transferir(String idPrivado, String idPublicoDestino, int valor) {
-		PetTransferir peticion = new PetTransferir(idPrivado, idPublicoDestino, valor);
-		chTransferir.out().write(peticion);
-		Boolean result = (Boolean) peticion.resp.in().read();
+		PetTransferir peticion = peticionTransferir();
+		peticion.preparar(idPrivado, idPublicoDestino, valor);
+		peticion.enviada = marcaEnvio();
+		enviarPeticion(TRANSFERIR, peticion);
+		Boolean result = (Boolean) esperar(peticion.resp, peticion.futuro);
+		if (!result) {
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Transfiere fondos entre cuentas y devuelve el número con el que la
+	 * transferencia queda anotada en la cadena de bloques, que permite pedir
+	 * después su prueba de inclusión.
+	 *
+	 * @param idPrivado        ID privado de la cuenta de origen
+	 * @param idPublicoDestino ID público de la cuenta de destino
+	 * @param valor            Monto a transferir
+	 * @return Número de la transferencia, o -1 si no se construyen bloques
+	 * @throws IllegalArgumentException Si los parámetros son inválidos o la
+	 *                                  transferencia falla
+	 */
+	public long transferirConComprobante(String idPrivado, String idPublicoDestino, int valor) {
+		PetTransferir peticion = peticionTransferir();
+		peticion.preparar(idPrivado, idPublicoDestino, valor);
+		peticion.enviada = marcaEnvio();
+		enviarPeticion(TRANSFERIR, peticion);
+		Boolean result = (Boolean) esperar(peticion.resp, peticion.futuro);
+		if (!result) {
+			throw new IllegalArgumentException();
+		}
+		return peticion.transaccion;
+	}
+
+	/**
+	 * Realiza un lote de transferencias con un único mensaje al servidor. Las
+	 * transferencias se aplican en el orden de la lista, respetando el orden de
+	 * las transferencias pendientes de cada cuenta de origen.
+	 *
+	 * @param transferencias Transferencias a realizar
+	 * @param modo           Comportamiento ante transferencias que no pueden
+	 *                       realizarse inmediatamente
+	 * @return Resultado de cada transferencia, en el mismo orden que la lista
+	 * @throws IllegalArgumentException Si la lista o el modo son nulos
+	 */
+	public EstadoTransferencia[] transferirLote(List<Transferencia> transferencias, ModoLote modo) {
+		if (transferencias == null || modo == null) {
+			throw new IllegalArgumentException();
+		}
+		PetLote peticion = configuracion.hilosVirtuales()
+				? new PetLote(transferencias, modo, new CompletableFuture<>())
+				: new PetLote(transferencias, modo);
+		enviarPeticion(LOTE, peticion);
+		return (EstadoTransferencia[]) esperar(peticion.resp, peticion.futuro);
+	}
+
+	/**
+	 * Transfiere fondos a una cuenta que pertenece a otra partición de una
+	 * {@link BlockchainCSPParticionada}. Cuando le llega el turno en el orden
+	 * FIFO de su cuenta, esta partición reserva los fondos cargándolos sin
+	 * publicar el nuevo saldo y envía el abono a la partición de destino. Al
+	 * recibir la confirmación del abono, publica el cargo y responde. Mientras
+	 * tanto las consultas de saldo de la cuenta de origen esperan, así que
+	 * ningún cliente ve los fondos fuera de las dos cuentas ni en las dos a la
+	 * vez.
+	 *
+	 * @param idPrivado        ID privado de la cuenta de origen
+	 * @param idPublicoDestino ID público de la cuenta de destino
+	 * @param valor            Monto a transferir
+	 * @param particionDestino Partición a la que pertenece la cuenta de destino
+	 * @throws IllegalArgumentException Si los parámetros son inválidos
+	 */
+	void transferir(String idPrivado, String idPublicoDestino, int valor, BlockchainCSP particionDestino) {
+		PetTransferir peticion = peticionTransferir();
+		peticion.preparar(idPrivado, idPublicoDestino, valor);
+		peticion.particionDestino = particionDestino;
+		peticion.enviada = marcaEnvio();
+		enviarPeticion(TRANSFERIR, peticion);
+		Boolean result = (Boolean) esperar(peticion.resp, peticion.futuro);
 		if (!result) {
 			throw new IllegalArgumentException();
 		}
 	}
 
 	/**
-	 * Consulta el saldo de una cuenta en la blockchain.
+	 * Consulta el saldo de una cuenta en la blockchain. Con lectura directa se
+	 * responde en el hilo que llama, sin comunicarse con el servidor.
 	 *
 	 * @param idPrivado ID privado de la cuenta
 	 * @return El saldo disponible en la cuenta
@@ -174,13 +700,29 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 		if (idPrivado == null) {
 			throw new IllegalArgumentException();
 		}
-		PetDisponible peticion = new PetDisponible(idPrivado);
-		chDisponible.out().write(peticion);
-		Integer result = (Integer) peticion.resp.in().read();
-		if (result == null) {
+		if (configuracion.lecturaDirecta()) {
+			int saldo = cuentas.saldoPublicado(idPrivado);
+			// Una cuenta retenida tiene una transferencia a otra partición sin
+			// confirmar: la consulta espera en el servidor
+			if (saldo != TablaCuentas.RETENIDO) {
+				if (saldo < 0) {
+					throw new IllegalArgumentException();
+				}
+				if (metricas != null) {
+					metricas.registrarLecturaDirecta();
+				}
+				return saldo;
+			}
+		}
+		PetDisponible peticion = peticionDisponible();
+		peticion.idPrivado = idPrivado;
+		peticion.enviada = marcaEnvio();
+		enviarPeticion(DISPONIBLE, peticion);
+		Boolean result = (Boolean) esperar(peticion.resp, peticion.futuro);
+		if (!result) {
 			throw new IllegalArgumentException();
 		} else {
-			return result;
+			return peticion.saldo;
 		}
 	}
 
@@ -195,151 +737,1851 @@ public class BlockchainCSP implements Blockchain, CSProcess {
 		if (idPrivado == null || max < 0) {
 			throw new IllegalArgumentException();
 		}
-		PetAlertar peticion = new PetAlertar(idPrivado, max);
-		chAlertar.out().write(peticion);
-		Boolean result = (Boolean) peticion.resp.in().read();
+		PetAlertar peticion = peticionAlertar();
+		peticion.preparar(idPrivado, max);
+		peticion.enviada = marcaEnvio();
+		enviarPeticion(ALERTAR, peticion);
+		Boolean result = (Boolean) esperar(peticion.resp, peticion.futuro);
 		if (!result) {
 			throw new IllegalArgumentException();
 		}
 	}
 
 	/**
-	 * Método principal del proceso CSP. Gestiona las peticiones de creación,
-	 * consulta de saldo, transferencias y alertas.
+	 * Transfiere fondos entre cuentas esperando como mucho un plazo. Si la
+	 * transferencia sigue bloqueada por falta de fondos cuando vence, se retira
+	 * de la cola de su cuenta de origen y las transferencias posteriores de esa
+	 * cuenta pueden realizarse.
+	 *
+	 * El plazo lo vence el servidor, no el hilo que llama: el resultado es el
+	 * que decide el servidor, de modo que true significa siempre que los
+	 * fondos se han movido y false que no se moverán. La respuesta puede
+	 * llegar algo después del plazo, por ejemplo al cerrarse el grupo del
+	 * registro de escritura, sin que eso cambie el resultado.
+	 *
+	 * @param idPrivado        ID privado de la cuenta de origen
+	 * @param idPublicoDestino ID público de la cuenta de destino
+	 * @param valor            Monto a transferir
+	 * @param milisegundos     Plazo máximo de espera
+	 * @return true si se ha realizado, false si ha vencido el plazo
+	 * @throws IllegalArgumentException Si los parámetros son inválidos
 	 */
-	public void run() {
-		final int CREAR = 0;
-		final int DISPONIBLE = 1;
-		final int TRANSFERIR = 2;
-		final int ALERTAR = 3;
-
-		final Guard[] guards = new AltingChannelInput[4];
-		guards[CREAR] = chCrear.in();
-		guards[DISPONIBLE] = chDisponible.in();
-		guards[TRANSFERIR] = chTransferir.in();
-		guards[ALERTAR] = chAlertar.in();
-		Alternative servicios = new Alternative(guards);
-
-		while (true) {
-			int servicio = servicios.fairSelect();
-
-			switch (servicio) {
-				case CREAR:
-					PetCrear petCrear = (PetCrear) chCrear.in().read();
-					if (petCrear.saldo < 0 || cuentas.containsKey(petCrear.idPrivado)
-							|| identidades.containsKey(petCrear.idPublico)) {
-						petCrear.resp.out().write(false);
-					} else {
-						cuentas.put(petCrear.idPrivado, petCrear.saldo);
-						identidades.put(petCrear.idPublico, petCrear.idPrivado);
-						petCrear.resp.out().write(true);
-						desbloquearTransacciones();
-					}
-					break;
+	public boolean transferir(String idPrivado, String idPublicoDestino, int valor, long milisegundos) {
+		if (milisegundos < 0) {
+			throw new IllegalArgumentException();
+		}
+		PetTransferir peticion = configuracion.hilosVirtuales()
+				? new PetTransferir(idPrivado, idPublicoDestino, valor, new CompletableFuture<>())
+				: new PetTransferir(idPrivado, idPublicoDestino, valor);
+		peticion.vencimiento = plazo(milisegundos);
+		peticion.enviada = marcaEnvio();
+		enviarPeticion(TRANSFERIR, peticion);
+		return comprobarPlazo(esperar(peticion.resp, peticion.futuro));
+	}
 
-				case DISPONIBLE:
-					PetDisponible petDisponible = (PetDisponible) chDisponible.in().read();
-					if (!cuentas.containsKey(petDisponible.idPrivado)) {
-						petDisponible.resp.out().write(null);
-					} else {
-						petDisponible.resp.out().write(cuentas.get(petDisponible.idPrivado));
-					}
-					break;
+	/**
+	 * Establece una alerta de saldo máximo esperando como mucho un plazo. Como
+	 * en {@link #transferir(String, String, int, long)}, el plazo lo vence el
+	 * servidor y el resultado es el que él decide.
+	 *
+	 * @param idPrivado    ID privado de la cuenta
+	 * @param max          Saldo máximo para la alerta
+	 * @param milisegundos Plazo máximo de espera
+	 * @return true si el saldo ha superado el máximo, false si ha vencido el
+	 *         plazo
+	 * @throws IllegalArgumentException Si los parámetros son inválidos
+	 */
+	public boolean alertarMax(String idPrivado, int max, long milisegundos) {
+		if (idPrivado == null || max < 0 || milisegundos < 0) {
+			throw new IllegalArgumentException();
+		}
+		PetAlertar peticion = configuracion.hilosVirtuales()
+				? new PetAlertar(idPrivado, max, new CompletableFuture<>())
+				: new PetAlertar(idPrivado, max);
+		peticion.vencimiento = plazo(milisegundos);
+		peticion.enviada = marcaEnvio();
+		enviarPeticion(ALERTAR, peticion);
+		return comprobarPlazo(esperar(peticion.resp, peticion.futuro));
+	}
 
-				case TRANSFERIR:
-					PetTransferir petTransferir = (PetTransferir) chTransferir.in().read();
-					if (petTransferir.valor <= 0 || !cuentas.containsKey(petTransferir.idPrivado)
-							|| !identidades.containsKey(petTransferir.idPublicoDestino)
-							|| petTransferir.idPrivado.equals(identidades.get(petTransferir.idPublicoDestino))) {
-						petTransferir.resp.out().write(false);
-					} else {
-						if (hayTransaccionPendiente(petTransferir.idPrivado)
-								|| cuentas.get(petTransferir.idPrivado) < petTransferir.valor) {
-							petTransferir.blocked = true;
-							peticionesTransferir.add(petTransferir);
-						} else {
-							cuentas.put(petTransferir.idPrivado,
-									cuentas.get(petTransferir.idPrivado) - petTransferir.valor);
-							cuentas.put(identidades.get(petTransferir.idPublicoDestino),
-									cuentas.get(identidades.get(petTransferir.idPublicoDestino))
-											+ petTransferir.valor);
-							petTransferir.resp.out().write(true);
-							desbloquearTransacciones();
-						}
-					}
-					break;
+	/**
+	 * Calcula el instante de vencimiento de un plazo.
+	 *
+	 * @param milisegundos Plazo desde ahora
+	 * @return Instante en milisegundos, saturado a Long.MAX_VALUE
+	 */
+	private static long plazo(long milisegundos) {
+		long ahora = System.currentTimeMillis();
+		return milisegundos >= Long.MAX_VALUE - ahora ? Long.MAX_VALUE : ahora + milisegundos;
+	}
 
-				case ALERTAR:
-					PetAlertar petAlertar = (PetAlertar) chAlertar.in().read();
-					if (!cuentas.containsKey(petAlertar.idPrivado)) {
-						petAlertar.resp.out().write(false);
-					} else {
-						if (cuentas.get(petAlertar.idPrivado) > petAlertar.max) {
-							petAlertar.resp.out().write(true);
-							desbloquearTransacciones();
-						} else {
-							peticionesAlertar.add(petAlertar);
-						}
-					}
-					desbloquearTransacciones();
-					break;
-			}
+	/**
+	 * Interpreta la respuesta a una petición con plazo.
+	 *
+	 * @param result Respuesta del servidor
+	 * @return true si la petición se ha completado, false si ha vencido
+	 * @throws IllegalArgumentException Si la petición es inválida
+	 */
+	private static boolean comprobarPlazo(Object result) {
+		if (result == VENCIDA) {
+			return false;
 		}
+		comprobar(result);
+		return true;
 	}
 
 	/**
-	 * Desbloquea las transacciones pendientes si se cumplen las condiciones
-	 * necesarias.
+	 * Versión asíncrona de {@link #crear(String, String, int)}. El hilo que
+	 * llama solo espera a que el servidor reciba la petición.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param idPublico ID público de la cuenta
+	 * @param saldo     Saldo inicial de la cuenta
+	 * @return Futuro que se completa al crear la cuenta, o excepcionalmente con
+	 *         IllegalArgumentException si los parámetros son inválidos
 	 */
-	private void desbloquearTransacciones() {
-		boolean cambio = false;
-		String solicitante = "";
-
-		// Procesa las solicitudes de transferencia
-		for (int i = 0; i < peticionesTransferir.size() && !cambio; i++) {
-			PetTransferir peticion = peticionesTransferir.get(i);
-			if (solicitante.equals(peticion.idPrivado)) {
-				continue;
-			}
-			if (cuentas.get(peticion.idPrivado) >= peticion.valor) {
-				cuentas.put(peticion.idPrivado, cuentas.get(peticion.idPrivado) - peticion.valor);
-				cuentas.put(identidades.get(peticion.idPublicoDestino),
-						cuentas.get(identidades.get(peticion.idPublicoDestino)) + peticion.valor);
-				peticion.resp.out().write(true);
-				peticionesTransferir.remove(i);
-				cambio = true;
-			}
-			solicitante = peticion.idPrivado;
+	public CompletableFuture<Void> crearAsync(String idPrivado, String idPublico, int saldo) {
+		PetCrear peticion = new PetCrear(idPrivado, idPublico, saldo, new CompletableFuture<>());
+		peticion.enviada = marcaEnvio();
+		try {
+			enviarPeticion(CREAR, peticion);
+		} catch (RejectedExecutionException e) {
+			return CompletableFuture.failedFuture(e);
 		}
+		return resultado(peticion.futuro, () -> null);
+	}
 
-		// Procesa las solicitudes de alerta
-		for (int i = 0; i < peticionesAlertar.size() && !cambio; i++) {
-			PetAlertar peticion = peticionesAlertar.get(i);
-			if (cuentas.get(peticion.idPrivado) > peticion.max) {
-				peticion.resp.out().write(true);
-				peticionesAlertar.remove(i);
-				cambio = true;
-			}
+	/**
+	 * Versión asíncrona de {@link #transferir(String, String, int)}. El futuro
+	 * se completa cuando la transferencia se realiza, aunque tenga que esperar
+	 * a que la cuenta de origen tenga fondos, sin ocupar ningún hilo mientras
+	 * tanto.
+	 *
+	 * @param idPrivado        ID privado de la cuenta de origen
+	 * @param idPublicoDestino ID público de la cuenta de destino
+	 * @param valor            Monto a transferir
+	 * @return Futuro que se completa al realizar la transferencia, o
+	 *         excepcionalmente con IllegalArgumentException si los parámetros
+	 *         son inválidos. Cancelarlo retira la transferencia si sigue
+	 *         bloqueada; si el servidor ya la ha realizado, cancel devuelve
+	 *         false y el futuro se completa normalmente
+	 */
+	public CompletableFuture<Void> transferirAsync(String idPrivado, String idPublicoDestino, int valor) {
+		PetTransferir peticion = new PetTransferir(idPrivado, idPublicoDestino, valor, new CompletableFuture<>());
+		peticion.enviada = marcaEnvio();
+		try {
+			enviarPeticion(TRANSFERIR, peticion);
+		} catch (RejectedExecutionException e) {
+			return CompletableFuture.failedFuture(e);
 		}
+		return new FuturoCancelable(peticion.futuro, peticion);
+	}
 
-		// Asegura desbloquear solicitudes adicionales si hubo cambios
-		if (cambio) {
-			desbloquearTransacciones();
+	/**
+	 * Versión asíncrona de {@link #disponible(String)}.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @return Futuro con el saldo de la cuenta, o que se completa
+	 *         excepcionalmente con IllegalArgumentException si la cuenta no
+	 *         existe
+	 */
+	public CompletableFuture<Integer> disponibleAsync(String idPrivado) {
+		if (idPrivado == null) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException());
 		}
+		PetDisponible peticion = new PetDisponible(idPrivado, new CompletableFuture<>());
+		peticion.enviada = marcaEnvio();
+		try {
+			enviarPeticion(DISPONIBLE, peticion);
+		} catch (RejectedExecutionException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return resultado(peticion.futuro, () -> peticion.saldo);
 	}
 
 	/**
-	 * Verifica si hay transacciones pendientes para una cuenta específica.
+	 * Versión asíncrona de {@link #alertarMax(String, int)}. Las alertas
+	 * pendientes solo ocupan su petición en el servidor, no un hilo.
 	 *
 	 * @param idPrivado ID privado de la cuenta
-	 * @return true si hay transacciones pendientes, false en caso contrario
+	 * @param max       Saldo máximo para la alerta
+	 * @return Futuro que se completa cuando el saldo supera el máximo, o
+	 *         excepcionalmente con IllegalArgumentException si los parámetros
+	 *         son inválidos. Cancelarlo retira la alerta si sigue pendiente;
+	 *         si el servidor ya la ha disparado, cancel devuelve false y el
+	 *         futuro se completa normalmente
 	 */
-	private boolean hayTransaccionPendiente(String idPrivado) {
-		for (PetTransferir peticion : peticionesTransferir) {
-			if (peticion.idPrivado.equals(idPrivado)) {
-				return true;
-			}
+	public CompletableFuture<Void> alertarMaxAsync(String idPrivado, int max) {
+		if (idPrivado == null || max < 0) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException());
+		}
+		PetAlertar peticion = new PetAlertar(idPrivado, max, new CompletableFuture<>());
+		peticion.enviada = marcaEnvio();
+		try {
+			enviarPeticion(ALERTAR, peticion);
+		} catch (RejectedExecutionException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return new FuturoCancelable(peticion.futuro, peticion);
+	}
+
+	/**
+	 * Futuro devuelto a un cliente por una transferencia o una alerta
+	 * asíncrona, que al cancelarse retira su petición del servidor.
+	 *
+	 * Quien decide es el servidor: cancel envía la cancelación por un canal
+	 * con buffer y espera su respuesta. Si la petición seguía pendiente, el
+	 * servidor la retira y la responde como vencida, y el futuro queda
+	 * cancelado; si ya la había realizado, el futuro se completa normalmente
+	 * y cancel devuelve false. Así un futuro cancelado nunca corresponde a
+	 * una transferencia que haya movido fondos. La espera no depende de los
+	 * fondos, solo de que el servidor atienda la cancelación y, con registro
+	 * de escritura, de que se cierre el grupo en curso.
+	 *
+	 * Con transportes de peticiones con buffer, la cancelación puede llegar al
+	 * servidor antes que la propia petición. Por eso antes de enviarla se
+	 * marca la petición, y el servidor responde como vencida, sin realizarla,
+	 * una petición que ya está marcada al leerla.
+	 */
+	private final class FuturoCancelable extends CompletableFuture<Void> {
+		private final CompletableFuture<Object> respuesta;
+		private final Object peticion;
+
+		/**
+		 * Constructor del futuro, que se completa en los hilos de entregas con
+		 * la respuesta del servidor.
+		 *
+		 * @param respuesta Futuro que completa el servidor con su respuesta
+		 * @param peticion  Petición de transferencia o de alerta
+		 */
+		FuturoCancelable(CompletableFuture<Object> respuesta, Object peticion) {
+			this.respuesta = respuesta;
+			this.peticion = peticion;
+			respuesta.whenCompleteAsync((result, error) -> completar(this, result, error, () -> null), ENTREGAS);
 		}
-		return false;
+
+		@Override
+		public boolean cancel(boolean interrumpir) {
+			if (!respuesta.isDone()) {
+				if (peticion instanceof PetTransferir) {
+					((PetTransferir) peticion).cancelada = true;
+				} else {
+					((PetAlertar) peticion).cancelada = true;
+				}
+				salidas[CANCELAR].write(peticion);
+			}
+			completar(this, respuesta.join(), null, () -> null);
+			return isCancelled();
+		}
+	}
+
+	// Peticiones de las llamadas bloqueantes. Con hilos virtuales cada llamada
+	// crea su petición con un futuro, que el hilo espera sin bloquear un
+	// monitor y sin mantener una petición ni un canal por hilo.
+	private PetCrear peticionCrear() {
+		return configuracion.hilosVirtuales() ? new PetCrear(null, null, 0, new CompletableFuture<>()) : petsCrear.get();
+	}
+
+	private PetDisponible peticionDisponible() {
+		return configuracion.hilosVirtuales() ? new PetDisponible(null, new CompletableFuture<>())
+				: petsDisponible.get();
+	}
+
+	private PetTransferir peticionTransferir() {
+		return configuracion.hilosVirtuales() ? new PetTransferir(null, null, 0, new CompletableFuture<>())
+				: petsTransferir.get();
+	}
+
+	private PetAlertar peticionAlertar() {
+		return configuracion.hilosVirtuales() ? new PetAlertar(null, 0, new CompletableFuture<>()) : petsAlertar.get();
+	}
+
+	/**
+	 * Espera la respuesta del servidor a una llamada bloqueante.
+	 *
+	 * @param resp   Canal de respuesta de la petición
+	 * @param futuro Futuro de la petición con hilos virtuales, o null
+	 * @return Respuesta del servidor
+	 */
+	private static Object esperar(CanalRespuesta resp, CompletableFuture<Object> futuro) {
+		return futuro != null ? futuro.join() : resp.entrada.read();
+	}
+
+	/**
+	 * Crea el futuro que se devuelve al cliente de una petición asíncrona. Se
+	 * completa en los hilos de entregas, fuera del proceso servidor, de modo
+	 * que las acciones que encadene el cliente nunca lo detienen. Si la
+	 * petición falla, se completa directamente con IllegalArgumentException,
+	 * sin envolverla en CompletionException.
+	 *
+	 * @param <T>       Tipo del resultado
+	 * @param respuesta Futuro que completa el servidor con su respuesta
+	 * @param valor     Resultado de la petición una vez realizada
+	 * @return Futuro del cliente
+	 */
+	private static <T> CompletableFuture<T> resultado(CompletableFuture<Object> respuesta, Supplier<T> valor) {
+		CompletableFuture<T> resultado = new CompletableFuture<>();
+		respuesta.whenCompleteAsync((result, error) -> completar(resultado, result, error, valor), ENTREGAS);
+		return resultado;
+	}
+
+	/**
+	 * Completa el futuro de un cliente con la respuesta del servidor. Una
+	 * petición retirada por su cancelación lo deja cancelado.
+	 *
+	 * @param <T>       Tipo del resultado
+	 * @param resultado Futuro del cliente
+	 * @param result    Respuesta del servidor
+	 * @param error     Error del futuro de la respuesta, o null
+	 * @param valor     Resultado de la petición una vez realizada
+	 */
+	private static <T> void completar(CompletableFuture<T> resultado, Object result, Throwable error,
+			Supplier<T> valor) {
+		if (error != null) {
+			resultado.completeExceptionally(error);
+		} else if (result == VENCIDA) {
+			resultado.completeExceptionally(new CancellationException());
+		} else if (result != Boolean.TRUE) {
+			resultado.completeExceptionally(new IllegalArgumentException());
+		} else {
+			resultado.complete(valor.get());
+		}
+	}
+
+	/**
+	 * Comprueba la respuesta del servidor a una petición.
+	 *
+	 * @param result Respuesta del servidor
+	 * @throws IllegalArgumentException Si la petición ha fallado
+	 */
+	private static void comprobar(Object result) {
+		if (result != Boolean.TRUE) {
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Devuelve la altura de la cadena de bloques: el número de bloques sellados
+	 * cuyo hash ya se ha calculado. Se responde en el hilo que llama.
+	 *
+	 * @return Número de bloques encadenados, 0 si no se construyen bloques
+	 */
+	public long altura() {
+		Bloque ultimo = bloques == null ? null : bloques.ultimo();
+		return ultimo == null ? 0 : ultimo.altura + 1;
+	}
+
+	/**
+	 * Devuelve el hash SHA-256 del último bloque encadenado. Se responde en el
+	 * hilo que llama.
+	 *
+	 * @return Copia del hash, o null si aún no hay bloques
+	 */
+	public byte[] ultimoHash() {
+		Bloque ultimo = bloques == null ? null : bloques.ultimo();
+		return ultimo == null ? null : ultimo.hash.clone();
+	}
+
+	/**
+	 * Devuelve la prueba de inclusión de una transferencia en su bloque. Se
+	 * responde en el hilo que llama; las pruebas de los bloques recientes solo
+	 * recalculan el subárbol de la transferencia.
+	 *
+	 * @param transaccion Número de la transferencia, devuelto por
+	 *                    {@link #transferirConComprobante(String, String, int)}
+	 * @return Prueba de inclusión, o null si la transferencia aún no está en un
+	 *         bloque encadenado
+	 * @throws IllegalArgumentException Si no se construyen bloques o el número
+	 *                                  es negativo
+	 */
+	public PruebaInclusion pruebaInclusion(long transaccion) {
+		if (bloques == null || transaccion < 0) {
+			throw new IllegalArgumentException();
+		}
+		return bloques.prueba(transaccion);
+	}
+
+	/**
+	 * Método principal del proceso CSP. Gestiona las peticiones de creación,
+	 * consulta de saldo, transferencias y alertas.
+	 */
+	public void run() {
+		entradas = new AltingChannelInput[] { chCrear.in(), chDisponible.in(), chTransferir.in(), chAlertar.in(),
+				chLote.in(), chAbonar.in(), chCancelar.in() };
+		final Guard[] guards = new Guard[SALTO + 1];
+		System.arraycopy(entradas, 0, guards, 0, entradas.length);
+		final CSTimer temporizador = new CSTimer();
+		guards[TEMPORIZADOR] = temporizador;
+		guards[TIMBRE] = anillo != null ? anillo.timbre() : new Skip();
+		guards[SALTO] = new Skip();
+		final boolean[] activas = { true, true, true, true, true, true, true, false, anillo != null, false };
+		Alternative servicios = new Alternative(guards);
+		if (configuracion.seleccion() == ConfiguracionCSP.Seleccion.PONDERADA) {
+			prepararPesos();
+		}
+
+		while (true) {
+			if (puntoControl != null) {
+				avanzarPuntoControl();
+			}
+			long alarma = Long.MAX_VALUE;
+			if (bloques != null) {
+				alarma = gestionarBloques();
+			}
+			if (!plazosTransferir.isEmpty() || !plazosAlertar.isEmpty()) {
+				alarma = Math.min(alarma, vencerPlazos());
+			}
+			if (registro != null) {
+				alarma = Math.min(alarma, gestionarGrupo(temporizador.read()));
+			}
+			activas[TEMPORIZADOR] = alarma != Long.MAX_VALUE;
+			if (activas[TEMPORIZADOR]) {
+				temporizador.setAlarm(alarma);
+			}
+			if (traza != null && !hayPeticionesPendientes()) {
+				traza.vaciar();
+			}
+			if (anillo != null) {
+				activas[SALTO] = anillo.prepararEspera();
+			}
+			int servicio = seleccionar(servicios, activas);
+			if (anillo != null) {
+				anillo.terminarEspera();
+			}
+			// Un timbre sin peticiones publicadas cuenta como una atendida
+			int atendidas = Math.max(atender(servicio), 1);
+			if (servicio != TEMPORIZADOR) {
+				if (configuracion.seleccion() == ConfiguracionCSP.Seleccion.VACIADO && servicio < TEMPORIZADOR) {
+					while (atendidas < configuracion.vaciadoMaximo() && entradas[servicio].pending()) {
+						if (configuracion.rafagaMaxima() == 1) {
+							// Sin ráfagas, cada petición libera antes de leer la siguiente
+							liberarPendientes();
+						}
+						atendidas += atender(servicio);
+					}
+				}
+				// Ráfaga: las liberaciones se aplazan hasta vaciar los canales
+				while (atendidas < configuracion.rafagaMaxima() && (servicio = seleccionarListo()) >= 0) {
+					atendidas += atender(servicio);
+				}
+			}
+			liberarPendientes();
+		}
+	}
+
+	/**
+	 * Hace la pasada de liberación que hayan dejado pendiente las peticiones
+	 * atendidas desde la anterior.
+	 */
+	private void liberarPendientes() {
+		if (desbloqueoPendiente) {
+			desbloqueoPendiente = false;
+			ultimoDesbloqueo = desbloquearTransacciones();
+		}
+	}
+
+	/**
+	 * Elige el siguiente servicio según la política de selección configurada.
+	 * Si ningún canal tiene peticiones, espera a la primera que llegue.
+	 *
+	 * @param servicios Alternativa sobre todas las guardas del servidor
+	 * @param activas   Guardas activas
+	 * @return Índice del servicio elegido
+	 */
+	private int seleccionar(Alternative servicios, boolean[] activas) {
+		switch (configuracion.seleccion()) {
+			case PRIORIDAD_LECTURAS:
+				if (entradas[DISPONIBLE].pending()) {
+					return DISPONIBLE;
+				}
+				break;
+			case PONDERADA:
+				int servicio = seleccionarPonderado();
+				if (servicio >= 0) {
+					return servicio;
+				}
+				break;
+			default:
+				break;
+		}
+		return servicios.fairSelect(activas);
+	}
+
+	/**
+	 * Elige, sin esperar, el siguiente canal con peticiones dentro de una
+	 * ráfaga. Respeta la prioridad de las lecturas y los pesos; con las demás
+	 * políticas recorre los canales por turnos. El anillo, si lo hay, es un
+	 * turno más: los pesos no lo alcanzan, así que con la selección ponderada
+	 * solo se atiende cuando los canales están vacíos.
+	 *
+	 * @return Índice del servicio elegido, o -1 si ni los canales ni el anillo
+	 *         tienen peticiones
+	 */
+	private int seleccionarListo() {
+		switch (configuracion.seleccion()) {
+			case PRIORIDAD_LECTURAS:
+				if (entradas[DISPONIBLE].pending()) {
+					return DISPONIBLE;
+				}
+				break;
+			case PONDERADA:
+				int servicio = seleccionarPonderado();
+				if (servicio >= 0 || anillo == null) {
+					return servicio;
+				}
+				return anillo.hayPeticiones() ? SALTO : -1;
+			default:
+				break;
+		}
+		int turnos = anillo != null ? entradas.length + 1 : entradas.length;
+		for (int i = 0; i < turnos; i++) {
+			int turno = siguienteCanal;
+			siguienteCanal = siguienteCanal + 1 == turnos ? 0 : siguienteCanal + 1;
+			if (turno == entradas.length) {
+				if (anillo.hayPeticiones()) {
+					return SALTO;
+				}
+			} else if (entradas[turno].pending()) {
+				return turno;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Reparto ponderado por turnos suavizado: cada canal con peticiones suma su
+	 * peso a su crédito, se elige el de mayor crédito y se le descuenta la suma
+	 * de los pesos en juego. Así los turnos se intercalan en proporción a los
+	 * pesos en lugar de agruparse.
+	 *
+	 * @return Índice del servicio elegido, o -1 si ningún canal tiene
+	 *         peticiones
+	 */
+	private int seleccionarPonderado() {
+		int elegido = -1;
+		int total = 0;
+		for (int servicio = 0; servicio < entradas.length; servicio++) {
+			if (entradas[servicio].pending()) {
+				creditos[servicio] += pesos[servicio];
+				total += pesos[servicio];
+				if (elegido < 0 || creditos[servicio] > creditos[elegido]) {
+					elegido = servicio;
+				}
+			}
+		}
+		if (elegido >= 0) {
+			creditos[elegido] -= total;
+		}
+		return elegido;
+	}
+
+	/**
+	 * Calcula los pesos de todos los canales de entrada. Los lotes comparten el
+	 * peso de las transferencias, y los abonos y las cancelaciones, que vienen
+	 * del propio sistema, pesan tanto como todas las operaciones juntas.
+	 */
+	private void prepararPesos() {
+		int[] configurados = configuracion.pesos();
+		pesos = new int[entradas.length];
+		int suma = 0;
+		for (int servicio = CREAR; servicio <= ALERTAR; servicio++) {
+			pesos[servicio] = configurados[servicio];
+			suma += configurados[servicio];
+		}
+		pesos[LOTE] = pesos[TRANSFERIR];
+		pesos[ABONAR] = suma;
+		pesos[CANCELAR] = suma;
+		creditos = new int[entradas.length];
+	}
+
+	/**
+	 * Lee y atiende una petición del servicio elegido. El timbre y el salto
+	 * atienden un lote de peticiones del anillo.
+	 *
+	 * @param servicio Índice del servicio
+	 * @return Número de peticiones atendidas
+	 */
+	private int atender(int servicio) {
+		if (servicio == TIMBRE || servicio == SALTO) {
+			if (servicio == TIMBRE) {
+				anillo.timbre().read();
+			}
+			return atenderAnillo();
+		} else if (servicio == TEMPORIZADOR) {
+			procesar(servicio, null);
+		} else {
+			Object peticion = entradas[servicio].read();
+			if (acotados != null && servicio <= LOTE) {
+				acotados.leida(servicio);
+			}
+			procesar(servicio, peticion);
+		}
+		return 1;
+	}
+
+	/**
+	 * Atiende, en orden de publicación, las peticiones que ya están en el
+	 * anillo, hasta {@value #LOTE_ANILLO}. Las posiciones se devuelven a los
+	 * productores al terminar el lote.
+	 *
+	 * @return Número de peticiones atendidas
+	 */
+	private int atenderAnillo() {
+		Object peticion;
+		int atendidas = 0;
+		while (atendidas < LOTE_ANILLO && (peticion = anillo.tomar()) != null) {
+			procesar(servicio(peticion), peticion);
+			atendidas++;
+		}
+		anillo.liberar();
+		return atendidas;
+	}
+
+	/**
+	 * Devuelve el servicio que corresponde a una petición del anillo.
+	 *
+	 * @param peticion Petición de un cliente
+	 * @return Índice del servicio
+	 */
+	private static int servicio(Object peticion) {
+		if (peticion instanceof PetTransferir) {
+			return TRANSFERIR;
+		} else if (peticion instanceof PetDisponible) {
+			return DISPONIBLE;
+		} else if (peticion instanceof PetAlertar) {
+			return ALERTAR;
+		} else if (peticion instanceof PetCrear) {
+			return CREAR;
+		}
+		return LOTE;
+	}
+
+	/**
+	 * Atiende una petición ya leída.
+	 *
+	 * @param servicio Índice del servicio
+	 * @param peticion Petición, o null si vence el temporizador
+	 */
+	private void procesar(int servicio, Object peticion) {
+		long inicio = metricas == null ? 0 : System.nanoTime();
+		peticionesGrupo++;
+
+		switch (servicio) {
+			case CREAR:
+				PetCrear petCrear = (PetCrear) peticion;
+				registrarEspera(CREAR, petCrear.enviada);
+				if (petCrear.saldo < 0 || petCrear.idPrivado == null || petCrear.idPublico == null
+						|| !RegistroEscritura.idAdmisible(petCrear.idPrivado)
+						|| !RegistroEscritura.idAdmisible(petCrear.idPublico)
+						|| cuentas.buscarPrivado(petCrear.idPrivado) >= 0
+						|| cuentas.buscarPublico(petCrear.idPublico) >= 0) {
+					if (traza != null) {
+						traza.crear(petCrear.idPrivado, petCrear.idPublico, petCrear.saldo, false);
+					}
+					responder(petCrear.resp, petCrear.futuro, false);
+				} else {
+					cuentas.crear(petCrear.idPrivado, petCrear.idPublico, petCrear.saldo);
+					peticionesTransferir.add(null);
+					peticionesAlertar.add(null);
+					if (registro != null) {
+						registro.crear(petCrear.idPrivado, petCrear.idPublico, petCrear.saldo);
+					}
+					if (traza != null) {
+						traza.crear(petCrear.idPrivado, petCrear.idPublico, petCrear.saldo, true);
+					}
+					responder(petCrear.resp, petCrear.futuro, true);
+				}
+				break;
+
+			case DISPONIBLE:
+				PetDisponible petDisponible = (PetDisponible) peticion;
+				registrarEspera(DISPONIBLE, petDisponible.enviada);
+				int cuenta = cuentas.buscarPrivado(petDisponible.idPrivado);
+				if (cuenta >= 0 && retenida(cuenta)) {
+					lecturasRetenidas.computeIfAbsent(cuenta, clave -> new ArrayList<>()).add(petDisponible);
+					break;
+				}
+				if (traza != null) {
+					traza.disponible(petDisponible.idPrivado, cuenta < 0 ? -1 : cuentas.saldo(cuenta));
+				}
+				if (cuenta < 0) {
+					responder(petDisponible.resp, petDisponible.futuro, false);
+				} else {
+					petDisponible.saldo = cuentas.saldo(cuenta);
+					responder(petDisponible.resp, petDisponible.futuro, true);
+				}
+				break;
+
+			case TRANSFERIR:
+				PetTransferir petTransferir = (PetTransferir) peticion;
+				registrarEspera(TRANSFERIR, petTransferir.enviada);
+				if (!esTransferenciaValida(petTransferir)) {
+					anotarTransferencia(petTransferir, TrazaPeticiones.INVALIDA);
+					responder(petTransferir.resp, petTransferir.futuro, false);
+				} else if (petTransferir.cancelada) {
+					anotarTransferencia(petTransferir, TrazaPeticiones.CANCELADA);
+					responder(petTransferir.resp, petTransferir.futuro, VENCIDA);
+				} else {
+					if (!puedeRealizarse(petTransferir)) {
+						anotarTransferencia(petTransferir, TrazaPeticiones.BLOQUEADA);
+						encolarTransferencia(petTransferir);
+					} else {
+						anotarTransferencia(petTransferir, TrazaPeticiones.REALIZADA);
+						realizarTransferencia(petTransferir);
+						responderTransferencia(petTransferir);
+						desbloqueoPendiente = true;
+					}
+				}
+				break;
+
+			case ALERTAR:
+				PetAlertar petAlertar = (PetAlertar) peticion;
+				registrarEspera(ALERTAR, petAlertar.enviada);
+				petAlertar.cuenta = cuentas.buscarPrivado(petAlertar.idPrivado);
+				if (petAlertar.cuenta < 0) {
+					anotarAlerta(petAlertar, TrazaPeticiones.INVALIDA);
+					responder(petAlertar.resp, petAlertar.futuro, false);
+				} else if (petAlertar.cancelada) {
+					anotarAlerta(petAlertar, TrazaPeticiones.CANCELADA);
+					responder(petAlertar.resp, petAlertar.futuro, VENCIDA);
+				} else {
+					if (cuentas.saldo(petAlertar.cuenta) > petAlertar.max) {
+						anotarAlerta(petAlertar, TrazaPeticiones.REALIZADA);
+						responder(petAlertar.resp, petAlertar.futuro, true);
+					} else {
+						anotarAlerta(petAlertar, TrazaPeticiones.BLOQUEADA);
+						encolarAlerta(petAlertar);
+					}
+				}
+				break;
+
+			case LOTE:
+				PetLote petLote = (PetLote) peticion;
+				procesarLote(petLote);
+				if (traza != null) {
+					petLote.numTraza = traza.lote(petLote.transferencias, petLote.modo, petLote.resultados);
+				}
+				desbloqueoPendiente = true;
+				break;
+
+			case ABONAR:
+				PetTransferir petAbonar = (PetTransferir) peticion;
+				if (petAbonar.particionDestino == this) {
+					abonarReserva(petAbonar);
+				} else {
+					confirmarReserva(petAbonar);
+				}
+				desbloqueoPendiente = true;
+				break;
+
+			case CANCELAR:
+				Object cancelada = peticion;
+				if (cancelada instanceof PetTransferir) {
+					if (traza != null) {
+						traza.cancelar(((PetTransferir) cancelada).numTraza);
+					}
+					cancelarTransferencia((PetTransferir) cancelada);
+				} else {
+					if (traza != null) {
+						traza.cancelar(((PetAlertar) cancelada).numTraza);
+					}
+					cancelarAlerta((PetAlertar) cancelada);
+				}
+				desbloqueoPendiente = true;
+				break;
+
+			case TEMPORIZADOR:
+				// Vence la espera del grupo, del bloque o de un plazo; se
+				// atienden al volver al bucle
+				peticionesGrupo--;
+				break;
+		}
+		if (metricas != null) {
+			metricas.registrarServicio(servicio, System.nanoTime() - inicio);
+		}
+	}
+
+	/**
+	 * Envía la petición de un cliente por su canal o, si se usa, por el anillo
+	 * de peticiones. Con canales acotados, la petición pasa antes por el
+	 * control de admisión.
+	 *
+	 * @param servicio Servicio de la petición
+	 * @param peticion Petición a enviar
+	 * @throws RejectedExecutionException Si el canal está lleno y la política
+	 *                                    de desborde rechaza la petición
+	 */
+	private void enviarPeticion(int servicio, Object peticion) {
+		if (anillo != null) {
+			anillo.publicar(peticion);
+			return;
+		}
+		if (acotados != null) {
+			acotados.admitir(servicio);
+		}
+		salidas[servicio].write(peticion);
+	}
+
+	/**
+	 * Devuelve la marca de tiempo con la que un cliente envía una petición.
+	 *
+	 * @return Instante en nanosegundos, o 0 si no se miden las esperas
+	 */
+	private long marcaEnvio() {
+		return esperas == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Anota en la traza, si se usa, una petición de transferencia y su
+	 * resultado inmediato.
+	 *
+	 * @param peticion  Petición de transferencia
+	 * @param resultado Resultado de la petición en la traza
+	 */
+	private void anotarTransferencia(PetTransferir peticion, byte resultado) {
+		if (traza != null) {
+			peticion.numTraza = traza.transferir(peticion.idPrivado, peticion.idPublicoDestino, peticion.valor,
+					peticion.particionDestino != null, resultado);
+		}
+	}
+
+	/**
+	 * Anota en la traza, si se usa, una petición de alerta y su resultado
+	 * inmediato.
+	 *
+	 * @param peticion  Petición de alerta
+	 * @param resultado Resultado de la petición en la traza
+	 */
+	private void anotarAlerta(PetAlertar peticion, byte resultado) {
+		if (traza != null) {
+			peticion.numTraza = traza.alertar(peticion.idPrivado, peticion.max, resultado);
+		}
+	}
+
+	/**
+	 * Registra cuánto ha esperado en su canal una petición recién leída.
+	 *
+	 * @param operacion Servicio de la petición, de CREAR a ALERTAR
+	 * @param enviada   Marca de tiempo de envío de la petición
+	 */
+	private void registrarEspera(int operacion, long enviada) {
+		if (esperas != null) {
+			Histograma histograma = esperas[operacion];
+			synchronized (histograma) {
+				histograma.registrar(System.nanoTime() - enviada);
+			}
+		}
+	}
+
+	/**
+	 * Devuelve una copia de las esperas en cola medidas hasta ahora. Se
+	 * responde en el hilo que llama.
+	 *
+	 * @return Esperas por operación
+	 * @throws IllegalArgumentException Si no se miden las esperas
+	 */
+	public EsperasCola esperasCola() {
+		if (esperas == null) {
+			throw new IllegalArgumentException();
+		}
+		Histograma[] copias = new Histograma[esperas.length];
+		for (int i = 0; i < esperas.length; i++) {
+			synchronized (esperas[i]) {
+				copias[i] = esperas[i].copia();
+			}
+		}
+		return new EsperasCola(copias);
+	}
+
+	/**
+	 * Devuelve una copia de las métricas del servidor. Se responde en el hilo
+	 * que llama.
+	 *
+	 * @return Métricas del servidor
+	 * @throws IllegalStateException Si no se recogen métricas
+	 */
+	public MetricasCSP metricas() {
+		if (metricas == null) {
+			throw new IllegalStateException();
+		}
+		return metricas.copia();
+	}
+
+	/**
+	 * Publica las métricas del servidor como MBean en el servidor de MBeans de
+	 * la plataforma, con el nombre cc.blockchain:type=BlockchainCSP,id=N. El
+	 * MBean mantiene vivo al servidor: hay que retirarlo con
+	 * {@link #retirarMetricas()} cuando deje de usarse.
+	 *
+	 * @throws IllegalStateException Si no se recogen métricas, ya están
+	 *                               publicadas o no puede registrarse el MBean
+	 */
+	public void publicarMetricas() {
+		if (metricas == null) {
+			throw new IllegalStateException();
+		}
+		metricas.publicar();
+	}
+
+	/**
+	 * Retira el MBean de las métricas publicado con
+	 * {@link #publicarMetricas()}. No hace nada si no están publicadas.
+	 *
+	 * @throws IllegalStateException Si no puede quitarse el registro del MBean
+	 */
+	public void retirarMetricas() {
+		if (metricas != null) {
+			metricas.retirar();
+		}
+	}
+
+	CanalesAcotados canalesAcotados() {
+		return acotados;
+	}
+
+	boolean medirEsperas() {
+		return esperas != null;
+	}
+
+	/**
+	 * Vacía los histogramas de esperas en cola, si se miden.
+	 */
+	void reiniciarEsperas() {
+		if (esperas != null) {
+			for (Histograma histograma : esperas) {
+				synchronized (histograma) {
+					histograma.reiniciar();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Responde a una petición por su canal o, si es asíncrona, completando su
+	 * futuro. Con registro de escritura, la respuesta se difiere hasta que se
+	 * cierre el grupo en curso.
+	 *
+	 * @param resp   Canal de respuesta de la petición
+	 * @param futuro Futuro de la petición asíncrona, o null
+	 * @param valor  Respuesta
+	 */
+	private void responder(CanalRespuesta resp, CompletableFuture<Object> futuro, Object valor) {
+		enviar(futuro != null ? futuro : resp.salida, valor);
+	}
+
+	/**
+	 * Envía un mensaje a un cliente o a otra partición. Con registro de
+	 * escritura, el envío se difiere hasta que se cierre el grupo en curso, de
+	 * modo que nadie observa un estado que no esté ya en disco.
+	 *
+	 * @param destino Canal de destino o futuro a completar
+	 * @param mensaje Mensaje a enviar
+	 */
+	private void enviar(Object destino, Object mensaje) {
+		if (registro == null) {
+			entregar(destino, mensaje);
+			return;
+		}
+		if (destinosDiferidos.isEmpty()) {
+			inicioGrupo = System.currentTimeMillis();
+		}
+		destinosDiferidos.add(destino);
+		mensajesDiferidos.add(mensaje);
+	}
+
+	/**
+	 * Sella el bloque abierto si ha alcanzado su tamaño o su tiempo máximo.
+	 * Con registro de escritura, antes se cierra el grupo en curso para que
+	 * ningún bloque contenga transferencias que no estén en disco.
+	 *
+	 * @return Instante en que vence el bloque abierto, o Long.MAX_VALUE si no
+	 *         hay que esperarlo
+	 */
+	private long gestionarBloques() {
+		long vencimiento = bloques.vencimiento();
+		if (!bloques.lleno() && System.currentTimeMillis() < vencimiento) {
+			return vencimiento;
+		}
+		if (registro != null && !destinosDiferidos.isEmpty()) {
+			cerrarGrupo();
+		}
+		bloques.sellar();
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Escribe un mensaje en un canal o completa un futuro con él.
+	 *
+	 * @param destino Canal de destino o futuro a completar
+	 * @param mensaje Mensaje a entregar
+	 */
+	@SuppressWarnings("unchecked")
+	private static void entregar(Object destino, Object mensaje) {
+		if (destino instanceof CompletableFuture) {
+			((CompletableFuture<Object>) destino).complete(mensaje);
+		} else {
+			((ChannelOutput) destino).write(mensaje);
+		}
+	}
+
+	/**
+	 * Decide si cerrar el grupo de peticiones en curso. El grupo se cierra
+	 * cuando alcanza su tamaño máximo, o cuando no quedan peticiones listas en
+	 * los canales y ha vencido su tiempo de espera; si aún no ha vencido, el
+	 * temporizador debe despertar al servidor para no esperar indefinidamente.
+	 *
+	 * @param ahora Instante actual en milisegundos
+	 * @return Instante en que vence el grupo, o Long.MAX_VALUE si no hay que
+	 *         esperarlo
+	 */
+	private long gestionarGrupo(long ahora) {
+		if (destinosDiferidos.isEmpty()) {
+			peticionesGrupo = 0;
+			return Long.MAX_VALUE;
+		}
+		long vencimiento = inicioGrupo + configuracion.esperaGrupo();
+		boolean hayPendientes = hayPeticionesPendientes();
+		if (peticionesGrupo >= configuracion.grupoMaximo() || (!hayPendientes && ahora >= vencimiento)) {
+			cerrarGrupo();
+			return Long.MAX_VALUE;
+		}
+		return hayPendientes ? Long.MAX_VALUE : vencimiento;
+	}
+
+	/**
+	 * Lleva a disco el grupo en curso con una única sincronización y envía
+	 * después todas las respuestas diferidas.
+	 */
+	private void cerrarGrupo() {
+		registro.sincronizar();
+		for (int i = 0; i < destinosDiferidos.size(); i++) {
+			entregar(destinosDiferidos.get(i), mensajesDiferidos.get(i));
+		}
+		destinosDiferidos.clear();
+		mensajesDiferidos.clear();
+		peticionesGrupo = 0;
+	}
+
+	/**
+	 * Comprueba si hay alguna petición esperando en los canales de entrada.
+	 *
+	 * @return true si algún canal tiene una petición lista
+	 */
+	private boolean hayPeticionesPendientes() {
+		for (AltingChannelInput entrada : entradas) {
+			if (entrada.pending()) {
+				return true;
+			}
+		}
+		return anillo != null && anillo.hayPeticiones();
+	}
+
+	/**
+	 * Avanza el punto de control en curso o inicia uno nuevo si ha pasado el
+	 * intervalo. Copia un bloque de saldos por petición atendida y sigue
+	 * copiando mientras no haya peticiones esperando; al terminar la copia, el
+	 * fichero se escribe en segundo plano.
+	 */
+	private void avanzarPuntoControl() {
+		if (instantanea == null) {
+			if (System.currentTimeMillis() < siguientePuntoControl || puntoControl.escribiendo()) {
+				return;
+			}
+			instantanea = new PuntoControl.Instantanea();
+			instantanea.posicionRegistro = registro.marcar();
+			numBloques = cuentas.iniciarInstantanea(instantanea);
+			instantanea.particiones = estadoParticiones.copiar();
+			siguienteBloque = 0;
+		}
+		do {
+			if (siguienteBloque == numBloques) {
+				cuentas.terminarInstantanea();
+				puntoControl.escribir(instantanea);
+				instantanea = null;
+				siguientePuntoControl = System.currentTimeMillis() + configuracion.intervaloPuntoControl();
+				return;
+			}
+			copiarBloque(siguienteBloque++);
+		} while (!hayPeticionesPendientes());
+	}
+
+	/**
+	 * Copia un bloque de saldos en la instantánea en curso y anota las
+	 * peticiones pendientes de sus cuentas. Las peticiones pendientes se anotan
+	 * al copiar el bloque, así que son solo orientativas.
+	 *
+	 * @param bloque Índice del bloque
+	 */
+	private void copiarBloque(int bloque) {
+		cuentas.copiarBloque(bloque);
+		int inicio = bloque << TablaCuentas.BITS_BLOQUE;
+		int fin = Math.min(inicio + (1 << TablaCuentas.BITS_BLOQUE), instantanea.numCuentas);
+		for (int cuenta = inicio; cuenta < fin; cuenta++) {
+			ArrayDeque<PetTransferir> cola = peticionesTransferir.get(cuenta);
+			if (cola != null) {
+				for (PetTransferir peticion : cola) {
+					// Las reservas ya van aparte en la instantánea
+					if (peticion.reserva == null) {
+						instantanea.anotarTransferencia(cuenta,
+								peticion.particionDestino == null ? peticion.destino : -1, peticion.valor);
+					}
+				}
+			}
+			TreeMap<Integer, ArrayDeque<PetAlertar>> alertas = peticionesAlertar.get(cuenta);
+			if (alertas != null) {
+				for (ArrayDeque<PetAlertar> grupo : alertas.values()) {
+					for (PetAlertar peticion : grupo) {
+						instantanea.anotarAlerta(cuenta, peticion.max);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reconstruye las cuentas a partir del registro de escritura. Se llama en
+	 * el constructor, antes de arrancar el proceso servidor.
+	 *
+	 * @param ruta  Ruta del fichero de registro
+	 * @param desde Posición desde la que reproducir, tras el último punto de
+	 *              control cargado
+	 */
+	private void recuperar(Path ruta, long desde) {
+		RegistroEscritura.recuperar(ruta, desde, new RegistroEscritura.Lector() {
+			public void crear(String idPrivado, String idPublico, int saldo) {
+				cuentas.crear(idPrivado, idPublico, saldo);
+				peticionesTransferir.add(null);
+				peticionesAlertar.add(null);
+			}
+
+			public void transferir(int origen, int destino, int valor) {
+				cuentas.ajustar(origen, -valor);
+				cuentas.ajustar(destino, valor);
+			}
+
+			public void ajustar(int cuenta, int cantidad) {
+				cuentas.ajustar(cuenta, cantidad);
+			}
+
+			public void reservar(EstadoParticiones.Reserva reserva) {
+				cuentas.ajustar(reserva.origen, -reserva.valor);
+				estadoParticiones.reservar(reserva);
+			}
+
+			public void confirmar(int particion, long secuencia) {
+				estadoParticiones.confirmar(particion, secuencia);
+			}
+
+			public void abonar(int cuenta, int valor, int particion, long secuencia) {
+				cuentas.ajustar(cuenta, valor);
+				if (particion >= 0) {
+					estadoParticiones.abonar(particion, secuencia);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reproduce una traza de peticiones en el hilo que llama, tan rápido como
+	 * puede, atendiendo cada petición y cada pasada de desbloqueo en el orden
+	 * anotado. Los vencimientos anotados se reproducen como cancelaciones, así
+	 * que el resultado no depende del tiempo. Si este servidor también anota
+	 * su traza, una reproducción fiel la escribe idéntica a la original, y la
+	 * cierra al terminar.
+	 *
+	 * Solo puede llamarse en un servidor creado sin arrancar su proceso.
+	 *
+	 * @param ruta Ruta del fichero de traza
+	 * @return Número de peticiones reproducidas
+	 * @throws IllegalStateException Si la traza contiene transferencias a
+	 *                               otra partición, que no pueden
+	 *                               reproducirse por separado
+	 */
+	long reproducir(Path ruta) {
+		// Peticiones bloqueadas por su número en la traza
+		HashMap<Long, Object> bloqueadas = new HashMap<>();
+		// Con var se puede leer al final el contador de la clase anónima
+		var lector = new TrazaPeticiones.Lector() {
+			long numPeticiones;
+
+			@Override
+			public void crear(String idPrivado, String idPublico, int saldo, byte resultado) {
+				procesar(CREAR, new PetCrear(idPrivado, idPublico, saldo, new CompletableFuture<>()));
+				numPeticiones++;
+			}
+
+			@Override
+			public void disponible(String idPrivado, byte resultado, int saldo) {
+				procesar(DISPONIBLE, new PetDisponible(idPrivado, new CompletableFuture<>()));
+				numPeticiones++;
+			}
+
+			@Override
+			public void transferir(String idPrivado, String idPublicoDestino, int valor, boolean otraParticion,
+					byte resultado) {
+				if (otraParticion) {
+					throw new IllegalStateException();
+				}
+				PetTransferir peticion = new PetTransferir(idPrivado, idPublicoDestino, valor,
+						new CompletableFuture<>());
+				peticion.cancelada = resultado == TrazaPeticiones.CANCELADA;
+				procesar(TRANSFERIR, peticion);
+				if (peticion.blocked) {
+					bloqueadas.put(numPeticiones, peticion);
+				}
+				numPeticiones++;
+			}
+
+			@Override
+			public void alertar(String idPrivado, int max, byte resultado) {
+				PetAlertar peticion = new PetAlertar(idPrivado, max, new CompletableFuture<>());
+				peticion.cancelada = resultado == TrazaPeticiones.CANCELADA;
+				procesar(ALERTAR, peticion);
+				if (peticion.blocked) {
+					bloqueadas.put(numPeticiones, peticion);
+				}
+				numPeticiones++;
+			}
+
+			@Override
+			public void lote(List<Transferencia> transferencias, ModoLote modo, EstadoTransferencia[] resultados) {
+				procesar(LOTE, new PetLote(transferencias, modo, new CompletableFuture<>()));
+				numPeticiones++;
+			}
+
+			@Override
+			public void abonar(String idPublicoDestino, int valor) {
+				PetTransferir peticion = new PetTransferir(null, idPublicoDestino, valor, new CompletableFuture<>());
+				peticion.particionDestino = BlockchainCSP.this;
+				procesar(ABONAR, peticion);
+				numPeticiones++;
+			}
+
+			@Override
+			public void cancelar(long peticion) {
+				Object cancelada = bloqueadas.remove(peticion);
+				if (cancelada == null) {
+					// Ya liberada o sin anotar: la cancelación no tiene efecto
+					PetAlertar liberada = new PetAlertar(null, 0, new CompletableFuture<>());
+					liberada.numTraza = peticion;
+					cancelada = liberada;
+				}
+				procesar(CANCELAR, cancelada);
+				numPeticiones++;
+			}
+
+			@Override
+			public void pasada() {
+				desbloqueoPendiente = false;
+				ultimoDesbloqueo = desbloquearTransacciones();
+			}
+
+			@Override
+			public void liberada(long peticion, int posicion) {
+				if (posicion < 0) {
+					bloqueadas.remove(peticion);
+				}
+			}
+
+			@Override
+			public void vencida(long peticion) {
+				Object vencida = bloqueadas.remove(peticion);
+				if (vencida instanceof PetTransferir) {
+					cancelarTransferencia((PetTransferir) vencida);
+				} else if (vencida != null) {
+					cancelarAlerta((PetAlertar) vencida);
+				}
+			}
+		};
+		TrazaPeticiones.leer(ruta, lector);
+		if (traza != null) {
+			traza.close();
+		}
+		return lector.numPeticiones;
+	}
+
+	/**
+	 * Reenvía a sus particiones de destino las transferencias reservadas cuyo
+	 * abono no llegó a confirmarse antes de reiniciar. Sus cuentas de origen
+	 * quedan retenidas como si la reserva acabara de hacerse; los destinos que
+	 * ya las habían abonado solo las confirman. Se llama antes de arrancar los
+	 * procesos servidor.
+	 *
+	 * @param particiones Todas las particiones, por índice
+	 */
+	void reanudarReservas(BlockchainCSP[] particiones) {
+		for (EstadoParticiones.Reserva reserva : estadoParticiones.reservas.values()) {
+			PetTransferir peticion = new PetTransferir(cuentas.idPrivado(reserva.origen), reserva.idPublicoDestino,
+					reserva.valor, new CompletableFuture<>());
+			peticion.origen = reserva.origen;
+			peticion.particionDestino = particiones[reserva.particion];
+			retener(peticion, reserva);
+			peticion.particionDestino.salidas[ABONAR].write(peticion);
+		}
+	}
+
+	/**
+	 * Devuelve los ID públicos de las cuentas existentes. Solo puede llamarse
+	 * antes de enviar peticiones al servidor, por ejemplo tras recuperar el
+	 * registro en el constructor.
+	 *
+	 * @return ID públicos de las cuentas
+	 */
+	List<String> idsPublicos() {
+		ArrayList<String> ids = new ArrayList<>(cuentas.tamano());
+		for (int cuenta = 0; cuenta < cuentas.tamano(); cuenta++) {
+			ids.add(cuentas.idPublico(cuenta));
+		}
+		return ids;
+	}
+
+	/**
+	 * Desbloquea las transacciones pendientes si se cumplen las condiciones
+	 * necesarias. Solo se revisan las cuentas cuya transferencia en cabeza de
+	 * cola ha pasado a tener fondos suficientes; cada transferencia liberada
+	 * puede dejar lista a su cuenta de destino, que se añade a la lista de
+	 * trabajo en lugar de volver a recorrer todas las peticiones. Las alertas no
+	 * esperan a la pasada: se revisan al abonar su cuenta.
+	 *
+	 * @return Número de peticiones desbloqueadas
+	 */
+	private int desbloquearTransacciones() {
+		long inicio = metricas == null ? 0 : System.nanoTime();
+		int desbloqueadas = 0;
+		if (traza != null) {
+			traza.pasada();
+		}
+
+		// Procesa las solicitudes de transferencia de las cuentas listas
+		while (!cuentasListas.isEmpty()) {
+			int solicitante = cuentasListas.poll();
+			ArrayDeque<PetTransferir> cola = peticionesTransferir.get(solicitante);
+			while (cola != null && cola.peek().reserva == null && cuentas.saldo(solicitante) >= cola.peek().valor) {
+				PetTransferir peticion = cola.poll();
+				peticion.blocked = false;
+				numTransferenciasPendientes--;
+				if (cola.isEmpty()) {
+					peticionesTransferir.set(solicitante, null);
+					numCuentasConTransferencias--;
+					cola = null;
+				}
+				if (traza != null) {
+					traza.liberada(peticion.lote == null ? peticion.numTraza : peticion.lote.numTraza,
+							peticion.lote == null ? -1 : peticion.posicion);
+				}
+				realizarTransferencia(peticion);
+				responderTransferencia(peticion);
+				desbloqueadas++;
+			}
+		}
+
+		desbloqueadas += alertasLiberadas;
+		alertasLiberadas = 0;
+		if (metricas != null) {
+			metricas.registrarPasada(System.nanoTime() - inicio, desbloqueadas);
+		}
+		return desbloqueadas;
+	}
+
+	/**
+	 * Aplica las transferencias de un lote en orden. Si el lote no deja
+	 * transferencias bloqueadas se responde inmediatamente; si no, la respuesta
+	 * se envía al desbloquear la última.
+	 *
+	 * @param lote Petición de lote
+	 */
+	private void procesarLote(PetLote lote) {
+		boolean omitir = false;
+		for (int i = 0; i < lote.resultados.length; i++) {
+			if (lote.transferencias.get(i) == null) {
+				lote.resultados[i] = EstadoTransferencia.INVALIDA;
+				continue;
+			}
+			PetTransferir peticion = new PetTransferir(lote, i);
+			if (!esTransferenciaValida(peticion)) {
+				lote.resultados[i] = EstadoTransferencia.INVALIDA;
+			} else if (omitir) {
+				lote.resultados[i] = EstadoTransferencia.OMITIDA;
+			} else if (puedeRealizarse(peticion)) {
+				realizarTransferencia(peticion);
+				lote.resultados[i] = EstadoTransferencia.REALIZADA;
+			} else if (lote.modo == ModoLote.BLOQUEAR) {
+				encolarTransferencia(peticion);
+				lote.pendientes++;
+			} else {
+				lote.resultados[i] = EstadoTransferencia.OMITIDA;
+				omitir = lote.modo == ModoLote.FALLAR;
+			}
+		}
+		if (lote.pendientes == 0) {
+			responder(lote.resp, lote.futuro, lote.resultados);
+		}
+	}
+
+	/**
+	 * Responde a una transferencia realizada. Las transferencias de un lote
+	 * anotan su resultado y el lote se responde al terminar la última.
+	 *
+	 * @param peticion Petición de transferencia realizada
+	 */
+	private void responderTransferencia(PetTransferir peticion) {
+		if (peticion.particionDestino != null) {
+			// Responde esta partición al recibir la confirmación del abono
+			return;
+		}
+		if (peticion.lote == null) {
+			responder(peticion.resp, peticion.futuro, true);
+		} else {
+			peticion.lote.resultados[peticion.posicion] = EstadoTransferencia.REALIZADA;
+			if (--peticion.lote.pendientes == 0) {
+				responder(peticion.lote.resp, peticion.lote.futuro, peticion.lote.resultados);
+			}
+		}
+	}
+
+	/**
+	 * Resuelve las cuentas de una transferencia y comprueba sus parámetros.
+	 *
+	 * @param peticion Petición de transferencia
+	 * @return true si la transferencia es válida, false en caso contrario
+	 */
+	private boolean esTransferenciaValida(PetTransferir peticion) {
+		peticion.origen = cuentas.buscarPrivado(peticion.idPrivado);
+		if (peticion.particionDestino != null) {
+			// La partición que la envía ya ha comprobado que el destino existe
+			return peticion.valor > 0 && peticion.origen >= 0;
+		}
+		peticion.destino = cuentas.buscarPublico(peticion.idPublicoDestino);
+		return peticion.valor > 0 && peticion.origen >= 0 && peticion.destino >= 0
+				&& peticion.origen != peticion.destino;
+	}
+
+	/**
+	 * Comprueba si una transferencia válida puede realizarse ya: su cuenta de
+	 * origen no tiene transferencias anteriores pendientes y tiene fondos.
+	 *
+	 * @param peticion Petición de transferencia
+	 * @return true si puede realizarse, false si debe esperar
+	 */
+	private boolean puedeRealizarse(PetTransferir peticion) {
+		return !hayTransaccionPendiente(peticion.origen) && cuentas.saldo(peticion.origen) >= peticion.valor;
+	}
+
+	/**
+	 * Añade una transferencia bloqueada al final de la cola FIFO de su cuenta de
+	 * origen.
+	 *
+	 * @param peticion Petición de transferencia bloqueada
+	 */
+	private void encolarTransferencia(PetTransferir peticion) {
+		ArrayDeque<PetTransferir> cola = peticionesTransferir.get(peticion.origen);
+		if (cola == null) {
+			cola = new ArrayDeque<>();
+			peticionesTransferir.set(peticion.origen, cola);
+			numCuentasConTransferencias++;
+		}
+		peticion.blocked = true;
+		cola.add(peticion);
+		numTransferenciasPendientes++;
+		if (peticion.vencimiento != Long.MAX_VALUE) {
+			plazosTransferir.add(peticion);
+		}
+	}
+
+	/**
+	 * Registra una alerta en el índice de su cuenta, ordenado por saldo máximo.
+	 *
+	 * @param peticion Petición de alerta bloqueada
+	 */
+	private void encolarAlerta(PetAlertar peticion) {
+		TreeMap<Integer, ArrayDeque<PetAlertar>> alertas = peticionesAlertar.get(peticion.cuenta);
+		if (alertas == null) {
+			alertas = new TreeMap<>();
+			peticionesAlertar.set(peticion.cuenta, alertas);
+			numCuentasConAlertas++;
+		}
+		ArrayDeque<PetAlertar> grupo = alertas.get(peticion.max);
+		if (grupo == null) {
+			grupo = new ArrayDeque<>();
+			alertas.put(peticion.max, grupo);
+		}
+		peticion.blocked = true;
+		grupo.add(peticion);
+		numAlertasPendientes++;
+		if (peticion.vencimiento != Long.MAX_VALUE) {
+			plazosAlertar.add(peticion);
+		}
+	}
+
+	/**
+	 * Responde como vencidas las peticiones cuyo plazo ha pasado y descarta de
+	 * los montículos las que ya se liberaron. Quitar una transferencia vencida
+	 * de la cabeza de su cola puede dejar lista a la siguiente de la misma
+	 * cuenta.
+	 *
+	 * Un montículo con más del doble de entradas que peticiones bloqueadas de
+	 * su tipo se compacta quitando todas las liberadas. Así su tamaño queda
+	 * acotado por las peticiones pendientes, y cada compactación cuesta lo
+	 * mismo que las entradas que descarta.
+	 *
+	 * @return Instante del próximo vencimiento, o Long.MAX_VALUE si no queda
+	 *         ninguna petición con plazo
+	 */
+	private long vencerPlazos() {
+		long ahora = System.currentTimeMillis();
+		boolean vencidas = false;
+		while (!plazosTransferir.isEmpty()
+				&& (!plazosTransferir.peek().blocked || plazosTransferir.peek().vencimiento <= ahora)) {
+			vencidas |= cancelarTransferencia(plazosTransferir.poll());
+		}
+		while (!plazosAlertar.isEmpty()
+				&& (!plazosAlertar.peek().blocked || plazosAlertar.peek().vencimiento <= ahora)) {
+			cancelarAlerta(plazosAlertar.poll());
+		}
+		if (vencidas) {
+			ultimoDesbloqueo = desbloquearTransacciones();
+		}
+		if (plazosTransferir.size() > 2 * numTransferenciasPendientes + COMPACTAR_PLAZOS) {
+			plazosTransferir.removeIf(peticion -> !peticion.blocked);
+		}
+		if (plazosAlertar.size() > 2 * numAlertasPendientes + COMPACTAR_PLAZOS) {
+			plazosAlertar.removeIf(peticion -> !peticion.blocked);
+		}
+		long proximo = Long.MAX_VALUE;
+		if (!plazosTransferir.isEmpty()) {
+			proximo = plazosTransferir.peek().vencimiento;
+		}
+		if (!plazosAlertar.isEmpty()) {
+			proximo = Math.min(proximo, plazosAlertar.peek().vencimiento);
+		}
+		return proximo;
+	}
+
+	/**
+	 * Quita una transferencia bloqueada de la cola de su cuenta de origen y la
+	 * responde como vencida. Si estaba en cabeza, la cuenta se marca como lista
+	 * cuando la nueva cabeza tiene fondos.
+	 *
+	 * @param peticion Petición de transferencia
+	 * @return true si la petición seguía bloqueada
+	 */
+	private boolean cancelarTransferencia(PetTransferir peticion) {
+		if (!peticion.blocked) {
+			return false;
+		}
+		ArrayDeque<PetTransferir> cola = peticionesTransferir.get(peticion.origen);
+		boolean cabeza = cola.peek() == peticion;
+		cola.remove(peticion);
+		peticion.blocked = false;
+		numTransferenciasPendientes--;
+		if (traza != null) {
+			traza.vencida(peticion.numTraza);
+		}
+		if (cola.isEmpty()) {
+			peticionesTransferir.set(peticion.origen, null);
+			numCuentasConTransferencias--;
+		} else if (cabeza) {
+			comprobarCabeza(peticion.origen);
+		}
+		responder(peticion.resp, peticion.futuro, VENCIDA);
+		return true;
+	}
+
+	/**
+	 * Quita una alerta pendiente del índice de su cuenta y la responde como
+	 * vencida.
+	 *
+	 * @param peticion Petición de alerta
+	 */
+	private void cancelarAlerta(PetAlertar peticion) {
+		if (!peticion.blocked) {
+			return;
+		}
+		TreeMap<Integer, ArrayDeque<PetAlertar>> alertas = peticionesAlertar.get(peticion.cuenta);
+		ArrayDeque<PetAlertar> grupo = alertas.get(peticion.max);
+		grupo.remove(peticion);
+		if (grupo.isEmpty()) {
+			alertas.remove(peticion.max);
+			if (alertas.isEmpty()) {
+				peticionesAlertar.set(peticion.cuenta, null);
+				numCuentasConAlertas--;
+			}
+		}
+		peticion.blocked = false;
+		numAlertasPendientes--;
+		if (traza != null) {
+			traza.vencida(peticion.numTraza);
+		}
+		responder(peticion.resp, peticion.futuro, VENCIDA);
+	}
+
+	/**
+	 * Libera las alertas de una cuenta cuyo saldo máximo ha sido superado.
+	 *
+	 * @param cuenta Slot de la cuenta
+	 * @return Número de alertas liberadas
+	 */
+	private int desbloquearAlertas(int cuenta) {
+		TreeMap<Integer, ArrayDeque<PetAlertar>> alertas = peticionesAlertar.get(cuenta);
+		if (alertas == null) {
+			return 0;
+		}
+		int liberadas = 0;
+		Iterator<ArrayDeque<PetAlertar>> superadas = alertas.headMap(cuentas.saldo(cuenta), false).values()
+				.iterator();
+		while (superadas.hasNext()) {
+			for (PetAlertar peticion : superadas.next()) {
+				if (traza != null) {
+					traza.liberada(peticion.numTraza, -1);
+				}
+				peticion.blocked = false;
+				responder(peticion.resp, peticion.futuro, true);
+				liberadas++;
+			}
+			superadas.remove();
+		}
+		if (alertas.isEmpty()) {
+			peticionesAlertar.set(cuenta, null);
+			numCuentasConAlertas--;
+		}
+		numAlertasPendientes -= liberadas;
+		return liberadas;
+	}
+
+	/**
+	 * Mueve los fondos de una transferencia. Si el destino está en otra
+	 * partición, el abono se le envía por su canal de abonos, que tiene buffer
+	 * para que el servidor nunca quede esperando a otra partición.
+	 *
+	 * @param peticion Petición de transferencia a realizar
+	 */
+	private void realizarTransferencia(PetTransferir peticion) {
+		if (peticion.particionDestino != null) {
+			reservar(peticion);
+			return;
+		}
+		cuentas.ajustar(peticion.origen, -peticion.valor);
+		if (bloques != null) {
+			peticion.transaccion = bloques.anotar(cuentas.idPublico(peticion.origen), peticion.idPublicoDestino,
+					peticion.valor);
+		}
+		if (registro != null) {
+			registro.transferir(peticion.origen, peticion.destino, peticion.valor);
+		}
+		abonar(peticion.destino, peticion.valor);
+	}
+
+	/**
+	 * Reserva los fondos de una transferencia a otra partición: los carga en
+	 * origen, retiene la cuenta y envía el abono a la partición de destino por
+	 * su canal de abonos.
+	 *
+	 * @param peticion Petición de transferencia a otra partición
+	 */
+	private void reservar(PetTransferir peticion) {
+		cuentas.ajustar(peticion.origen, -peticion.valor);
+		int destino = peticion.particionDestino.particion;
+		EstadoParticiones.Reserva reserva = new EstadoParticiones.Reserva(peticion.origen, peticion.valor, destino,
+				estadoParticiones.enviada(destino) + 1, peticion.idPublicoDestino);
+		estadoParticiones.reservar(reserva);
+		if (registro != null) {
+			registro.reservar(reserva);
+		}
+		retener(peticion, reserva);
+		enviar(peticion.particionDestino.salidas[ABONAR], peticion);
+	}
+
+	/**
+	 * Retiene la cuenta de origen de una transferencia reservada: la
+	 * transferencia queda en cabeza de su cola, de modo que las siguientes de
+	 * la cuenta esperan, y el saldo no se publica hasta confirmarla.
+	 *
+	 * @param peticion Petición de transferencia reservada
+	 * @param reserva  Reserva de la transferencia
+	 */
+	private void retener(PetTransferir peticion, EstadoParticiones.Reserva reserva) {
+		peticion.reserva = reserva;
+		peticion.particionOrigen = this;
+		ArrayDeque<PetTransferir> cola = peticionesTransferir.get(peticion.origen);
+		if (cola == null) {
+			cola = new ArrayDeque<>();
+			peticionesTransferir.set(peticion.origen, cola);
+			numCuentasConTransferencias++;
+		}
+		cola.addFirst(peticion);
+		cuentas.retener(peticion.origen);
+	}
+
+	/**
+	 * Abona en esta partición una transferencia reservada en otra y le envía
+	 * la confirmación. Un abono cuya secuencia ya se ha abonado es un reenvío
+	 * tras reiniciar la partición de origen, y solo se confirma.
+	 *
+	 * @param peticion Petición de transferencia reservada
+	 */
+	private void abonarReserva(PetTransferir peticion) {
+		int origen = peticion.particionOrigen == null ? -1 : peticion.particionOrigen.particion;
+		long secuencia = peticion.reserva == null ? 0 : peticion.reserva.secuencia;
+		if (origen < 0 || secuencia > estadoParticiones.abonada(origen)) {
+			if (traza != null) {
+				traza.abonar(peticion.idPublicoDestino, peticion.valor);
+			}
+			int destino = cuentas.buscarPublico(peticion.idPublicoDestino);
+			abonar(destino, peticion.valor);
+			if (origen >= 0) {
+				estadoParticiones.abonar(origen, secuencia);
+			}
+			if (registro != null) {
+				registro.abonar(destino, peticion.valor, origen, secuencia);
+			}
+		}
+		if (peticion.particionOrigen != null) {
+			enviar(peticion.particionOrigen.salidas[ABONAR], peticion);
+		} else {
+			responder(peticion.resp, peticion.futuro, true);
+		}
+	}
+
+	/**
+	 * Confirma una transferencia reservada que ya se ha abonado en destino:
+	 * la quita de la cabeza de su cola, publica el saldo de la cuenta de
+	 * origen, responde las consultas retenidas y, por último, al cliente.
+	 *
+	 * @param peticion Petición de transferencia reservada
+	 */
+	private void confirmarReserva(PetTransferir peticion) {
+		EstadoParticiones.Reserva reserva = peticion.reserva;
+		ArrayDeque<PetTransferir> cola = peticionesTransferir.get(peticion.origen);
+		cola.poll();
+		peticion.reserva = null;
+		if (cola.isEmpty()) {
+			peticionesTransferir.set(peticion.origen, null);
+			numCuentasConTransferencias--;
+		} else {
+			comprobarCabeza(peticion.origen);
+		}
+		estadoParticiones.confirmar(reserva.particion, reserva.secuencia);
+		if (registro != null) {
+			registro.confirmar(reserva.particion, reserva.secuencia);
+		}
+		if (bloques != null) {
+			peticion.transaccion = bloques.anotar(cuentas.idPublico(peticion.origen), peticion.idPublicoDestino,
+					peticion.valor);
+		}
+		cuentas.liberar(peticion.origen);
+		ArrayList<PetDisponible> lecturas = lecturasRetenidas.remove(peticion.origen);
+		if (lecturas != null) {
+			int saldo = cuentas.saldo(peticion.origen);
+			for (PetDisponible lectura : lecturas) {
+				if (traza != null) {
+					traza.disponible(lectura.idPrivado, saldo);
+				}
+				lectura.saldo = saldo;
+				responder(lectura.resp, lectura.futuro, true);
+			}
+		}
+		responder(peticion.resp, peticion.futuro, true);
+	}
+
+	/**
+	 * Comprueba si una cuenta está retenida por una transferencia a otra
+	 * partición sin confirmar.
+	 *
+	 * @param cuenta Slot de la cuenta
+	 * @return true si la cabeza de su cola es una reserva
+	 */
+	private boolean retenida(int cuenta) {
+		ArrayDeque<PetTransferir> cola = peticionesTransferir.get(cuenta);
+		return cola != null && cola.peek().reserva != null;
+	}
+
+	/**
+	 * Abona fondos a una cuenta y la marca como lista si su transferencia en
+	 * cabeza de cola pasa a tener fondos. Las alertas de la cuenta se revisan
+	 * en el momento, con el saldo recién abonado: en una ráfaga, un cargo
+	 * posterior a la misma cuenta podría volver a dejarlo por debajo de su
+	 * máximo antes de la pasada.
+	 *
+	 * @param cuenta Slot de la cuenta
+	 * @param valor  Monto a abonar
+	 */
+	private void abonar(int cuenta, int valor) {
+		cuentas.ajustar(cuenta, valor);
+		comprobarCabeza(cuenta);
+		if (peticionesAlertar.get(cuenta) != null) {
+			alertasLiberadas += desbloquearAlertas(cuenta);
+		}
+	}
+
+	/**
+	 * Marca una cuenta como lista si tiene transferencias pendientes y la
+	 * primera de ellas puede realizarse con el saldo actual. Una reserva en
+	 * cabeza no se realiza de nuevo: espera su confirmación.
+	 *
+	 * @param cuenta Slot de la cuenta
+	 */
+	private void comprobarCabeza(int cuenta) {
+		ArrayDeque<PetTransferir> cola = peticionesTransferir.get(cuenta);
+		if (cola != null && cola.peek().reserva == null && cuentas.saldo(cuenta) >= cola.peek().valor) {
+			cuentasListas.add(cuenta);
+		}
+	}
+
+	/**
+	 * Verifica si hay transacciones pendientes para una cuenta específica. Las
+	 * colas vacías se eliminan al desbloquear su última transferencia, por lo que
+	 * basta con consultar si la cuenta tiene cola.
+	 *
+	 * @param cuenta Slot de la cuenta
+	 * @return true si hay transacciones pendientes, false en caso contrario
+	 */
+	private boolean hayTransaccionPendiente(int cuenta) {
+		return peticionesTransferir.get(cuenta) != null;
+	}
+
+	/**
+	 * Devuelve el número total de transferencias bloqueadas en el servidor.
+	 *
+	 * @return Número de transferencias pendientes
+	 */
+	int transferenciasPendientes() {
+		return numTransferenciasPendientes;
+	}
+
+	/**
+	 * Devuelve el número total de alertas pendientes en el servidor.
+	 *
+	 * @return Número de alertas pendientes
+	 */
+	int alertasPendientes() {
+		return numAlertasPendientes;
+	}
+
+	/**
+	 * Devuelve el número de cuentas con alguna transferencia bloqueada.
+	 *
+	 * @return Número de colas de transferencias
+	 */
+	int cuentasConTransferencias() {
+		return numCuentasConTransferencias;
+	}
+
+	/**
+	 * Devuelve el número de cuentas con alguna alerta pendiente.
+	 *
+	 * @return Número de índices de alertas
+	 */
+	int cuentasConAlertas() {
+		return numCuentasConAlertas;
+	}
+
+	/**
+	 * Devuelve el número de peticiones desbloqueadas por la última transferencia
+	 * realizada.
+	 *
+	 * @return Número de peticiones desbloqueadas
+	 */
+	int ultimoDesbloqueo() {
+		return ultimoDesbloqueo;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,223 @@
+package cc.blockchain;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * La clase BlockchainCSPParticionada reparte las cuentas entre varios procesos
+ * servidor {@link BlockchainCSP} según el hash de su ID privado, de modo que
+ * las consultas y las transferencias entre cuentas de una misma partición se
+ * atienden en paralelo.
+ *
+ * Una transferencia entre particiones se hace en dos fases. La partición de
+ * origen, que mantiene el orden FIFO de las transferencias de cada cuenta,
+ * reserva los fondos: los carga y retiene la cuenta, cuyas consultas esperan
+ * sin ver el saldo intermedio. La de destino los abona y devuelve la
+ * confirmación al origen, que libera la cuenta y responde al cliente. Un
+ * observador ve la transferencia entera o no la ve: la cuenta de origen no
+ * muestra el cargo antes de que el destino muestre el abono.
+ *
+ * Con registro de escritura cada fase se lleva a disco antes de pasar a la
+ * siguiente. Tras una caída, las reservas sin confirmar se reenvían al
+ * destino, que reconoce por su secuencia las que ya había abonado, de modo
+ * que los fondos en tránsito nunca se pierden ni se cuentan dos veces.
+ */
+public class BlockchainCSPParticionada implements Blockchain {
+
+	// Marca en el directorio un ID público reservado por un crear en curso
+	private static final int RESERVADO = -1;
+
+	private BlockchainCSP[] particiones;
+	private ConcurrentHashMap<String, Integer> directorio;
+
+	/**
+	 * Constructor con una partición por procesador disponible.
+	 */
+	public BlockchainCSPParticionada() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor para la clase BlockchainCSPParticionada.
+	 *
+	 * @param numParticiones Número de procesos servidor
+	 * @throws IllegalArgumentException Si el número de particiones no es
+	 *                                  positivo
+	 */
+	public BlockchainCSPParticionada(int numParticiones) {
+		this(numParticiones, new ConfiguracionCSP());
+	}
+
+	/**
+	 * Constructor para la clase BlockchainCSPParticionada.
+	 *
+	 * @param numParticiones Número de procesos servidor
+	 * @param configuracion  Opciones de cada partición
+	 * @throws IllegalArgumentException Si el número de particiones no es
+	 *                                  positivo o la configuración no es
+	 *                                  válida para {@link BlockchainCSP}
+	 */
+	public BlockchainCSPParticionada(int numParticiones, ConfiguracionCSP configuracion) {
+		if (numParticiones <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.particiones = new BlockchainCSP[numParticiones];
+		this.directorio = new ConcurrentHashMap<>();
+		for (int i = 0; i < numParticiones; i++) {
+			this.particiones[i] = new BlockchainCSP(configuracion.paraParticion(i), false);
+			// Cuentas recuperadas del registro de la partición
+			for (String idPublico : this.particiones[i].idsPublicos()) {
+				this.directorio.put(idPublico, i);
+			}
+		}
+		// Las reservas recuperadas se reenvían antes de atender peticiones
+		for (BlockchainCSP particion : this.particiones) {
+			particion.reanudarReservas(this.particiones);
+		}
+		for (BlockchainCSP particion : this.particiones) {
+			particion.arrancar();
+		}
+	}
+
+	/**
+	 * Crea una nueva cuenta en la partición que le corresponde. El ID público
+	 * se reserva antes en el directorio para garantizar que es único entre
+	 * todas las particiones.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param idPublico ID público de la cuenta
+	 * @param saldo     Saldo inicial de la cuenta
+	 * @throws IllegalArgumentException Si los parámetros son inválidos
+	 */
+	public void crear(String idPrivado, String idPublico, int saldo) {
+		if (idPrivado == null || idPublico == null || saldo < 0
+				|| directorio.putIfAbsent(idPublico, RESERVADO) != null) {
+			throw new IllegalArgumentException();
+		}
+		int particion = particion(idPrivado);
+		try {
+			particiones[particion].crear(idPrivado, idPublico, saldo);
+		} catch (IllegalArgumentException e) {
+			directorio.remove(idPublico);
+			throw e;
+		}
+		directorio.put(idPublico, particion);
+	}
+
+	/**
+	 * Transfiere fondos entre cuentas, de la misma o de distinta partición.
+	 *
+	 * @param idPrivado        ID privado de la cuenta de origen
+	 * @param idPublicoDestino ID público de la cuenta de destino
+	 * @param valor            Monto a transferir
+	 * @throws IllegalArgumentException Si los parámetros son inválidos o la
+	 *                                  transferencia falla
+	 */
+	public void transferir(String idPrivado, String idPublicoDestino, int valor) {
+		if (idPrivado == null || idPublicoDestino == null) {
+			throw new IllegalArgumentException();
+		}
+		Integer destino = directorio.get(idPublicoDestino);
+		if (destino == null || destino == RESERVADO) {
+			throw new IllegalArgumentException();
+		}
+		int origen = particion(idPrivado);
+		if (origen == destino) {
+			particiones[origen].transferir(idPrivado, idPublicoDestino, valor);
+		} else {
+			particiones[origen].transferir(idPrivado, idPublicoDestino, valor, particiones[destino]);
+		}
+	}
+
+	/**
+	 * Consulta el saldo de una cuenta en su partición.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @return El saldo disponible en la cuenta
+	 * @throws IllegalArgumentException Si el ID privado es inválido o la cuenta no
+	 *                                  existe
+	 */
+	public int disponible(String idPrivado) {
+		if (idPrivado == null) {
+			throw new IllegalArgumentException();
+		}
+		return particiones[particion(idPrivado)].disponible(idPrivado);
+	}
+
+	/**
+	 * Establece una alerta de saldo máximo en la partición de la cuenta.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param max       Saldo máximo para la alerta
+	 * @throws IllegalArgumentException Si los parámetros son inválidos
+	 */
+	public void alertarMax(String idPrivado, int max) {
+		if (idPrivado == null) {
+			throw new IllegalArgumentException();
+		}
+		particiones[particion(idPrivado)].alertarMax(idPrivado, max);
+	}
+
+	/**
+	 * Devuelve una copia de las esperas en cola medidas, sumadas sobre todas
+	 * las particiones.
+	 *
+	 * @return Esperas por operación
+	 * @throws IllegalArgumentException Si no se miden las esperas
+	 */
+	public EsperasCola esperasCola() {
+		EsperasCola total = particiones[0].esperasCola();
+		for (int i = 1; i < particiones.length; i++) {
+			total.sumar(particiones[i].esperasCola());
+		}
+		return total;
+	}
+
+	/**
+	 * Devuelve una copia de las métricas, sumadas sobre todas las particiones.
+	 *
+	 * @return Métricas de los servidores
+	 * @throws IllegalStateException Si no se recogen métricas
+	 */
+	public MetricasCSP metricas() {
+		MetricasCSP total = particiones[0].metricas();
+		for (int i = 1; i < particiones.length; i++) {
+			total.sumar(particiones[i].metricas());
+		}
+		return total;
+	}
+
+	/**
+	 * Publica las métricas de cada partición como su propio MBean. Hay que
+	 * retirarlos con {@link #retirarMetricas()} cuando dejen de usarse.
+	 *
+	 * @throws IllegalStateException Si no se recogen métricas, ya están
+	 *                               publicadas o no puede registrarse un MBean
+	 * @see BlockchainCSP#publicarMetricas()
+	 */
+	public void publicarMetricas() {
+		for (BlockchainCSP particion : particiones) {
+			particion.publicarMetricas();
+		}
+	}
+
+	/**
+	 * Retira los MBean de las métricas de las particiones.
+	 *
+	 * @throws IllegalStateException Si no puede quitarse el registro de un MBean
+	 */
+	public void retirarMetricas() {
+		for (BlockchainCSP particion : particiones) {
+			particion.retirarMetricas();
+		}
+	}
+
+	/**
+	 * Calcula la partición a la que pertenece una cuenta.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @return Índice de la partición
+	 */
+	private int particion(String idPrivado) {
+		return Math.floorMod(idPrivado.hashCode(), particiones.length);
+	}
+}
@@ -0,0 +1,306 @@
+package cc.blockchain;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * La clase BlockchainCerrojos implementa la blockchain sin proceso servidor:
+ * cada cuenta está protegida por uno de un conjunto fijo de cerrojos, según su
+ * slot, de modo que las operaciones sobre cuentas no relacionadas se realizan
+ * en paralelo en los hilos de los clientes.
+ *
+ * Una transferencia toma los cerrojos de sus dos cuentas siempre en el orden
+ * de su índice, así que dos transferencias cruzadas nunca se bloquean entre
+ * sí. Las transferencias que no pueden realizarse esperan en la cola FIFO de
+ * su cuenta de origen, cada una en su propia condición y solo con el cerrojo
+ * de origen; las alertas esperan anotadas en su cuenta, también cada una en
+ * su condición. Un abono despierta a la transferencia en cabeza si ya tiene
+ * fondos y libera, con el cerrojo tomado, las alertas cuyo máximo supera el
+ * nuevo saldo: un cargo posterior no puede deshacer esa liberación antes de
+ * que la alerta despierte.
+ */
+public class BlockchainCerrojos implements Blockchain {
+
+	private final ReentrantLock[] cerrojos;
+
+	// Altas de cuentas: serializa la comprobación de IDs únicos
+	private final ReentrantLock cerrojoAltas = new ReentrantLock();
+	private final ConcurrentHashMap<String, Cuenta> privados = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Cuenta> publicos = new ConcurrentHashMap<>();
+	private int numCuentas;
+
+	/**
+	 * Estado de una cuenta. Todos sus campos están protegidos por su cerrojo.
+	 */
+	private static class Cuenta {
+		final int slot;
+		final ReentrantLock cerrojo;
+		final ArrayDeque<Espera> transferencias = new ArrayDeque<>();
+		// Alertas pendientes por saldo máximo
+		final TreeMap<Integer, ArrayDeque<Espera>> alertas = new TreeMap<>();
+		int saldo;
+
+		Cuenta(int slot, ReentrantLock cerrojo, int saldo) {
+			this.slot = slot;
+			this.cerrojo = cerrojo;
+			this.saldo = saldo;
+		}
+	}
+
+	/**
+	 * Hilo en espera en su cuenta: una transferencia en la cola de origen, con
+	 * el monto que necesita, o una alerta, con su saldo máximo. Sus campos
+	 * están protegidos por el cerrojo de la cuenta.
+	 */
+	private static class Espera {
+		final int valor;
+		final Condition turno;
+		boolean liberada;
+
+		Espera(int valor, Condition turno) {
+			this.valor = valor;
+			this.turno = turno;
+		}
+	}
+
+	/**
+	 * Constructor con cuatro cerrojos por procesador disponible.
+	 */
+	public BlockchainCerrojos() {
+		this(4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor para la clase BlockchainCerrojos.
+	 *
+	 * @param numCerrojos Número de cerrojos entre los que se reparten las
+	 *                    cuentas
+	 * @throws IllegalArgumentException Si el número de cerrojos no es positivo
+	 */
+	public BlockchainCerrojos(int numCerrojos) {
+		if (numCerrojos <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.cerrojos = new ReentrantLock[numCerrojos];
+		for (int i = 0; i < numCerrojos; i++) {
+			cerrojos[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Crea una nueva cuenta en la blockchain.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param idPublico ID público de la cuenta
+	 * @param saldo     Saldo inicial de la cuenta
+	 * @throws IllegalArgumentException Si los parámetros son inválidos
+	 */
+	public void crear(String idPrivado, String idPublico, int saldo) {
+		if (idPrivado == null || idPublico == null || saldo < 0) {
+			throw new IllegalArgumentException();
+		}
+		cerrojoAltas.lock();
+		try {
+			if (privados.containsKey(idPrivado) || publicos.containsKey(idPublico)) {
+				throw new IllegalArgumentException();
+			}
+			int slot = numCuentas++;
+			Cuenta cuenta = new Cuenta(slot, cerrojos[slot % cerrojos.length], saldo);
+			privados.put(idPrivado, cuenta);
+			publicos.put(idPublico, cuenta);
+		} finally {
+			cerrojoAltas.unlock();
+		}
+	}
+
+	/**
+	 * Transfiere fondos entre cuentas en la blockchain. Si la cuenta de origen
+	 * no tiene fondos o tiene transferencias anteriores pendientes, espera su
+	 * turno en la cola de la cuenta.
+	 *
+	 * @param idPrivado        ID privado de la cuenta de origen
+	 * @param idPublicoDestino ID público de la cuenta de destino
+	 * @param valor            Monto a transferir
+	 * @throws IllegalArgumentException Si los parámetros son inválidos o la
+	 *                                  transferencia falla
+	 */
+	public void transferir(String idPrivado, String idPublicoDestino, int valor) {
+		if (idPrivado == null || idPublicoDestino == null || valor <= 0) {
+			throw new IllegalArgumentException();
+		}
+		Cuenta origen = privados.get(idPrivado);
+		Cuenta destino = publicos.get(idPublicoDestino);
+		if (origen == null || destino == null || origen == destino) {
+			throw new IllegalArgumentException();
+		}
+
+		Espera espera;
+		bloquear(origen, destino);
+		try {
+			if (origen.transferencias.isEmpty() && origen.saldo >= valor) {
+				mover(origen, destino, valor);
+				return;
+			}
+			espera = new Espera(valor, origen.cerrojo.newCondition());
+			origen.transferencias.add(espera);
+		} finally {
+			desbloquear(origen, destino);
+		}
+
+		// Espera el turno solo con el cerrojo de origen. Mientras la
+		// transferencia sigue en cabeza ninguna otra puede cargar la cuenta,
+		// así que al soltarlo sigue teniendo fondos.
+		origen.cerrojo.lock();
+		try {
+			while (origen.transferencias.peek() != espera || origen.saldo < valor) {
+				espera.turno.awaitUninterruptibly();
+			}
+		} finally {
+			origen.cerrojo.unlock();
+		}
+
+		bloquear(origen, destino);
+		try {
+			origen.transferencias.poll();
+			mover(origen, destino, valor);
+			avisarCabeza(origen);
+		} finally {
+			desbloquear(origen, destino);
+		}
+	}
+
+	/**
+	 * Consulta el saldo de una cuenta en la blockchain.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @return El saldo disponible en la cuenta
+	 * @throws IllegalArgumentException Si el ID privado es inválido o la cuenta no
+	 *                                  existe
+	 */
+	public int disponible(String idPrivado) {
+		if (idPrivado == null) {
+			throw new IllegalArgumentException();
+		}
+		Cuenta cuenta = privados.get(idPrivado);
+		if (cuenta == null) {
+			throw new IllegalArgumentException();
+		}
+		cuenta.cerrojo.lock();
+		try {
+			return cuenta.saldo;
+		} finally {
+			cuenta.cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * Establece una alerta de saldo máximo para una cuenta en la blockchain.
+	 * Espera hasta que el saldo de la cuenta supera el máximo.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param max       Saldo máximo para la alerta
+	 * @throws IllegalArgumentException Si los parámetros son inválidos
+	 */
+	public void alertarMax(String idPrivado, int max) {
+		if (idPrivado == null || max < 0) {
+			throw new IllegalArgumentException();
+		}
+		Cuenta cuenta = privados.get(idPrivado);
+		if (cuenta == null) {
+			throw new IllegalArgumentException();
+		}
+		cuenta.cerrojo.lock();
+		try {
+			if (cuenta.saldo > max) {
+				return;
+			}
+			Espera alerta = new Espera(max, cuenta.cerrojo.newCondition());
+			cuenta.alertas.computeIfAbsent(max, clave -> new ArrayDeque<>()).add(alerta);
+			while (!alerta.liberada) {
+				alerta.turno.awaitUninterruptibly();
+			}
+		} finally {
+			cuenta.cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * Mueve los fondos de una transferencia. Se llama con los cerrojos de las
+	 * dos cuentas tomados.
+	 *
+	 * @param origen  Cuenta de origen
+	 * @param destino Cuenta de destino
+	 * @param valor   Monto a transferir
+	 */
+	private static void mover(Cuenta origen, Cuenta destino, int valor) {
+		origen.saldo -= valor;
+		destino.saldo += valor;
+		avisarCabeza(destino);
+		if (!destino.alertas.isEmpty()) {
+			liberarAlertas(destino);
+		}
+	}
+
+	/**
+	 * Libera y despierta las alertas de una cuenta cuyo máximo supera su
+	 * saldo. Solo recorre las alertas que se liberan.
+	 *
+	 * @param cuenta Cuenta, con su cerrojo tomado
+	 */
+	private static void liberarAlertas(Cuenta cuenta) {
+		Iterator<ArrayDeque<Espera>> grupos = cuenta.alertas.headMap(cuenta.saldo, false).values().iterator();
+		while (grupos.hasNext()) {
+			for (Espera alerta : grupos.next()) {
+				alerta.liberada = true;
+				alerta.turno.signal();
+			}
+			grupos.remove();
+		}
+	}
+
+	/**
+	 * Despierta a la transferencia en cabeza de la cola de una cuenta si ya
+	 * tiene fondos.
+	 *
+	 * @param cuenta Cuenta, con su cerrojo tomado
+	 */
+	private static void avisarCabeza(Cuenta cuenta) {
+		Espera cabeza = cuenta.transferencias.peek();
+		if (cabeza != null && cuenta.saldo >= cabeza.valor) {
+			cabeza.turno.signal();
+		}
+	}
+
+	/**
+	 * Toma los cerrojos de dos cuentas en el orden de su índice, o uno solo si
+	 * las dos comparten cerrojo.
+	 *
+	 * @param a Una cuenta
+	 * @param b Otra cuenta
+	 */
+	private void bloquear(Cuenta a, Cuenta b) {
+		int i = a.slot % cerrojos.length;
+		int j = b.slot % cerrojos.length;
+		cerrojos[Math.min(i, j)].lock();
+		if (i != j) {
+			cerrojos[Math.max(i, j)].lock();
+		}
+	}
+
+	/**
+	 * Suelta los cerrojos tomados con {@link #bloquear(Cuenta, Cuenta)}.
+	 *
+	 * @param a Una cuenta
+	 * @param b Otra cuenta
+	 */
+	private void desbloquear(Cuenta a, Cuenta b) {
+		a.cerrojo.unlock();
+		if (b.cerrojo != a.cerrojo) {
+			b.cerrojo.unlock();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package cc.blockchain;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Bloque sellado de transferencias realizadas. Cada transferencia es una hoja
+ * del árbol de Merkle del bloque, y la cabecera enlaza con el hash del bloque
+ * anterior. Todos los hashes son SHA-256; las hojas y los nodos internos
+ * llevan un prefijo distinto para que una hoja no pueda hacerse pasar por un
+ * nodo, y un nodo sin pareja sube sin cambios al nivel siguiente.
+ *
+ * El servidor rellena las transferencias y los hilos de {@link
+ * ConstructorBloques} calculan los hashes con {@link ArbolMerkle}; una vez
+ * encadenado, el bloque no cambia.
+ */
+class Bloque {
+
+	static final int BYTES_HASH = 32;
+
+	private static final byte PREFIJO_HOJA = 0;
+	private static final byte PREFIJO_NODO = 1;
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	final long altura;
+	final long primeraTransaccion;
+	final long marcaTiempo;
+	final String[] origenes;
+	final String[] destinos;
+	final int[] valores;
+	final int numTransacciones;
+	byte[] raiz;
+	byte[] hashAnterior;
+	byte[] hash;
+
+	/**
+	 * Constructor de un bloque sellado.
+	 *
+	 * @param altura             Posición del bloque en la cadena, desde 0
+	 * @param primeraTransaccion Número de la primera transferencia del bloque
+	 * @param origenes           ID públicos de las cuentas de origen
+	 * @param destinos           ID públicos de las cuentas de destino
+	 * @param valores            Montos transferidos
+	 * @param numTransacciones   Número de transferencias del bloque
+	 */
+	Bloque(long altura, long primeraTransaccion, String[] origenes, String[] destinos, int[] valores,
+			int numTransacciones) {
+		this.altura = altura;
+		this.primeraTransaccion = primeraTransaccion;
+		this.marcaTiempo = System.currentTimeMillis();
+		this.origenes = origenes;
+		this.destinos = destinos;
+		this.valores = valores;
+		this.numTransacciones = numTransacciones;
+	}
+
+	/**
+	 * Calcula el hash de la hoja de una transferencia del bloque.
+	 *
+	 * @param posicion Posición de la transferencia en el bloque
+	 * @return Hash de la hoja
+	 */
+	byte[] hashHoja(int posicion) {
+		return hashHoja(primeraTransaccion + posicion, origenes[posicion], destinos[posicion], valores[posicion]);
+	}
+
+	/**
+	 * Calcula el hash de la cabecera del bloque, que cubre su altura, el hash
+	 * del bloque anterior, la raíz de Merkle, el rango de transferencias y la
+	 * marca de tiempo.
+	 *
+	 * @return Hash del bloque
+	 */
+	byte[] calcularHash() {
+		ByteBuffer cabecera = ByteBuffer.allocate(8 + BYTES_HASH + BYTES_HASH + 8 + 4 + 8);
+		cabecera.putLong(altura);
+		cabecera.put(hashAnterior);
+		cabecera.put(raiz);
+		cabecera.putLong(primeraTransaccion);
+		cabecera.putInt(numTransacciones);
+		cabecera.putLong(marcaTiempo);
+		return SHA256.get().digest(cabecera.array());
+	}
+
+	/**
+	 * Calcula el hash de la hoja de una transferencia.
+	 *
+	 * @param transaccion Número de la transferencia
+	 * @param origen      ID público de la cuenta de origen
+	 * @param destino     ID público de la cuenta de destino
+	 * @param valor       Monto transferido
+	 * @return Hash de la hoja
+	 */
+	static byte[] hashHoja(long transaccion, String origen, String destino, int valor) {
+		byte[] bytesOrigen = origen.getBytes(StandardCharsets.UTF_8);
+		byte[] bytesDestino = destino.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer hoja = ByteBuffer.allocate(1 + 8 + 4 + bytesOrigen.length + 4 + bytesDestino.length + 4);
+		hoja.put(PREFIJO_HOJA);
+		hoja.putLong(transaccion);
+		hoja.putInt(bytesOrigen.length);
+		hoja.put(bytesOrigen);
+		hoja.putInt(bytesDestino.length);
+		hoja.put(bytesDestino);
+		hoja.putInt(valor);
+		return SHA256.get().digest(hoja.array());
+	}
+
+	/**
+	 * Calcula el hash de un nodo interno a partir de sus dos hijos.
+	 *
+	 * @param izquierdo Hash del hijo izquierdo
+	 * @param derecho   Hash del hijo derecho
+	 * @return Hash del nodo
+	 */
+	static byte[] hashNodo(byte[] izquierdo, byte[] derecho) {
+		MessageDigest sha = SHA256.get();
+		sha.update(PREFIJO_NODO);
+		sha.update(izquierdo);
+		sha.update(derecho);
+		return sha.digest();
+	}
+}
@@ -0,0 +1,104 @@
+package cc.blockchain;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Control de admisión de los canales de peticiones con buffer de {@link
+ * BlockchainCSP}: crear, disponible, transferir, alertarMax y lotes. Cada
+ * cliente cuenta su petición en la ocupación del canal antes de escribirla y
+ * el servidor la descuenta al leerla, así que la ocupación nunca es menor que
+ * lo que hay en el buffer y una petición admitida con sitio no espera.
+ */
+class CanalesAcotados {
+
+	static final int NUM_CANALES = 5;
+
+	private static final int DISPONIBLE = 1;
+	private static final int TRANSFERIR = 2;
+
+	private final int capacidad;
+	private final PoliticaDesborde politica;
+	private final AtomicIntegerArray ocupacion = new AtomicIntegerArray(NUM_CANALES);
+	private final AtomicIntegerArray maximos = new AtomicIntegerArray(NUM_CANALES);
+	private final LongAdder[] rechazadas = new LongAdder[NUM_CANALES];
+
+	/**
+	 * Constructor del control de admisión.
+	 *
+	 * @param capacidad Posiciones del buffer de cada canal
+	 * @param politica  Comportamiento con el buffer lleno
+	 */
+	CanalesAcotados(int capacidad, PoliticaDesborde politica) {
+		this.capacidad = capacidad;
+		this.politica = politica;
+		for (int i = 0; i < NUM_CANALES; i++) {
+			rechazadas[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Admite una petición antes de escribirla en su canal. Con la política de
+	 * bloqueo la petición siempre se admite, y la ocupación cuenta también a
+	 * los clientes que esperan sitio en el buffer.
+	 *
+	 * @param canal Índice del canal, de CREAR a LOTE
+	 * @throws RejectedExecutionException Si la política rechaza la petición
+	 */
+	void admitir(int canal) {
+		if (politica == PoliticaDesborde.DESCARTAR_LECTURAS && canal == DISPONIBLE
+				&& ocupacion.get(TRANSFERIR) >= capacidad) {
+			rechazar(canal);
+		}
+		int ocupadas = ocupacion.incrementAndGet(canal);
+		if (ocupadas > capacidad && (politica == PoliticaDesborde.RECHAZAR
+				|| politica == PoliticaDesborde.DESCARTAR_LECTURAS && canal == DISPONIBLE)) {
+			ocupacion.decrementAndGet(canal);
+			rechazar(canal);
+		}
+		if (ocupadas > maximos.get(canal)) {
+			maximos.accumulateAndGet(canal, ocupadas, Math::max);
+		}
+	}
+
+	/**
+	 * Descuenta una petición que el servidor acaba de leer.
+	 *
+	 * @param canal Índice del canal, de CREAR a LOTE
+	 */
+	void leida(int canal) {
+		ocupacion.decrementAndGet(canal);
+	}
+
+	int capacidad() {
+		return capacidad;
+	}
+
+	int ocupacion(int canal) {
+		return ocupacion.get(canal);
+	}
+
+	int maximo(int canal) {
+		return maximos.get(canal);
+	}
+
+	long rechazadas(int canal) {
+		return rechazadas[canal].sum();
+	}
+
+	/**
+	 * Pone a cero las ocupaciones máximas y los rechazos.
+	 */
+	void reiniciar() {
+		for (int canal = 0; canal < NUM_CANALES; canal++) {
+			maximos.set(canal, ocupacion.get(canal));
+			rechazadas[canal].reset();
+		}
+	}
+
+	private void rechazar(int canal) {
+		rechazadas[canal].increment();
+		throw new RejectedExecutionException();
+	}
+}
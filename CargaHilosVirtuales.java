@@ -0,0 +1,77 @@
+package cc.blockchain;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Prueba de carga del modo de hilos virtuales: lanza un hilo virtual por
+ * llamada a alertarMax, espera a que todas las alertas estén pendientes en el
+ * servidor y las libera con una sola transferencia. Informa del tiempo de
+ * cada fase, del heap ocupado con todas las alertas pendientes y del número
+ * de hilos de plataforma.
+ *
+ * Uso: java -Xmx512m cc.blockchain.CargaHilosVirtuales [llamadas]
+ *
+ * Necesita Java 21 o posterior; con versiones anteriores termina con código
+ * de salida 2.
+ *
+ * Cada llamada aparcada ocupa su hilo virtual, con su pila, y su alerta
+ * pendiente en el servidor, que son unos 210 bytes. En Java 21, 200.000
+ * llamadas aparcadas ocupan unos 308 MB, así que las llamadas por defecto
+ * caben en el heap indicado; para más llamadas hay que ampliarlo en
+ * proporción, unos 1,5 KB por llamada.
+ *
+ * El proceso servidor no usa hilos virtuales aunque los clientes sí (véase
+ * {@link ConfiguracionCSP#hilosVirtuales(boolean)}).
+ */
+public class CargaHilosVirtuales {
+
+	private static final int LLAMADAS = 200000;
+
+	/**
+	 * Punto de entrada de la prueba de carga.
+	 *
+	 * @param args Número de llamadas a alertarMax
+	 * @throws Exception Si no pueden lanzarse los hilos virtuales o se
+	 *                   interrumpe la espera
+	 */
+	public static void main(String[] args) throws Exception {
+		int llamadas = args.length > 0 ? Integer.parseInt(args[0]) : LLAMADAS;
+		Method lanzarVirtual;
+		try {
+			lanzarVirtual = Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException e) {
+			System.err.println("Los hilos virtuales necesitan Java 21 o posterior");
+			System.exit(2);
+			return;
+		}
+
+		final BlockchainCSP blockchain = new BlockchainCSP(new ConfiguracionCSP().hilosVirtuales(true));
+		blockchain.crear("alerta", "ALERTA", 0);
+		blockchain.crear("fondos", "FONDOS", 1);
+		CountDownLatch liberadas = new CountDownLatch(llamadas);
+		Runnable cliente = () -> {
+			blockchain.alertarMax("alerta", 0);
+			liberadas.countDown();
+		};
+
+		long inicio = System.nanoTime();
+		for (int i = 0; i < llamadas; i++) {
+			lanzarVirtual.invoke(null, cliente);
+		}
+		while (blockchain.alertasPendientes() < llamadas) {
+			Thread.sleep(10);
+		}
+		long aparcadas = System.nanoTime();
+		System.gc();
+		long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		System.out.printf("%d alertas pendientes en %d ms, heap=%d MB, hilos de plataforma=%d%n", llamadas,
+				(aparcadas - inicio) / 1000000, heap >> 20, ManagementFactory.getThreadMXBean().getThreadCount());
+
+		blockchain.transferir("fondos", "ALERTA", 1);
+		liberadas.await();
+		System.out.printf("%d alertas liberadas en %d ms%n", llamadas, (System.nanoTime() - aparcadas) / 1000000);
+		System.exit(0);
+	}
+}
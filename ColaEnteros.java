@@ -0,0 +1,72 @@
+package cc.blockchain;
+
+import java.util.Arrays;
+
+/**
+ * Cola FIFO de enteros sobre un array circular que crece al llenarse. A
+ * diferencia de un {@code ArrayDeque<Integer>}, encolar un slot nunca crea
+ * objetos, aunque quede fuera de la caché de Integer.
+ *
+ * No es segura para hilos: solo la usa el proceso servidor.
+ */
+class ColaEnteros {
+
+	private static final int CAPACIDAD_INICIAL = 16;
+
+	private int[] elementos;
+	private int cabeza;
+	private int tamano;
+
+	/**
+	 * Constructor de una cola vacía.
+	 */
+	ColaEnteros() {
+		this.elementos = new int[CAPACIDAD_INICIAL];
+	}
+
+	/**
+	 * Añade un valor al final de la cola.
+	 *
+	 * @param valor Valor a añadir
+	 */
+	void add(int valor) {
+		if (tamano == elementos.length) {
+			ampliar();
+		}
+		elementos[(cabeza + tamano) & (elementos.length - 1)] = valor;
+		tamano++;
+	}
+
+	/**
+	 * Quita y devuelve el primer valor de la cola, que no debe estar vacía.
+	 *
+	 * @return Primer valor
+	 */
+	int poll() {
+		int valor = elementos[cabeza];
+		cabeza = (cabeza + 1) & (elementos.length - 1);
+		tamano--;
+		return valor;
+	}
+
+	/**
+	 * Comprueba si la cola está vacía.
+	 *
+	 * @return true si no tiene ningún valor
+	 */
+	boolean isEmpty() {
+		return tamano == 0;
+	}
+
+	/**
+	 * Duplica la capacidad de la cola, que se mantiene en una potencia de dos,
+	 * dejando sus valores en orden desde la posición 0.
+	 */
+	private void ampliar() {
+		int[] ampliados = Arrays.copyOf(elementos, elementos.length * 2);
+		System.arraycopy(elementos, 0, ampliados, elementos.length, cabeza);
+		System.arraycopy(ampliados, cabeza, ampliados, 0, tamano);
+		elementos = ampliados;
+		cabeza = 0;
+	}
+}
@@ -0,0 +1,237 @@
+package cc.blockchain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Comprueba las pruebas de inclusión de {@link ArbolMerkle} frente a un árbol
+ * de referencia calculado entero, nivel a nivel, con números de hojas
+ * impares y alrededor de los límites de los subárboles. Cada prueba debe
+ * verificarse con la raíz de referencia y no con una raíz alterada, con la
+ * de un bloque con otra hoja cambiada ni con sus datos o su camino
+ * falseados. Después comprueba las pruebas que da {@link BlockchainCSP} para
+ * bloques reales.
+ *
+ * Uso: java cc.blockchain.ComprobarInclusion
+ *
+ * Escribe cada comprobación fallida y termina con código 1 si hay alguna.
+ */
+public class ComprobarInclusion {
+
+	private static final int SUBARBOL = 1 << ArbolMerkle.BITS_SUBARBOL;
+	private static final int[] HOJAS = { 1, 2, 3, 5, 7, SUBARBOL - 1, SUBARBOL, SUBARBOL + 1, 2 * SUBARBOL - 1,
+			2 * SUBARBOL + 1, 3 * SUBARBOL, 3 * SUBARBOL + 5, 100, 16 * SUBARBOL - 1, 16 * SUBARBOL + 1 };
+	private static final long PRIMERA = 1000;
+	private static final int TAMANO_BLOQUE = 37;
+	private static final int TRANSFERENCIAS = 200;
+	private static final long PLAZO = 5000;
+
+	private static int fallos;
+
+	/**
+	 * Punto de entrada de la comprobación.
+	 *
+	 * @param args No se usan
+	 * @throws InterruptedException Si se interrumpe la espera de los bloques
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int pruebas = 0;
+		for (int hojas : HOJAS) {
+			pruebas += comprobarArbol(hojas);
+		}
+		pruebas += comprobarCadena();
+		System.out.println(fallos == 0 ? "inclusión: " + pruebas + " pruebas correctas"
+				: "inclusión: " + fallos + " fallos");
+		System.exit(fallos == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Comprueba las pruebas de todas las hojas de un bloque.
+	 *
+	 * @param hojas Número de transferencias del bloque
+	 * @return Número de hojas comprobadas
+	 */
+	private static int comprobarArbol(int hojas) {
+		Bloque bloque = bloque(hojas, -1);
+		List<byte[][]> niveles = niveles(bloque);
+		byte[] raiz = niveles.get(niveles.size() - 1)[0];
+		ArbolMerkle arbol = new ArbolMerkle(bloque);
+		if (!Arrays.equals(arbol.raiz(), raiz)) {
+			fallar(hojas + " hojas: la raíz no coincide con la de referencia");
+		}
+		byte[] alterada = raiz.clone();
+		alterada[alterada.length - 1] ^= 1;
+
+		for (int posicion = 0; posicion < hojas; posicion++) {
+			String caso = hojas + " hojas, posición " + posicion;
+			PruebaInclusion prueba = arbol.prueba(posicion);
+			comprobar(caso + ": no verifica con la raíz", prueba.verificar(raiz));
+			comprobar(caso + ": verifica con una raíz alterada", !prueba.verificar(alterada));
+			comprobar(caso + ": la prueba no coincide con su transferencia",
+					prueba.getTransaccion() == PRIMERA + posicion && prueba.getValor() == posicion + 1
+							&& Arrays.equals(prueba.getRaiz(), raiz));
+			if (hojas > 1) {
+				// Otra hoja cambiada, en el subárbol siguiente si la hoja es la
+				// última del suyo
+				int otra = (posicion + 1) % hojas;
+				byte[] otraRaiz = new ArbolMerkle(bloque(hojas, otra)).raiz();
+				comprobar(caso + ": verifica con la raíz de un bloque con la hoja " + otra + " cambiada",
+						!prueba.verificar(otraRaiz));
+
+				// El camino de la hoja vecina con los datos de esta
+				comprobar(caso + ": verifica con el camino de la hoja " + otra,
+						!falsear(bloque, niveles, posicion, otra, 0, false).verificar(raiz));
+				comprobar(caso + ": verifica con los lados del camino invertidos",
+						!falsear(bloque, niveles, posicion, posicion, 0, true).verificar(raiz));
+			}
+			comprobar(caso + ": el camino de referencia no verifica",
+					falsear(bloque, niveles, posicion, posicion, 0, false).verificar(raiz));
+			comprobar(caso + ": verifica con otro monto",
+					!falsear(bloque, niveles, posicion, posicion, 1, false).verificar(raiz));
+		}
+		return hojas;
+	}
+
+	/**
+	 * Comprueba las pruebas de las transferencias de una blockchain con
+	 * bloques de tamaño impar.
+	 *
+	 * @return Número de transferencias comprobadas
+	 * @throws InterruptedException Si se interrumpe la espera de los bloques
+	 */
+	private static int comprobarCadena() throws InterruptedException {
+		BlockchainCSP blockchain = new BlockchainCSP(new ConfiguracionCSP().bloques(TAMANO_BLOQUE, 10));
+		blockchain.crear("a", "A", TRANSFERENCIAS * 3);
+		blockchain.crear("b", "B", 0);
+		long[] transacciones = new long[TRANSFERENCIAS];
+		for (int i = 0; i < TRANSFERENCIAS; i++) {
+			transacciones[i] = blockchain.transferirConComprobante("a", "B", 1 + i % 3);
+		}
+		long limite = System.currentTimeMillis() + PLAZO;
+		while (blockchain.pruebaInclusion(transacciones[TRANSFERENCIAS - 1]) == null
+				&& System.currentTimeMillis() < limite) {
+			Thread.sleep(10);
+		}
+		PruebaInclusion[] pruebas = new PruebaInclusion[TRANSFERENCIAS];
+		for (int i = 0; i < TRANSFERENCIAS; i++) {
+			pruebas[i] = blockchain.pruebaInclusion(transacciones[i]);
+			if (pruebas[i] == null) {
+				fallar("transferencia " + transacciones[i] + ": sin prueba");
+				return i;
+			}
+		}
+		for (int i = 0; i < TRANSFERENCIAS; i++) {
+			String caso = "transferencia " + transacciones[i];
+			PruebaInclusion prueba = pruebas[i];
+			comprobar(caso + ": no verifica con la raíz de su bloque", prueba.verificar(prueba.getRaiz()));
+			comprobar(caso + ": la prueba no coincide con su transferencia",
+					prueba.getTransaccion() == transacciones[i] && prueba.getValor() == 1 + i % 3
+							&& prueba.getOrigen().equals("A") && prueba.getDestino().equals("B"));
+			// La raíz del bloque siguiente o del anterior
+			PruebaInclusion otra = pruebas[(i + TAMANO_BLOQUE) % TRANSFERENCIAS];
+			if (otra.getAltura() != prueba.getAltura()) {
+				comprobar(caso + ": verifica con la raíz del bloque " + otra.getAltura(),
+						!prueba.verificar(otra.getRaiz()));
+			}
+		}
+		return TRANSFERENCIAS;
+	}
+
+	/**
+	 * Construye un bloque de transferencias numeradas.
+	 *
+	 * @param hojas    Número de transferencias
+	 * @param cambiada Posición de la transferencia con otro monto, o -1
+	 * @return Bloque sin hashes calculados
+	 */
+	private static Bloque bloque(int hojas, int cambiada) {
+		String[] origenes = new String[hojas];
+		String[] destinos = new String[hojas];
+		int[] valores = new int[hojas];
+		for (int i = 0; i < hojas; i++) {
+			origenes[i] = "O" + i;
+			destinos[i] = "D" + i;
+			valores[i] = i == cambiada ? -1 : i + 1;
+		}
+		return new Bloque(0, PRIMERA, origenes, destinos, valores, hojas);
+	}
+
+	/**
+	 * Calcula el árbol de referencia entero: cada nivel empareja los nodos del
+	 * anterior y un nodo sin pareja sube sin cambios.
+	 *
+	 * @param bloque Bloque de transferencias
+	 * @return Niveles del árbol, de las hojas a la raíz
+	 */
+	private static List<byte[][]> niveles(Bloque bloque) {
+		List<byte[][]> niveles = new ArrayList<>();
+		byte[][] nivel = new byte[bloque.numTransacciones][];
+		for (int i = 0; i < nivel.length; i++) {
+			nivel[i] = bloque.hashHoja(i);
+		}
+		niveles.add(nivel);
+		while (nivel.length > 1) {
+			byte[][] siguiente = new byte[(nivel.length + 1) / 2][];
+			for (int i = 0; i < siguiente.length; i++) {
+				siguiente[i] = 2 * i + 1 < nivel.length ? Bloque.hashNodo(nivel[2 * i], nivel[2 * i + 1])
+						: nivel[2 * i];
+			}
+			niveles.add(siguiente);
+			nivel = siguiente;
+		}
+		return niveles;
+	}
+
+	/**
+	 * Construye una prueba con los datos de una transferencia y el camino de
+	 * referencia de otra posición, opcionalmente falseada.
+	 *
+	 * @param bloque    Bloque de transferencias
+	 * @param niveles   Árbol de referencia
+	 * @param posicion  Posición de la transferencia cuyos datos lleva
+	 * @param camino    Posición cuyo camino lleva
+	 * @param desvio    Cantidad que se suma al monto
+	 * @param invertido Si se invierte el lado de cada hermano
+	 * @return Prueba construida
+	 */
+	private static PruebaInclusion falsear(Bloque bloque, List<byte[][]> niveles, int posicion, int camino,
+			int desvio, boolean invertido) {
+		byte[][] hermanos = new byte[niveles.size()][];
+		boolean[] izquierdos = new boolean[niveles.size()];
+		int numHermanos = 0;
+		int indice = camino;
+		for (int l = 0; l < niveles.size() - 1; l++) {
+			if ((indice ^ 1) < niveles.get(l).length) {
+				hermanos[numHermanos] = niveles.get(l)[indice ^ 1];
+				izquierdos[numHermanos++] = ((indice & 1) == 1) != invertido;
+			}
+			indice >>>= 1;
+		}
+		return new PruebaInclusion(PRIMERA + posicion, bloque.origenes[posicion], bloque.destinos[posicion],
+				bloque.valores[posicion] + desvio, 0, hermanos, izquierdos, numHermanos,
+				niveles.get(niveles.size() - 1)[0]);
+	}
+
+	/**
+	 * Anota un fallo si no se cumple una condición.
+	 *
+	 * @param caso      Descripción del fallo
+	 * @param condicion Condición comprobada
+	 */
+	private static void comprobar(String caso, boolean condicion) {
+		if (!condicion) {
+			fallar(caso);
+		}
+	}
+
+	/**
+	 * Escribe y cuenta un fallo.
+	 *
+	 * @param mensaje Descripción del fallo
+	 */
+	private static void fallar(String mensaje) {
+		System.out.println("FALLO " + mensaje);
+		fallos++;
+	}
+}
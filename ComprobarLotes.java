@@ -0,0 +1,177 @@
+package cc.blockchain;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Comprueba el resultado de los lotes de transferencias en cada
+ * {@link ModoLote}: el vector de {@link EstadoTransferencia} devuelto y los
+ * saldos que quedan, con el motor por defecto, con el transporte en anillo y
+ * con registro de escritura anticipada.
+ *
+ * Uso: java cc.blockchain.ComprobarLotes
+ *
+ * Escribe cada comprobación fallida y termina con código 1 si hay alguna.
+ */
+public class ComprobarLotes {
+
+	private static final long PLAZO = 2000;
+
+	private static int fallos;
+
+	/**
+	 * Punto de entrada de la comprobación.
+	 *
+	 * @param args No se usan
+	 * @throws Exception Si falla la espera de un lote o el fichero de registro
+	 */
+	public static void main(String[] args) throws Exception {
+		comprobarMotor("csp", new ConfiguracionCSP());
+		comprobarMotor("anillo", new ConfiguracionCSP().transporteAnillo(64).rafagaMaxima(16));
+		comprobarMotor("registro", new ConfiguracionCSP().registro(Files.createTempFile("lotes", ".log")));
+		System.out.println(fallos == 0 ? "lotes: correcto" : "lotes: " + fallos + " fallos");
+		System.exit(fallos == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Comprueba los tres modos sobre un motor nuevo.
+	 *
+	 * @param nombre        Nombre del motor en los mensajes
+	 * @param configuracion Configuración del motor
+	 * @throws Exception Si falla la espera de un lote
+	 */
+	private static void comprobarMotor(String nombre, ConfiguracionCSP configuracion) throws Exception {
+		BlockchainCSP blockchain = new BlockchainCSP(configuracion);
+		blockchain.crear("a", "A", 10);
+		blockchain.crear("b", "B", 0);
+		blockchain.crear("c", "C", 5);
+
+		// FALLAR: la transferencia sin fondos y todas las siguientes se omiten,
+		// pero las inválidas se siguen anotando como inválidas
+		List<Transferencia> lote = Arrays.asList(
+				new Transferencia("a", "B", 4),
+				new Transferencia("a", "B", 20),
+				new Transferencia("a", "C", 1),
+				null,
+				new Transferencia("c", "NADIE", 1));
+		comprobarLote(nombre + " FALLAR", blockchain.transferirLote(lote, ModoLote.FALLAR),
+				EstadoTransferencia.REALIZADA, EstadoTransferencia.OMITIDA, EstadoTransferencia.OMITIDA,
+				EstadoTransferencia.INVALIDA, EstadoTransferencia.INVALIDA);
+		comprobarSaldos(nombre + " FALLAR", blockchain, 6, 4, 5);
+
+		// OMITIR: solo se omite la transferencia sin fondos
+		comprobarLote(nombre + " OMITIR", blockchain.transferirLote(lote, ModoLote.OMITIR),
+				EstadoTransferencia.REALIZADA, EstadoTransferencia.OMITIDA, EstadoTransferencia.REALIZADA,
+				EstadoTransferencia.INVALIDA, EstadoTransferencia.INVALIDA);
+		comprobarSaldos(nombre + " OMITIR", blockchain, 1, 8, 6);
+
+		// Una transferencia del lote puede usar los fondos que recibe la cuenta
+		// de origen en una anterior del mismo lote
+		comprobarLote(nombre + " encadenado", blockchain.transferirLote(Arrays.asList(
+				new Transferencia("b", "C", 8),
+				new Transferencia("c", "A", 14)), ModoLote.FALLAR),
+				EstadoTransferencia.REALIZADA, EstadoTransferencia.REALIZADA);
+		comprobarSaldos(nombre + " encadenado", blockchain, 15, 0, 0);
+
+		// Una cuenta con una transferencia bloqueada anterior no adelanta
+		// otra del lote aunque tenga fondos para ella
+		CompletableFuture<Void> bloqueada = blockchain.transferirAsync("b", "A", 3);
+		esperarPendientes(blockchain, 1);
+		blockchain.crear("d", "D", 0);
+		comprobarLote(nombre + " OMITIR con cola", blockchain.transferirLote(Arrays.asList(
+				new Transferencia("a", "B", 1),
+				new Transferencia("b", "D", 1)), ModoLote.OMITIR),
+				EstadoTransferencia.REALIZADA, EstadoTransferencia.OMITIDA);
+		comprobarSaldos(nombre + " OMITIR con cola", blockchain, 14, 1, 0);
+
+		// BLOQUEAR: el lote responde cuando termina su última transferencia,
+		// que espera detrás de la bloqueada de su cuenta
+		CompletableFuture<EstadoTransferencia[]> enEspera = CompletableFuture.supplyAsync(
+				() -> blockchain.transferirLote(Arrays.asList(
+						new Transferencia("a", "D", 2),
+						new Transferencia("b", "D", 1),
+						new Transferencia("c", "D", 1),
+						new Transferencia("d", "NADIE", 1)), ModoLote.BLOQUEAR));
+		esperarPendientes(blockchain, 3);
+		comprobar(nombre + " BLOQUEAR en espera", !enEspera.isDone() && !bloqueada.isDone());
+		comprobarSaldos(nombre + " BLOQUEAR en espera", blockchain, 12, 1, 0);
+		blockchain.transferir("a", "B", 3);
+		blockchain.transferir("a", "C", 1);
+		bloqueada.get(PLAZO, TimeUnit.MILLISECONDS);
+		comprobarLote(nombre + " BLOQUEAR", enEspera.get(PLAZO, TimeUnit.MILLISECONDS),
+				EstadoTransferencia.REALIZADA, EstadoTransferencia.REALIZADA, EstadoTransferencia.REALIZADA,
+				EstadoTransferencia.INVALIDA);
+		comprobarSaldos(nombre + " BLOQUEAR", blockchain, 11, 0, 0);
+		comprobar(nombre + " BLOQUEAR destino", blockchain.disponible("d") == 4);
+		comprobar(nombre + " sin pendientes", blockchain.transferenciasPendientes() == 0);
+		comprobar(nombre + " conservación", blockchain.disponible("a") + blockchain.disponible("b")
+				+ blockchain.disponible("c") + blockchain.disponible("d") == 10 + 0 + 5);
+	}
+
+	/**
+	 * Compara el resultado de un lote con el esperado.
+	 *
+	 * @param caso      Descripción del caso
+	 * @param obtenidos Resultado devuelto por el lote
+	 * @param esperados Resultado esperado
+	 */
+	private static void comprobarLote(String caso, EstadoTransferencia[] obtenidos,
+			EstadoTransferencia... esperados) {
+		if (!Arrays.equals(obtenidos, esperados)) {
+			fallar(caso + ": " + Arrays.toString(obtenidos) + " en lugar de " + Arrays.toString(esperados));
+		}
+	}
+
+	/**
+	 * Compara los saldos de las cuentas a, b y c con los esperados.
+	 *
+	 * @param caso       Descripción del caso
+	 * @param blockchain Motor comprobado
+	 * @param saldos     Saldos esperados de a, b y c
+	 */
+	private static void comprobarSaldos(String caso, BlockchainCSP blockchain, int... saldos) {
+		int[] obtenidos = { blockchain.disponible("a"), blockchain.disponible("b"), blockchain.disponible("c") };
+		if (!Arrays.equals(obtenidos, saldos)) {
+			fallar(caso + ": saldos " + Arrays.toString(obtenidos) + " en lugar de " + Arrays.toString(saldos));
+		}
+	}
+
+	/**
+	 * Espera a que el servidor tenga un número de transferencias bloqueadas.
+	 *
+	 * @param blockchain Motor comprobado
+	 * @param pendientes Número de transferencias bloqueadas esperado
+	 * @throws InterruptedException Si se interrumpe la espera
+	 */
+	private static void esperarPendientes(BlockchainCSP blockchain, int pendientes) throws InterruptedException {
+		long limite = System.currentTimeMillis() + PLAZO;
+		while (blockchain.transferenciasPendientes() != pendientes && System.currentTimeMillis() < limite) {
+			Thread.sleep(5);
+		}
+	}
+
+	/**
+	 * Anota un fallo si no se cumple una condición.
+	 *
+	 * @param caso      Descripción del caso
+	 * @param condicion Condición comprobada
+	 */
+	private static void comprobar(String caso, boolean condicion) {
+		if (!condicion) {
+			fallar(caso);
+		}
+	}
+
+	/**
+	 * Escribe y cuenta un fallo.
+	 *
+	 * @param mensaje Descripción del fallo
+	 */
+	private static void fallar(String mensaje) {
+		System.out.println("FALLO " + mensaje);
+		fallos++;
+	}
+}
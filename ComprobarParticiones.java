@@ -0,0 +1,280 @@
+package cc.blockchain;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Comprueba que las transferencias entre particiones de
+ * {@link BlockchainCSPParticionada} conservan los fondos aunque una partición
+ * se detenga a mitad de las dos fases.
+ *
+ * Hace una serie de transferencias de las cuentas de la partición 0 a las de
+ * la 1 con registro de escritura y después simula cada caída posible
+ * recortando los dos registros a un prefijo de sus registros: la reserva sin
+ * abono, el abono sin confirmación o la confirmación completa de cada
+ * transferencia. Solo se prueban los cortes que respetan el orden de las
+ * fases, porque cada fase llega a disco antes de empezar la siguiente. Tras
+ * recuperar, toda transferencia reservada debe estar abonada exactamente una
+ * vez, y la suma de los saldos debe ser la inicial. Una segunda recuperación
+ * de los registros resultantes debe dar los mismos saldos.
+ *
+ * Uso: java cc.blockchain.ComprobarParticiones [transferencias]
+ *
+ * Escribe cada comprobación fallida y termina con código 1 si hay alguna.
+ */
+public class ComprobarParticiones {
+
+	private static final int CUENTAS = 8;
+	private static final int SALDO = 100;
+	private static final int TRANSFERENCIAS = 6;
+
+	private static int fallos;
+
+	/**
+	 * Registro leído de un fichero de registro de escritura.
+	 */
+	private static class Registro {
+		final char tipo;
+		final String idPrivado;
+		final long fin;
+
+		Registro(char tipo, String idPrivado, long fin) {
+			this.tipo = tipo;
+			this.idPrivado = idPrivado;
+			this.fin = fin;
+		}
+	}
+
+	/**
+	 * Punto de entrada de la comprobación.
+	 *
+	 * @param args Número de transferencias entre particiones
+	 * @throws IOException Si falla algún fichero de registro
+	 */
+	public static void main(String[] args) throws IOException {
+		int transferencias = args.length > 0 ? Integer.parseInt(args[0]) : TRANSFERENCIAS;
+		Path directorio = Files.createTempDirectory("particiones");
+		Path base = directorio.resolve("registro");
+		BlockchainCSPParticionada blockchain = new BlockchainCSPParticionada(2,
+				new ConfiguracionCSP().registro(base));
+		for (int cuenta = 0; cuenta < CUENTAS; cuenta++) {
+			blockchain.crear("c" + cuenta, "C" + cuenta, SALDO);
+		}
+
+		// Las altas de cada registro dicen a qué partición fue cada cuenta
+		List<Integer> origenes = cuentasCreadas(leer(particion(base, 0)));
+		List<Integer> destinos = cuentasCreadas(leer(particion(base, 1)));
+		if (origenes.isEmpty() || destinos.isEmpty()) {
+			System.out.println("particiones: todas las cuentas han caído en la misma partición");
+			System.exit(1);
+		}
+		int[][] saldos = new int[transferencias + 1][CUENTAS];
+		Arrays.fill(saldos[0], SALDO);
+		for (int n = 0; n < transferencias; n++) {
+			int origen = origenes.get(n % origenes.size());
+			int destino = destinos.get(n % destinos.size());
+			int valor = n + 1;
+			blockchain.transferir("c" + origen, "C" + destino, valor);
+			saldos[n + 1] = saldos[n].clone();
+			saldos[n + 1][origen] -= valor;
+			saldos[n + 1][destino] += valor;
+		}
+
+		List<Registro> registro0 = leer(particion(base, 0));
+		List<Registro> registro1 = leer(particion(base, 1));
+		int cortes = 0;
+		for (int corte0 = origenes.size(); corte0 <= registro0.size(); corte0++) {
+			int reservadas = contar(registro0, corte0, 'R');
+			int confirmadas = contar(registro0, corte0, 'F');
+			for (int corte1 = destinos.size(); corte1 <= registro1.size(); corte1++) {
+				int abonadas = contar(registro1, corte1, 'A');
+				if (abonadas > reservadas || confirmadas > abonadas) {
+					// Corte imposible: una fase en disco sin la anterior
+					continue;
+				}
+				String caso = "reservadas " + reservadas + ", abonadas " + abonadas + ", confirmadas " + confirmadas;
+				Path copia = Files.createTempDirectory(directorio, "corte").resolve("registro");
+				recortar(particion(base, 0), particion(copia, 0), registro0, corte0);
+				recortar(particion(base, 1), particion(copia, 1), registro1, corte1);
+				comprobarSaldos(caso, copia, origenes, destinos, saldos[reservadas]);
+
+				// Los registros que deja la recuperación, incluidos los reenvíos,
+				// deben recuperarse igual otra vez
+				Path segunda = Files.createTempDirectory(directorio, "segunda").resolve("registro");
+				Files.copy(particion(copia, 0), particion(segunda, 0));
+				Files.copy(particion(copia, 1), particion(segunda, 1));
+				comprobarSaldos(caso + ", segunda recuperación", segunda, origenes, destinos, saldos[reservadas]);
+				cortes++;
+			}
+		}
+		if (cortes < transferencias * 3) {
+			fallar("solo " + cortes + " cortes posibles");
+		}
+		System.out.println(fallos == 0 ? "particiones: " + cortes + " cortes correctos"
+				: "particiones: " + fallos + " fallos");
+		System.exit(fallos == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Recupera una blockchain de dos particiones y compara sus saldos con los
+	 * esperados. Primero lee las cuentas de origen, cuyas consultas esperan a
+	 * que se confirmen las reservas reenviadas, para que las de destino ya
+	 * muestren los abonos.
+	 *
+	 * @param caso     Descripción del corte
+	 * @param base     Ruta base de los registros de las particiones
+	 * @param origenes Cuentas de la partición 0
+	 * @param destinos Cuentas de la partición 1
+	 * @param saldos   Saldos esperados de todas las cuentas
+	 */
+	private static void comprobarSaldos(String caso, Path base, List<Integer> origenes, List<Integer> destinos,
+			int[] saldos) {
+		BlockchainCSPParticionada recuperada = new BlockchainCSPParticionada(2,
+				new ConfiguracionCSP().registro(base));
+		int[] obtenidos = new int[CUENTAS];
+		for (int cuenta : origenes) {
+			obtenidos[cuenta] = recuperada.disponible("c" + cuenta);
+		}
+		for (int cuenta : destinos) {
+			obtenidos[cuenta] = recuperada.disponible("c" + cuenta);
+		}
+		if (!Arrays.equals(obtenidos, saldos)) {
+			fallar(caso + ": saldos " + Arrays.toString(obtenidos) + " en lugar de " + Arrays.toString(saldos));
+		}
+		if (Arrays.stream(obtenidos).sum() != CUENTAS * SALDO) {
+			fallar(caso + ": la suma de los saldos es " + Arrays.stream(obtenidos).sum());
+		}
+	}
+
+	/**
+	 * Lee los registros completos de una copia de un fichero de registro.
+	 *
+	 * @param fichero Fichero de registro de una partición
+	 * @return Registros en orden, con la posición de su final
+	 * @throws IOException Si no puede copiarse el fichero
+	 */
+	private static List<Registro> leer(Path fichero) throws IOException {
+		Path copia = Files.createTempFile("registro", ".log");
+		Files.write(copia, Files.readAllBytes(fichero));
+		List<Registro> registros = new ArrayList<>();
+		// Los IDs son ASCII, así que su longitud en UTF es la del texto
+		var lector = new RegistroEscritura.Lector() {
+			long posicion;
+
+			private void anotar(char tipo, String idPrivado, long longitud) {
+				posicion += longitud;
+				registros.add(new Registro(tipo, idPrivado, posicion));
+			}
+
+			@Override
+			public void crear(String idPrivado, String idPublico, int saldo) {
+				anotar('C', idPrivado, 1 + 2 + idPrivado.length() + 2 + idPublico.length() + 4);
+			}
+
+			@Override
+			public void transferir(int origen, int destino, int valor) {
+				anotar('T', null, 13);
+			}
+
+			@Override
+			public void ajustar(int cuenta, int cantidad) {
+				anotar('J', null, 9);
+			}
+
+			@Override
+			public void reservar(EstadoParticiones.Reserva reserva) {
+				anotar('R', null, 1 + 4 + 4 + 4 + 8 + 2 + reserva.idPublicoDestino.length());
+			}
+
+			@Override
+			public void confirmar(int particion, long secuencia) {
+				anotar('F', null, 13);
+			}
+
+			@Override
+			public void abonar(int cuenta, int valor, int particion, long secuencia) {
+				anotar('A', null, 21);
+			}
+		};
+		long fin = RegistroEscritura.recuperar(copia, 0, lector);
+		Files.delete(copia);
+		if (fin != lector.posicion || fin != Files.size(fichero)) {
+			fallar(fichero + ": registros hasta " + lector.posicion + " de " + Files.size(fichero) + " bytes");
+		}
+		return registros;
+	}
+
+	/**
+	 * Devuelve el número de las cuentas dadas de alta en un registro.
+	 *
+	 * @param registros Registros de una partición
+	 * @return Número de cada cuenta, en orden de alta
+	 */
+	private static List<Integer> cuentasCreadas(List<Registro> registros) {
+		List<Integer> cuentas = new ArrayList<>();
+		for (Registro registro : registros) {
+			if (registro.tipo == 'C') {
+				cuentas.add(Integer.parseInt(registro.idPrivado.substring(1)));
+			}
+		}
+		return cuentas;
+	}
+
+	/**
+	 * Cuenta los registros de un tipo entre los primeros de un fichero.
+	 *
+	 * @param registros Registros de una partición
+	 * @param corte     Número de registros que sobreviven a la caída
+	 * @param tipo      Tipo de registro
+	 * @return Número de registros de ese tipo
+	 */
+	private static int contar(List<Registro> registros, int corte, char tipo) {
+		int cuenta = 0;
+		for (int i = 0; i < corte; i++) {
+			if (registros.get(i).tipo == tipo) {
+				cuenta++;
+			}
+		}
+		return cuenta;
+	}
+
+	/**
+	 * Copia los primeros registros de un fichero de registro.
+	 *
+	 * @param origen    Fichero completo
+	 * @param destino   Fichero recortado
+	 * @param registros Registros del fichero completo
+	 * @param corte     Número de registros que se copian
+	 * @throws IOException Si falla la copia
+	 */
+	private static void recortar(Path origen, Path destino, List<Registro> registros, int corte) throws IOException {
+		long fin = corte == 0 ? 0 : registros.get(corte - 1).fin;
+		Files.write(destino, Arrays.copyOf(Files.readAllBytes(origen), (int) fin));
+	}
+
+	/**
+	 * Devuelve la ruta del registro de una partición.
+	 *
+	 * @param base      Ruta base de los registros
+	 * @param particion Índice de la partición
+	 * @return Ruta del fichero de la partición
+	 */
+	private static Path particion(Path base, int particion) {
+		return Paths.get(base + "." + particion);
+	}
+
+	/**
+	 * Escribe y cuenta un fallo.
+	 *
+	 * @param mensaje Descripción del fallo
+	 */
+	private static void fallar(String mensaje) {
+		System.out.println("FALLO " + mensaje);
+		fallos++;
+	}
+}
@@ -0,0 +1,174 @@
+package cc.blockchain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Comprueba la recuperación de {@link BlockchainCSP} desde el registro de
+ * escritura y desde un punto de control tras una caída a mitad de un grupo de
+ * sincronización.
+ *
+ * Crea unas cuentas y lanza transferencias asíncronas desde un solo hilo, de
+ * modo que el servidor las atiende en el orden en que se lanzan y las agrupa
+ * al sincronizar, y guarda una copia del punto de control tomado a mitad de
+ * la serie. Después simula caídas recortando el registro en posiciones que
+ * caen entre registros y dentro de ellos. La recuperación debe reflejar
+ * exactamente las transferencias cuyo registro está completo, descartar el
+ * registro a medio escribir y seguir añadiendo registros válidos, tanto
+ * reproduciendo el registro entero como partiendo del punto de control y
+ * reproduciendo solo la cola posterior a él.
+ *
+ * Uso: java cc.blockchain.ComprobarRecuperacion [transferencias] [semilla]
+ *
+ * Escribe cada comprobación fallida y termina con código 1 si hay alguna.
+ */
+public class ComprobarRecuperacion {
+
+	private static final int CUENTAS = 10;
+	private static final int SALDO = 10000;
+	private static final int TRANSFERENCIAS = 400;
+	private static final int TAMANO_TRANSFERIR = 13;
+	private static final int PASO_CORTES = 23;
+	// Desplazamiento de la posición del registro en la cabecera del punto de
+	// control
+	private static final int POSICION_PUNTO_CONTROL = 8;
+
+	private static int fallos;
+
+	/**
+	 * Punto de entrada de la comprobación.
+	 *
+	 * @param args Número de transferencias y semilla
+	 * @throws Exception Si falla algún fichero o la espera de una transferencia
+	 */
+	public static void main(String[] args) throws Exception {
+		int transferencias = args.length > 0 ? Integer.parseInt(args[0]) : TRANSFERENCIAS;
+		long semilla = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		Random aleatorio = new Random(semilla);
+		Path directorio = Files.createTempDirectory("recuperacion");
+		Path registro = directorio.resolve("registro.log");
+		Path puntoControl = directorio.resolve("control.bin");
+		BlockchainCSP blockchain = new BlockchainCSP(
+				new ConfiguracionCSP().registro(registro).puntoControl(puntoControl, 0));
+		for (int cuenta = 0; cuenta < CUENTAS; cuenta++) {
+			blockchain.crear("c" + cuenta, "C" + cuenta, SALDO);
+		}
+		long inicio = Files.size(registro);
+
+		// saldos[k]: saldos tras las k primeras transferencias
+		int[][] saldos = new int[transferencias + 1][CUENTAS];
+		Arrays.fill(saldos[0], SALDO);
+		List<CompletableFuture<Void>> futuros = new ArrayList<>();
+		Path copiaControl = directorio.resolve("control.copia");
+		for (int n = 0; n < transferencias; n++) {
+			int origen = aleatorio.nextInt(CUENTAS);
+			int destino = (origen + 1 + aleatorio.nextInt(CUENTAS - 1)) % CUENTAS;
+			int valor = 1 + aleatorio.nextInt(5);
+			futuros.add(blockchain.transferirAsync("c" + origen, "C" + destino, valor));
+			saldos[n + 1] = saldos[n].clone();
+			saldos[n + 1][origen] -= valor;
+			saldos[n + 1][destino] += valor;
+			if (n == transferencias / 2) {
+				// Punto de control a mitad de la serie
+				CompletableFuture.allOf(futuros.toArray(new CompletableFuture[0])).join();
+				Thread.sleep(200);
+				Files.copy(puntoControl, copiaControl);
+			}
+		}
+		CompletableFuture.allOf(futuros.toArray(new CompletableFuture[0])).join();
+		long fin = Files.size(registro);
+		if (fin != inicio + (long) TAMANO_TRANSFERIR * transferencias) {
+			fallar("el registro ocupa " + fin + " bytes en lugar de "
+					+ (inicio + (long) TAMANO_TRANSFERIR * transferencias));
+		}
+		long posicionControl = ByteBuffer.wrap(Files.readAllBytes(copiaControl)).getLong(POSICION_PUNTO_CONTROL);
+		if (posicionControl <= inicio || posicionControl >= fin) {
+			fallar("el punto de control cubre hasta " + posicionControl + ", fuera de la serie");
+		}
+
+		byte[] completo = Files.readAllBytes(registro);
+		int cortes = 0;
+		for (long corte = inicio; corte <= fin; corte += PASO_CORTES) {
+			int realizadas = (int) ((corte - inicio) / TAMANO_TRANSFERIR);
+			String caso = "corte en " + corte + " (" + realizadas + " transferencias completas)";
+			Path caida = Files.createTempDirectory(directorio, "caida");
+			Path copia = caida.resolve("registro.log");
+			Files.write(copia, Arrays.copyOf(completo, (int) corte));
+			comprobarRegistro(caso, copia, inicio + (long) TAMANO_TRANSFERIR * realizadas, saldos[realizadas]);
+			if (corte >= posicionControl) {
+				Path control = caida.resolve("control.bin");
+				Path cola = caida.resolve("cola.log");
+				Files.copy(copiaControl, control);
+				Files.write(cola, Arrays.copyOf(completo, (int) corte));
+				comprobarSaldos(caso + " con punto de control",
+						new BlockchainCSP(new ConfiguracionCSP().registro(cola).puntoControl(control, 0)),
+						saldos[realizadas]);
+			}
+			cortes++;
+		}
+		System.out.println(fallos == 0 ? "recuperación: " + cortes + " cortes correctos"
+				: "semilla " + semilla + ", recuperación: " + fallos + " fallos");
+		System.exit(fallos == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Recupera un registro recortado, comprueba sus saldos y que se ha
+	 * descartado el registro a medio escribir, y después comprueba que una
+	 * transferencia nueva se recupera también.
+	 *
+	 * @param caso    Descripción del corte
+	 * @param copia   Registro recortado
+	 * @param valido  Posición del final del último registro completo
+	 * @param saldos  Saldos esperados
+	 * @throws IOException Si falla la copia del registro
+	 */
+	private static void comprobarRegistro(String caso, Path copia, long valido, int[] saldos) throws IOException {
+		BlockchainCSP recuperada = new BlockchainCSP(new ConfiguracionCSP().registro(copia));
+		comprobarSaldos(caso, recuperada, saldos);
+		if (Files.size(copia) != valido) {
+			fallar(caso + ": el registro recuperado ocupa " + Files.size(copia) + " bytes en lugar de " + valido);
+		}
+		recuperada.transferir("c0", "C1", 1);
+		int[] siguientes = saldos.clone();
+		siguientes[0]--;
+		siguientes[1]++;
+		Path segunda = Files.createTempFile(copia.getParent(), "segunda", ".log");
+		Files.write(segunda, Files.readAllBytes(copia));
+		comprobarSaldos(caso + " y una transferencia más",
+				new BlockchainCSP(new ConfiguracionCSP().registro(segunda)), siguientes);
+	}
+
+	/**
+	 * Compara los saldos de una blockchain recuperada con los esperados.
+	 *
+	 * @param caso       Descripción del corte
+	 * @param blockchain Blockchain recuperada
+	 * @param saldos     Saldos esperados
+	 */
+	private static void comprobarSaldos(String caso, BlockchainCSP blockchain, int[] saldos) {
+		int[] obtenidos = new int[CUENTAS];
+		for (int cuenta = 0; cuenta < CUENTAS; cuenta++) {
+			obtenidos[cuenta] = blockchain.disponible("c" + cuenta);
+		}
+		if (!Arrays.equals(obtenidos, saldos)) {
+			fallar(caso + ": saldos " + Arrays.toString(obtenidos) + " en lugar de " + Arrays.toString(saldos));
+		}
+	}
+
+	/**
+	 * Escribe y cuenta un fallo.
+	 *
+	 * @param mensaje Descripción del fallo
+	 */
+	private static void fallar(String mensaje) {
+		System.out.println("FALLO " + mensaje);
+		fallos++;
+	}
+}
@@ -0,0 +1,466 @@
+package cc.blockchain;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Opciones de construcción de {@link BlockchainCSP}. Los valores por defecto
+ * reproducen el comportamiento original: todas las operaciones se atienden en
+ * el proceso servidor.
+ */
+public class ConfiguracionCSP {
+
+	private boolean lecturaDirecta;
+	private Path registro;
+	private int grupoMaximo = 1024;
+	private long esperaGrupo;
+	private Path puntoControl;
+	private long intervaloPuntoControl;
+	private int tamanoBloque;
+	private long esperaBloque;
+	private boolean hilosVirtuales;
+	private Seleccion seleccion = Seleccion.EQUITATIVA;
+	private int[] pesos;
+	private int vaciadoMaximo = 1;
+	private boolean medirEsperas;
+	private int rafagaMaxima = 1;
+	private boolean metricas;
+	private int capacidadAnillo;
+	private int capacidadCanales;
+	private PoliticaDesborde desborde = PoliticaDesborde.BLOQUEAR;
+	private Path traza;
+	private int particion;
+
+	/**
+	 * Políticas con las que el servidor elige el siguiente canal a atender.
+	 */
+	enum Seleccion {
+		EQUITATIVA, PONDERADA, PRIORIDAD_LECTURAS, VACIADO
+	}
+
+	/**
+	 * Activa la lectura directa de saldos. El servidor publica cada saldo en una
+	 * estructura de lectura concurrente y disponible se responde en el hilo que
+	 * llama, sin comunicarse con el servidor. Cada cliente ve siempre el efecto
+	 * de sus propias operaciones ya completadas.
+	 *
+	 * No admite {@link #registro(Path)}: el servidor publica cada saldo al
+	 * aplicar la operación, antes de que llegue a disco, así que una lectura
+	 * directa podría ver un saldo que se pierde en una caída. El constructor
+	 * de {@link BlockchainCSP} rechaza la combinación.
+	 *
+	 * @param lecturaDirecta true para leer los saldos sin pasar por el servidor
+	 * @return Esta configuración
+	 */
+	public ConfiguracionCSP lecturaDirecta(boolean lecturaDirecta) {
+		this.lecturaDirecta = lecturaDirecta;
+		return this;
+	}
+
+	/**
+	 * Activa la persistencia con un registro de escritura anticipada. Al
+	 * construir el servidor se reconstruyen las cuentas a partir del fichero si
+	 * ya existe. Cada respuesta se envía solo cuando los cambios que observa
+	 * están en disco; las peticiones que llegan juntas comparten una única
+	 * sincronización del fichero. No admite {@link #lecturaDirecta(boolean)}.
+	 *
+	 * @param registro Ruta del fichero de registro, o null para no persistir
+	 * @return Esta configuración
+	 */
+	public ConfiguracionCSP registro(Path registro) {
+		this.registro = registro;
+		return this;
+	}
+
+	/**
+	 * Fija el número máximo de peticiones que comparten una sincronización del
+	 * registro. Valores mayores dan más rendimiento a costa de más latencia.
+	 *
+	 * @param grupoMaximo Peticiones por grupo, 1024 por defecto
+	 * @return Esta configuración
+	 * @throws IllegalArgumentException Si el valor no es positivo
+	 */
+	public ConfiguracionCSP grupoMaximo(int grupoMaximo) {
+		if (grupoMaximo <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.grupoMaximo = grupoMaximo;
+		return this;
+	}
+
+	/**
+	 * Fija cuánto puede esperar un grupo abierto a que lleguen más peticiones
+	 * antes de sincronizar el registro. Con 0, el grupo se cierra en cuanto no
+	 * quedan peticiones listas en los canales.
+	 *
+	 * @param milisegundos Espera máxima en milisegundos, 0 por defecto
+	 * @return Esta configuración
+	 * @throws IllegalArgumentException Si el valor es negativo
+	 */
+	public ConfiguracionCSP esperaGrupo(long milisegundos) {
+		if (milisegundos < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.esperaGrupo = milisegundos;
+		return this;
+	}
+
+	/**
+	 * Activa los puntos de control periódicos, que requieren registro de
+	 * escritura. Al construir el servidor se cargan las cuentas del último
+	 * punto de control y solo se reproducen los registros posteriores a él.
+	 *
+	 * @param ruta         Ruta del fichero de punto de control, o null para no
+	 *                     usarlos
+	 * @param milisegundos Tiempo mínimo entre dos puntos de control
+	 * @return Esta configuración
+	 * @throws IllegalArgumentException Si el intervalo es negativo
+	 */
+	public ConfiguracionCSP puntoControl(Path ruta, long milisegundos) {
+		if (milisegundos < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.puntoControl = ruta;
+		this.intervaloPuntoControl = milisegundos;
+		return this;
+	}
+
+	/**
+	 * Activa la construcción de bloques. Las transferencias realizadas se
+	 * agrupan en bloques encadenados por hash, que se sellan al alcanzar un
+	 * número de transferencias o un tiempo máximo abiertos. Los hashes se
+	 * calculan fuera del proceso servidor.
+	 *
+	 * @param tamano       Transferencias por bloque, o 0 para no construir
+	 *                     bloques
+	 * @param milisegundos Tiempo máximo que un bloque con transferencias sigue
+	 *                     abierto
+	 * @return Esta configuración
+	 * @throws IllegalArgumentException Si algún valor es negativo
+	 */
+	public ConfiguracionCSP bloques(int tamano, long milisegundos) {
+		if (tamano < 0 || milisegundos < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.tamanoBloque = tamano;
+		this.esperaBloque = milisegundos;
+		return this;
+	}
+
+	/**
+	 * Adapta el servidor a clientes que se ejecutan en hilos virtuales. Los
+	 * canales de peticiones tienen buffer, de modo que enviar una petición no
+	 * espera al servidor, y las llamadas bloqueantes esperan su respuesta en un
+	 * futuro en lugar de leer un canal. Así ningún hilo virtual queda fijado a
+	 * su hilo portador mientras espera, y un hilo virtual que termina no deja
+	 * atrás una petición ni un canal de respuesta propios.
+	 *
+	 * Solo los clientes pasan a hilos virtuales: el proceso servidor sigue en
+	 * un hilo de plataforma, que este modo no cambia. Pasa casi todo el tiempo
+	 * esperando en la selección de JCSP, que usa monitores, y en un hilo
+	 * virtual ocuparía un hilo portador de forma permanente.
+	 *
+	 * @param hilosVirtuales true si los clientes usan hilos virtuales
+	 * @return Esta configuración
+	 */
+	public ConfiguracionCSP hilosVirtuales(boolean hilosVirtuales) {
+		this.hilosVirtuales = hilosVirtuales;
+		return this;
+	}
+
+	/**
+	 * Atiende los canales de peticiones por turnos equitativos, sin preferir
+	 * ninguna operación. Es la política por defecto.
+	 *
+	 * @return Esta configuración
+	 */
+	public ConfiguracionCSP seleccionEquitativa() {
+		this.seleccion = Seleccion.EQUITATIVA;
+		return this;
+	}
+
+	/**
+	 * Reparte los turnos del servidor entre los canales con peticiones en
+	 * proporción a sus pesos. Con pesos 1, 4, 1 y 1, por ejemplo, cuando todos
+	 * los canales tienen peticiones esperando se atienden cuatro consultas de
+	 * saldo por cada petición de otro tipo. Los lotes comparten el peso de las
+	 * transferencias.
+	 *
+	 * @param crear      Peso de las peticiones de creación
+	 * @param disponible Peso de las consultas de saldo
+	 * @param transferir Peso de las transferencias
+	 * @param alertar    Peso de las alertas
+	 * @return Esta configuración
+	 * @throws IllegalArgumentException Si algún peso no es positivo
+	 */
+	public ConfiguracionCSP seleccionPonderada(int crear, int disponible, int transferir, int alertar) {
+		if (crear <= 0 || disponible <= 0 || transferir <= 0 || alertar <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.seleccion = Seleccion.PONDERADA;
+		this.pesos = new int[] { crear, disponible, transferir, alertar };
+		return this;
+	}
+
+	/**
+	 * Atiende las consultas de saldo antes que cualquier otra petición. Con un
+	 * flujo continuo de consultas el resto de operaciones puede esperar
+	 * indefinidamente, así que solo conviene con cargas de lectura a ráfagas.
+	 *
+	 * @return Esta configuración
+	 */
+	public ConfiguracionCSP seleccionPrioridadLecturas() {
+		this.seleccion = Seleccion.PRIORIDAD_LECTURAS;
+		return this;
+	}
+
+	/**
+	 * Atiende hasta un número de peticiones seguidas del canal elegido
+	 * mientras tenga peticiones esperando, antes de volver a elegir canal.
+	 * Las peticiones de un mismo tipo se procesan juntas a costa de retrasar
+	 * las de los demás canales.
+	 *
+	 * @param maximo Peticiones seguidas por canal
+	 * @return Esta configuración
+	 * @throws IllegalArgumentException Si el valor no es positivo
+	 */
+	public ConfiguracionCSP seleccionVaciado(int maximo) {
+		if (maximo <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.seleccion = Seleccion.VACIADO;
+		this.vaciadoMaximo = maximo;
+		return this;
+	}
+
+	/**
+	 * Atiende las peticiones en ráfagas. Tras la petición elegida, el servidor
+	 * sigue leyendo las que ya esperan en cualquier canal, hasta vaciarlos o
+	 * completar la ráfaga, y solo entonces busca las transferencias que se
+	 * pueden liberar: una pasada por ráfaga en lugar de una por petición. Las
+	 * transferencias de cada cuenta siguen realizándose en orden, y las alertas
+	 * se siguen comprobando en cada abono.
+	 *
+	 * @param maximo Peticiones por ráfaga, 1 por defecto
+	 * @return Esta configuración
+	 * @throws IllegalArgumentException Si el valor no es positivo
+	 */
+	public ConfiguracionCSP rafagaMaxima(int maximo) {
+		if (maximo <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.rafagaMaxima = maximo;
+		return this;
+	}
+
+	/**
+	 * Activa la medida del tiempo que cada petición espera en su canal hasta
+	 * que el servidor la lee, por tipo de operación. Las medidas se consultan
+	 * con {@link BlockchainCSP#esperasCola()}.
+	 *
+	 * @param medirEsperas true para medir las esperas
+	 * @return Esta configuración
+	 */
+	public ConfiguracionCSP medirEsperas(boolean medirEsperas) {
+		this.medirEsperas = medirEsperas;
+		return this;
+	}
+
+	/**
+	 * Activa las métricas del servidor: peticiones y tiempo de servicio por
+	 * tipo, duración de las pasadas de desbloqueo y peticiones bloqueadas. Se
+	 * consultan con {@link BlockchainCSP#metricas()} y, a petición, se
+	 * publican como MBean con {@link BlockchainCSP#publicarMetricas()}.
+	 *
+	 * @param metricas true para recoger métricas
+	 * @return Esta configuración
+	 */
+	public ConfiguracionCSP metricas(boolean metricas) {
+		this.metricas = metricas;
+		return this;
+	}
+
+	/**
+	 * Cambia el transporte de las peticiones de los clientes: en lugar de sus
+	 * canales de JCSP, que obligan a cada cliente a esperar a que el servidor
+	 * lo atienda, las peticiones se publican en un anillo reservado de
+	 * antemano. Cada cliente reclama su posición con una operación atómica y
+	 * sigue a esperar su respuesta, y el servidor consume las peticiones por
+	 * lotes en orden de llegada. Con el anillo las políticas de selección solo
+	 * reparten los turnos entre el anillo y los canales internos.
+	 *
+	 * @param capacidad Posiciones del anillo, que se redondean a una potencia
+	 *                  de dos, o 0 para usar los canales
+	 * @return Esta configuración
+	 * @throws IllegalArgumentException Si la capacidad es negativa
+	 */
+	public ConfiguracionCSP transporteAnillo(int capacidad) {
+		if (capacidad < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.capacidadAnillo = capacidad;
+		return this;
+	}
+
+	/**
+	 * Da a los canales de peticiones de los clientes un buffer acotado, de
+	 * modo que enviar una petición no espera a que el servidor la lea y las
+	 * ráfagas se absorben en el buffer. Cuando el buffer de una petición está
+	 * lleno, la política de desborde decide si el cliente espera o la petición
+	 * se rechaza con RejectedExecutionException, que las versiones asíncronas
+	 * devuelven en el futuro. Las métricas del servidor
+	 * incluyen la ocupación de cada canal. Tiene preferencia sobre los buffers
+	 * sin límite de {@link #hilosVirtuales(boolean)} y no tiene efecto con
+	 * {@link #transporteAnillo(int)}.
+	 *
+	 * @param capacidad Posiciones del buffer de cada canal, o 0 para canales
+	 *                  sin buffer
+	 * @param desborde  Comportamiento con el buffer lleno
+	 * @return Esta configuración
+	 * @throws IllegalArgumentException Si la capacidad es negativa o la
+	 *                                  política es nula
+	 */
+	public ConfiguracionCSP canalesConBuffer(int capacidad, PoliticaDesborde desborde) {
+		if (capacidad < 0 || desborde == null) {
+			throw new IllegalArgumentException();
+		}
+		this.capacidadCanales = capacidad;
+		this.desborde = desborde;
+		return this;
+	}
+
+	/**
+	 * Anota en una traza binaria cada petición que atiende el servidor, en el
+	 * orden en que la lee, con su resultado, las pasadas de desbloqueo y las
+	 * peticiones que liberan, vencen o se cancelan. La traza puede
+	 * reproducirse después con {@link ReproductorTraza}. El fichero se vacía
+	 * al construir el servidor; con registro de escritura, la traza empieza
+	 * con las cuentas recuperadas.
+	 *
+	 * @param traza Ruta del fichero de traza, o null para no anotar
+	 * @return Esta configuración
+	 */
+	public ConfiguracionCSP traza(Path traza) {
+		this.traza = traza;
+		return this;
+	}
+
+	/**
+	 * Devuelve una copia de esta configuración para una partición de una
+	 * {@link BlockchainCSPParticionada}, con su índice y sus propios ficheros
+	 * de registro, de punto de control y de traza.
+	 *
+	 * @param particion Índice de la partición
+	 * @return Configuración de la partición
+	 */
+	ConfiguracionCSP paraParticion(int particion) {
+		ConfiguracionCSP copia = new ConfiguracionCSP();
+		copia.lecturaDirecta = lecturaDirecta;
+		copia.grupoMaximo = grupoMaximo;
+		copia.esperaGrupo = esperaGrupo;
+		copia.intervaloPuntoControl = intervaloPuntoControl;
+		copia.tamanoBloque = tamanoBloque;
+		copia.esperaBloque = esperaBloque;
+		copia.hilosVirtuales = hilosVirtuales;
+		copia.seleccion = seleccion;
+		copia.pesos = pesos;
+		copia.vaciadoMaximo = vaciadoMaximo;
+		copia.medirEsperas = medirEsperas;
+		copia.rafagaMaxima = rafagaMaxima;
+		copia.metricas = metricas;
+		copia.capacidadAnillo = capacidadAnillo;
+		copia.capacidadCanales = capacidadCanales;
+		copia.desborde = desborde;
+		copia.particion = particion;
+		if (registro != null) {
+			copia.registro = Paths.get(registro.toString() + "." + particion);
+		}
+		if (puntoControl != null) {
+			copia.puntoControl = Paths.get(puntoControl.toString() + "." + particion);
+		}
+		if (traza != null) {
+			copia.traza = Paths.get(traza.toString() + "." + particion);
+		}
+		return copia;
+	}
+
+	boolean lecturaDirecta() {
+		return lecturaDirecta;
+	}
+
+	Path registro() {
+		return registro;
+	}
+
+	int grupoMaximo() {
+		return grupoMaximo;
+	}
+
+	long esperaGrupo() {
+		return esperaGrupo;
+	}
+
+	Path puntoControl() {
+		return puntoControl;
+	}
+
+	long intervaloPuntoControl() {
+		return intervaloPuntoControl;
+	}
+
+	int tamanoBloque() {
+		return tamanoBloque;
+	}
+
+	long esperaBloque() {
+		return esperaBloque;
+	}
+
+	boolean hilosVirtuales() {
+		return hilosVirtuales;
+	}
+
+	Seleccion seleccion() {
+		return seleccion;
+	}
+
+	int[] pesos() {
+		return pesos;
+	}
+
+	int vaciadoMaximo() {
+		return vaciadoMaximo;
+	}
+
+	boolean medirEsperas() {
+		return medirEsperas;
+	}
+
+	int rafagaMaxima() {
+		return rafagaMaxima;
+	}
+
+	boolean metricas() {
+		return metricas;
+	}
+
+	int capacidadAnillo() {
+		return capacidadAnillo;
+	}
+
+	int capacidadCanales() {
+		return capacidadCanales;
+	}
+
+	PoliticaDesborde desborde() {
+		return desborde;
+	}
+
+	Path traza() {
+		return traza;
+	}
+
+	int particion() {
+		return particion;
+	}
+}
@@ -0,0 +1,235 @@
+package cc.blockchain;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Agrupa en bloques las transferencias realizadas por el servidor. El servidor
+ * anota cada transferencia en el bloque abierto y lo sella cuando alcanza su
+ * tamaño o su tiempo máximo; sellar solo entrega el bloque a un grupo de
+ * hilos, así que el bucle del servidor nunca espera a que se calculen los
+ * hashes.
+ *
+ * Los hashes se calculan en cadena: las raíces de Merkle de varios bloques se
+ * calculan a la vez, y el hash de cada bloque se calcula en cuanto están
+ * listos su raíz y el hash del bloque anterior. Los bloques encadenados pueden
+ * consultarse desde cualquier hilo. Todos los constructores, uno por
+ * partición, comparten el mismo grupo de hilos.
+ *
+ * Un fallo al calcular los hashes de un bloque solo afecta a ese bloque: se
+ * reintenta una vez al encadenarlo y, si vuelve a fallar, el bloque queda
+ * fuera de la cadena y el siguiente se encadena tras el anterior.
+ *
+ * Los niveles superiores del árbol de Merkle de los bloques más recientes se
+ * guardan en una caché, de modo que las pruebas de inclusión de esos bloques
+ * solo recalculan el subárbol de la transferencia.
+ *
+ * {@link #anotar(String, String, int)}, {@link #vencimiento()}, {@link
+ * #lleno()} y {@link #sellar()} solo los llama el proceso servidor.
+ */
+class ConstructorBloques {
+
+	private static final byte[] GENESIS = new byte[Bloque.BYTES_HASH];
+	private static final int BLOQUES_EN_CACHE = 1024;
+
+	// Hilos que calculan los hashes de los bloques de todos los constructores
+	private static final ExecutorService HILOS;
+
+	static {
+		AtomicInteger numHilo = new AtomicInteger();
+		HILOS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), tarea -> {
+			Thread hilo = new Thread(tarea, "bloques-" + numHilo.getAndIncrement());
+			hilo.setDaemon(true);
+			return hilo;
+		});
+	}
+
+	private final int tamano;
+	private final long espera;
+
+	// Bloque abierto, solo accesible por el servidor
+	private String[] origenes;
+	private String[] destinos;
+	private int[] valores;
+	private int numTransacciones;
+	private long inicioBloque;
+	private long siguienteTransaccion;
+	private long bloquesSellados;
+
+	// Último bloque encadenado tras procesar el último sellado, del que
+	// depende el hash del siguiente. Un bloque fallido no lo completa con un
+	// error, así que no arrastra a los siguientes.
+	private CompletableFuture<Bloque> anterior = CompletableFuture.completedFuture(null);
+
+	// Bloques encadenados, por número de su primera transferencia
+	private final ConcurrentSkipListMap<Long, Bloque> cadena = new ConcurrentSkipListMap<>();
+	private volatile Bloque ultimo;
+
+	// Árboles de los últimos bloques usados, por altura del bloque
+	private final Map<Long, ArbolMerkle> arboles = Collections
+			.synchronizedMap(new LinkedHashMap<Long, ArbolMerkle>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, ArbolMerkle> masAntiguo) {
+					return size() > BLOQUES_EN_CACHE;
+				}
+			});
+
+	/**
+	 * Constructor del constructor de bloques.
+	 *
+	 * @param tamano Número de transferencias a partir del cual se sella un
+	 *               bloque
+	 * @param espera Tiempo máximo en milisegundos que un bloque con
+	 *               transferencias puede seguir abierto
+	 */
+	ConstructorBloques(int tamano, long espera) {
+		this.tamano = tamano;
+		this.espera = espera;
+		abrir();
+	}
+
+	/**
+	 * Anota una transferencia realizada en el bloque abierto.
+	 *
+	 * @param origen  ID público de la cuenta de origen
+	 * @param destino ID público de la cuenta de destino
+	 * @param valor   Monto transferido
+	 * @return Número de la transferencia en la cadena
+	 */
+	long anotar(String origen, String destino, int valor) {
+		if (numTransacciones == valores.length) {
+			// Una cascada de desbloqueos puede desbordar el bloque antes de sellarlo
+			origenes = Arrays.copyOf(origenes, numTransacciones * 2);
+			destinos = Arrays.copyOf(destinos, numTransacciones * 2);
+			valores = Arrays.copyOf(valores, numTransacciones * 2);
+		}
+		if (numTransacciones == 0) {
+			inicioBloque = System.currentTimeMillis();
+		}
+		origenes[numTransacciones] = origen;
+		destinos[numTransacciones] = destino;
+		valores[numTransacciones] = valor;
+		numTransacciones++;
+		return siguienteTransaccion++;
+	}
+
+	/**
+	 * Comprueba si el bloque abierto ha alcanzado su tamaño.
+	 *
+	 * @return true si debe sellarse
+	 */
+	boolean lleno() {
+		return numTransacciones >= tamano;
+	}
+
+	/**
+	 * Devuelve el instante en que debe sellarse el bloque abierto por tiempo.
+	 *
+	 * @return Instante en milisegundos, o Long.MAX_VALUE si está vacío
+	 */
+	long vencimiento() {
+		return numTransacciones == 0 ? Long.MAX_VALUE : inicioBloque + espera;
+	}
+
+	/**
+	 * Sella el bloque abierto, si tiene transferencias, y encarga sus hashes a
+	 * los hilos del constructor.
+	 */
+	void sellar() {
+		if (numTransacciones == 0) {
+			return;
+		}
+		Bloque bloque = new Bloque(bloquesSellados++, siguienteTransaccion - numTransacciones, origenes, destinos,
+				valores, numTransacciones);
+		abrir();
+		// Si falla la raíz, se recalcula al encadenar
+		CompletableFuture<ArbolMerkle> arbol = CompletableFuture
+				.supplyAsync(() -> new ArbolMerkle(bloque), HILOS)
+				.exceptionally(error -> null);
+		anterior = anterior.thenCombineAsync(arbol, (previo, calculado) -> encadenar(previo, bloque, calculado),
+				HILOS);
+	}
+
+	/**
+	 * Calcula el hash de un bloque sellado y lo encadena tras el anterior.
+	 *
+	 * @param previo Último bloque encadenado, o null si no hay ninguno
+	 * @param bloque Bloque sellado
+	 * @param arbol  Árbol de Merkle del bloque, o null si no pudo calcularse
+	 * @return Último bloque encadenado: el sellado, o el previo si el sellado
+	 *         no ha podido encadenarse
+	 */
+	private Bloque encadenar(Bloque previo, Bloque bloque, ArbolMerkle arbol) {
+		try {
+			if (arbol == null) {
+				arbol = new ArbolMerkle(bloque);
+			}
+			bloque.raiz = arbol.raiz();
+			bloque.hashAnterior = previo == null ? GENESIS : previo.hash;
+			bloque.hash = bloque.calcularHash();
+		} catch (RuntimeException e) {
+			return previo;
+		}
+		arboles.put(bloque.altura, arbol);
+		cadena.put(bloque.primeraTransaccion, bloque);
+		ultimo = bloque;
+		return bloque;
+	}
+
+	/**
+	 * Devuelve el último bloque encadenado.
+	 *
+	 * @return Último bloque, o null si aún no hay ninguno
+	 */
+	Bloque ultimo() {
+		return ultimo;
+	}
+
+	/**
+	 * Busca el bloque encadenado que contiene una transferencia.
+	 *
+	 * @param transaccion Número de la transferencia
+	 * @return Bloque que la contiene, o null si aún no está encadenada
+	 */
+	Bloque buscar(long transaccion) {
+		Map.Entry<Long, Bloque> entrada = cadena.floorEntry(transaccion);
+		if (entrada == null || transaccion >= entrada.getKey() + entrada.getValue().numTransacciones) {
+			return null;
+		}
+		return entrada.getValue();
+	}
+
+	/**
+	 * Construye la prueba de inclusión de una transferencia encadenada.
+	 *
+	 * @param transaccion Número de la transferencia
+	 * @return Prueba de inclusión, o null si la transferencia aún no está en un
+	 *         bloque encadenado
+	 */
+	PruebaInclusion prueba(long transaccion) {
+		Bloque bloque = buscar(transaccion);
+		if (bloque == null) {
+			return null;
+		}
+		ArbolMerkle arbol = arboles.get(bloque.altura);
+		if (arbol == null) {
+			arbol = new ArbolMerkle(bloque);
+			arboles.put(bloque.altura, arbol);
+		}
+		return arbol.prueba((int) (transaccion - bloque.primeraTransaccion));
+	}
+
+	private void abrir() {
+		origenes = new String[tamano];
+		destinos = new String[tamano];
+		valores = new int[tamano];
+		numTransacciones = 0;
+	}
+}
@@ -0,0 +1,255 @@
+package cc.blockchain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Comprueba que {@link BlockchainCerrojos} se comporta como
+ * {@link BlockchainCSP}. Lanza la misma secuencia aleatoria de operaciones,
+ * con argumentos válidos e inválidos, sobre las dos, cada operación en su
+ * propio hilo, y tras cada una espera a que las dos se estabilicen y compara
+ * los saldos de todas las cuentas y el resultado de todas las operaciones
+ * lanzadas: terminada, rechazada con IllegalArgumentException o aún en
+ * espera.
+ *
+ * Una cuenta no pide una transferencia nueva mientras tenga otra bloqueada.
+ * Así cada abono libera como mucho una transferencia, los abonos que
+ * desencadena forman una cadena, y la secuencia de saldos de cada cuenta, y
+ * con ella las alertas que se disparan, no depende del reparto de los hilos.
+ *
+ * Uso: java cc.blockchain.EquivalenciaCerrojos [operaciones] [semilla]
+ *
+ * Escribe la primera diferencia encontrada y termina con código 1, o el
+ * número de operaciones comprobadas.
+ */
+public class EquivalenciaCerrojos {
+
+	private static final int OPERACIONES = 2000;
+	private static final int MAX_CUENTAS = 12;
+	private static final long PLAZO_ESTABLE = 2000;
+	private static final Object PENDIENTE = "pendiente";
+	private static final Object RECHAZADA = "IllegalArgumentException";
+	private static final Object TERMINADA = "terminada";
+
+	private final Random aleatorio;
+	private final Blockchain[] motores = { new BlockchainCSP(), new BlockchainCerrojos(3) };
+	private final ExecutorService hilos = Executors.newCachedThreadPool(tarea -> {
+		Thread hilo = new Thread(tarea);
+		hilo.setDaemon(true);
+		return hilo;
+	});
+	private final List<String> descripciones = new ArrayList<>();
+	private final List<Future<?>[]> lanzadas = new ArrayList<>();
+	private final List<String> cuentas = new ArrayList<>();
+	private final boolean[] bloqueada = new boolean[MAX_CUENTAS];
+	private final int[] transferencia = new int[MAX_CUENTAS];
+
+	/**
+	 * Constructor de la comprobación.
+	 *
+	 * @param semilla Semilla de la secuencia de operaciones
+	 */
+	private EquivalenciaCerrojos(long semilla) {
+		this.aleatorio = new Random(semilla);
+	}
+
+	/**
+	 * Punto de entrada de la comprobación.
+	 *
+	 * @param args Número de operaciones y semilla
+	 * @throws InterruptedException Si se interrumpe la espera
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int operaciones = args.length > 0 ? Integer.parseInt(args[0]) : OPERACIONES;
+		long semilla = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		EquivalenciaCerrojos comprobacion = new EquivalenciaCerrojos(semilla);
+		for (int n = 0; n < operaciones; n++) {
+			while (!comprobacion.lanzar()) {
+				// Operación descartada: se elige otra
+			}
+			String diferencia = comprobacion.estabilizar();
+			if (diferencia != null) {
+				System.out.println("semilla " + semilla + ", operación " + n + " ("
+						+ comprobacion.descripciones.get(n) + "): " + diferencia);
+				System.exit(1);
+			}
+		}
+		System.out.println("semilla " + semilla + ": " + operaciones + " operaciones equivalentes");
+		System.exit(0);
+	}
+
+	/**
+	 * Elige la siguiente operación y la lanza en las dos implementaciones.
+	 *
+	 * @return false si la operación elegida se descarta sin lanzarla
+	 */
+	private boolean lanzar() {
+		int tipo = aleatorio.nextInt(10);
+		if (cuentas.isEmpty() || tipo == 0) {
+			// Alta nueva, o repetida si ya hay el máximo de cuentas
+			int numero = cuentas.size() < MAX_CUENTAS ? cuentas.size() : aleatorio.nextInt(MAX_CUENTAS);
+			int saldo = aleatorio.nextInt(5) == 0 ? -1 : aleatorio.nextInt(20);
+			if (numero == cuentas.size() && saldo >= 0) {
+				cuentas.add("c" + numero);
+			}
+			lanzarOrden("crear c" + numero + " " + saldo, motor -> motor.crear("c" + numero, "C" + numero, saldo));
+		} else if (tipo <= 2) {
+			String idPrivado = aleatorio.nextInt(8) == 0 ? "nadie" : cuentas.get(aleatorio.nextInt(cuentas.size()));
+			lanzar("disponible " + idPrivado, motor -> motor.disponible(idPrivado));
+		} else if (tipo <= 7) {
+			int origen = aleatorio.nextInt(cuentas.size());
+			int destino = aleatorio.nextInt(cuentas.size());
+			String idPrivado = cuentas.get(origen);
+			String idPublicoDestino = aleatorio.nextInt(10) == 0 ? "NADIE" : "C" + destino;
+			int valor = aleatorio.nextInt(12) - 1;
+			if (origen != destino && valor > 0 && !idPublicoDestino.equals("NADIE")) {
+				if (bloqueada[origen]) {
+					return false;
+				}
+				bloqueada[origen] = true;
+				transferencia[origen] = lanzadas.size();
+			}
+			lanzarOrden("transferir " + idPrivado + " " + idPublicoDestino + " " + valor,
+					motor -> motor.transferir(idPrivado, idPublicoDestino, valor));
+		} else {
+			String idPrivado = aleatorio.nextInt(8) == 0 ? "nadie" : cuentas.get(aleatorio.nextInt(cuentas.size()));
+			int max = aleatorio.nextInt(30) - 1;
+			lanzarOrden("alertarMax " + idPrivado + " " + max, motor -> motor.alertarMax(idPrivado, max));
+		}
+		return true;
+	}
+
+	/**
+	 * Operación sobre una implementación.
+	 */
+	private interface Operacion {
+		Object aplicar(Blockchain motor);
+	}
+
+	/**
+	 * Operación sin resultado sobre una implementación.
+	 */
+	private interface Orden {
+		void aplicar(Blockchain motor);
+	}
+
+	/**
+	 * Lanza una operación con resultado en un hilo por implementación.
+	 *
+	 * @param descripcion Descripción de la operación
+	 * @param operacion   Operación a lanzar
+	 */
+	private void lanzar(String descripcion, Operacion operacion) {
+		Future<?>[] futuros = new Future<?>[motores.length];
+		for (int i = 0; i < motores.length; i++) {
+			Blockchain motor = motores[i];
+			futuros[i] = hilos.submit((Callable<Object>) () -> operacion.aplicar(motor));
+		}
+		descripciones.add(descripcion);
+		lanzadas.add(futuros);
+	}
+
+	/**
+	 * Lanza una operación sin resultado en un hilo por implementación.
+	 *
+	 * @param descripcion Descripción de la operación
+	 * @param orden       Operación a lanzar
+	 */
+	private void lanzarOrden(String descripcion, Orden orden) {
+		lanzar(descripcion, motor -> {
+			orden.aplicar(motor);
+			return TERMINADA;
+		});
+	}
+
+	/**
+	 * Espera a que las dos implementaciones muestren el mismo estado en dos
+	 * lecturas seguidas, o a que pase el plazo.
+	 *
+	 * @return Descripción de la diferencia, o null si coinciden
+	 * @throws InterruptedException Si se interrumpe la espera
+	 */
+	private String estabilizar() throws InterruptedException {
+		long limite = System.currentTimeMillis() + PLAZO_ESTABLE;
+		String anterior = null;
+		while (true) {
+			String[] estados = new String[motores.length];
+			for (int i = 0; i < motores.length; i++) {
+				estados[i] = estado(i);
+			}
+			boolean iguales = estados[0].equals(estados[1]);
+			if (iguales && (estados[0].equals(anterior) || System.currentTimeMillis() > limite)) {
+				actualizarBloqueadas();
+				return null;
+			}
+			if (System.currentTimeMillis() > limite) {
+				return "\n  csp:      " + estados[0] + "\n  cerrojos: " + estados[1];
+			}
+			anterior = iguales ? estados[0] : null;
+			Thread.sleep(5);
+		}
+	}
+
+	/**
+	 * Anota como libres las cuentas cuya transferencia bloqueada ya ha
+	 * terminado.
+	 */
+	private void actualizarBloqueadas() {
+		for (int cuenta = 0; cuenta < cuentas.size(); cuenta++) {
+			if (bloqueada[cuenta] && lanzadas.get(transferencia[cuenta])[0].isDone()) {
+				bloqueada[cuenta] = false;
+			}
+		}
+	}
+
+	/**
+	 * Describe el estado de una implementación: los saldos de las cuentas y el
+	 * resultado de cada operación lanzada.
+	 *
+	 * @param motor Índice de la implementación
+	 * @return Descripción del estado
+	 */
+	private String estado(int motor) {
+		Object[] saldos = new Object[cuentas.size()];
+		for (int cuenta = 0; cuenta < saldos.length; cuenta++) {
+			try {
+				saldos[cuenta] = motores[motor].disponible(cuentas.get(cuenta));
+			} catch (IllegalArgumentException e) {
+				// Su alta aún no ha terminado
+				saldos[cuenta] = PENDIENTE;
+			}
+		}
+		Object[] resultados = new Object[lanzadas.size()];
+		for (int n = 0; n < resultados.length; n++) {
+			resultados[n] = resultado(lanzadas.get(n)[motor]);
+		}
+		return "saldos=" + Arrays.toString(saldos) + " resultados=" + Arrays.toString(resultados);
+	}
+
+	/**
+	 * Devuelve el resultado de una operación lanzada.
+	 *
+	 * @param futuro Futuro de la operación
+	 * @return Su valor, {@link #PENDIENTE} o {@link #RECHAZADA}
+	 */
+	private static Object resultado(Future<?> futuro) {
+		if (!futuro.isDone()) {
+			return PENDIENTE;
+		}
+		try {
+			return futuro.get();
+		} catch (ExecutionException e) {
+			return e.getCause() instanceof IllegalArgumentException ? RECHAZADA : e.getCause();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return PENDIENTE;
+		}
+	}
+}
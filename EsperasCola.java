@@ -0,0 +1,109 @@
+package cc.blockchain;
+
+/**
+ * Tiempos que las peticiones de {@link BlockchainCSP} esperan en su canal
+ * hasta que el servidor las lee, por tipo de operación: crear, disponible,
+ * transferir y alertarMax. Es una copia tomada en un instante; no cambia
+ * aunque el servidor siga atendiendo peticiones.
+ */
+public class EsperasCola {
+
+	static final String[] OPERACIONES = { "crear", "disponible", "transferir", "alertarMax" };
+
+	private final Histograma[] histogramas;
+
+	/**
+	 * Constructor de una copia de las esperas.
+	 *
+	 * @param histogramas Histogramas en nanosegundos, uno por operación y en
+	 *                    el orden de {@link #OPERACIONES}, que pasan a ser de
+	 *                    esta copia
+	 */
+	EsperasCola(Histograma[] histogramas) {
+		this.histogramas = histogramas;
+	}
+
+	/**
+	 * Añade a esta copia las esperas de otra, por ejemplo de otra partición.
+	 *
+	 * @param otra Esperas a sumar
+	 */
+	void sumar(EsperasCola otra) {
+		for (int i = 0; i < histogramas.length; i++) {
+			histogramas[i].sumar(otra.histogramas[i]);
+		}
+	}
+
+	/**
+	 * Devuelve el número de peticiones medidas de una operación.
+	 *
+	 * @param operacion Nombre de la operación
+	 * @return Número de peticiones
+	 * @throws IllegalArgumentException Si la operación no existe
+	 */
+	public long cuenta(String operacion) {
+		return histograma(operacion).cuenta();
+	}
+
+	/**
+	 * Devuelve la espera media de una operación.
+	 *
+	 * @param operacion Nombre de la operación
+	 * @return Espera media en microsegundos
+	 * @throws IllegalArgumentException Si la operación no existe
+	 */
+	public double mediaMicros(String operacion) {
+		return histograma(operacion).media() / 1e3;
+	}
+
+	/**
+	 * Devuelve un percentil de la espera de una operación.
+	 *
+	 * @param operacion Nombre de la operación
+	 * @param percentil Percentil entre 0 y 100
+	 * @return Espera en microsegundos
+	 * @throws IllegalArgumentException Si la operación no existe
+	 */
+	public double percentilMicros(String operacion, double percentil) {
+		return histograma(operacion).percentil(percentil) / 1e3;
+	}
+
+	/**
+	 * Devuelve la espera máxima de una operación.
+	 *
+	 * @param operacion Nombre de la operación
+	 * @return Espera máxima en microsegundos
+	 * @throws IllegalArgumentException Si la operación no existe
+	 */
+	public double maxMicros(String operacion) {
+		return histograma(operacion).max() / 1e3;
+	}
+
+	/**
+	 * Devuelve una línea por operación con peticiones medidas.
+	 *
+	 * @return Resumen de las esperas
+	 */
+	@Override
+	public String toString() {
+		StringBuilder resumen = new StringBuilder();
+		for (int i = 0; i < OPERACIONES.length; i++) {
+			Histograma histograma = histogramas[i];
+			if (histograma.cuenta() > 0) {
+				resumen.append(String.format("espera %s: n=%d media=%.1fus p50=%.1fus p99=%.1fus max=%.1fus%n",
+						OPERACIONES[i], histograma.cuenta(), histograma.media() / 1e3,
+						histograma.percentil(50) / 1e3, histograma.percentil(99) / 1e3, histograma.max() / 1e3));
+			}
+		}
+		return resumen.toString();
+	}
+
+	private Histograma histograma(String operacion) {
+		for (int i = 0; i < OPERACIONES.length; i++) {
+			if (OPERACIONES[i].equals(operacion)) {
+				return histogramas[i];
+			}
+		}
+		throw new IllegalArgumentException();
+	}
+}
@@ -0,0 +1,147 @@
+package cc.blockchain;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Estado de las transferencias entre particiones de un servidor de una
+ * {@link BlockchainCSPParticionada}, tal como se recupera del registro de
+ * escritura y de los puntos de control.
+ *
+ * Cada partición numera las transferencias que reserva para cada partición de
+ * destino, y cada destino recuerda la última que ha abonado de cada origen.
+ * Como los abonos de un origen llegan a un destino en orden, un abono con una
+ * secuencia ya abonada es un reenvío tras un reinicio y no se repite. Las
+ * reservas son las transferencias ya cargadas en origen cuyo abono aún no se
+ * ha confirmado, indexadas por partición y secuencia y en el orden en que se
+ * hicieron, que es el orden en que hay que reenviarlas.
+ */
+class EstadoParticiones {
+
+	/**
+	 * Transferencia cargada en origen y pendiente de confirmar.
+	 */
+	static class Reserva {
+		final int origen;
+		final int valor;
+		final int particion;
+		final long secuencia;
+		final String idPublicoDestino;
+
+		/**
+		 * Constructor de una reserva.
+		 *
+		 * @param origen           Slot de la cuenta de origen
+		 * @param valor            Monto de la transferencia
+		 * @param particion        Partición de destino
+		 * @param secuencia        Secuencia de la transferencia hacia esa
+		 *                         partición
+		 * @param idPublicoDestino ID público de la cuenta de destino
+		 */
+		Reserva(int origen, int valor, int particion, long secuencia, String idPublicoDestino) {
+			this.origen = origen;
+			this.valor = valor;
+			this.particion = particion;
+			this.secuencia = secuencia;
+			this.idPublicoDestino = idPublicoDestino;
+		}
+	}
+
+	private long[] enviadas = new long[0];
+	private long[] abonadas = new long[0];
+	final LinkedHashMap<Long, Reserva> reservas = new LinkedHashMap<>();
+
+	/**
+	 * Devuelve la última secuencia reservada hacia una partición.
+	 *
+	 * @param particion Partición de destino
+	 * @return Secuencia, o 0 si no hay ninguna
+	 */
+	long enviada(int particion) {
+		return particion < enviadas.length ? enviadas[particion] : 0;
+	}
+
+	/**
+	 * Devuelve la última secuencia abonada de una partición.
+	 *
+	 * @param particion Partición de origen
+	 * @return Secuencia, o 0 si no hay ninguna
+	 */
+	long abonada(int particion) {
+		return particion < abonadas.length ? abonadas[particion] : 0;
+	}
+
+	/**
+	 * Anota una secuencia reservada hacia una partición.
+	 *
+	 * @param particion Partición de destino
+	 * @param secuencia Secuencia reservada
+	 */
+	void enviar(int particion, long secuencia) {
+		enviadas = ampliar(enviadas, particion);
+		enviadas[particion] = Math.max(enviadas[particion], secuencia);
+	}
+
+	/**
+	 * Anota una secuencia abonada de una partición.
+	 *
+	 * @param particion Partición de origen
+	 * @param secuencia Secuencia abonada
+	 */
+	void abonar(int particion, long secuencia) {
+		abonadas = ampliar(abonadas, particion);
+		abonadas[particion] = Math.max(abonadas[particion], secuencia);
+	}
+
+	/**
+	 * Anota una reserva y su secuencia.
+	 *
+	 * @param reserva Reserva pendiente de confirmar
+	 */
+	void reservar(Reserva reserva) {
+		enviar(reserva.particion, reserva.secuencia);
+		reservas.put(clave(reserva.particion, reserva.secuencia), reserva);
+	}
+
+	/**
+	 * Quita la reserva confirmada de una partición y secuencia, si está.
+	 *
+	 * @param particion Partición de destino
+	 * @param secuencia Secuencia confirmada
+	 */
+	void confirmar(int particion, long secuencia) {
+		reservas.remove(clave(particion, secuencia));
+	}
+
+	/**
+	 * Devuelve una copia de este estado. Las reservas no cambian una vez
+	 * creadas, así que se comparten.
+	 *
+	 * @return Copia del estado
+	 */
+	EstadoParticiones copiar() {
+		EstadoParticiones copia = new EstadoParticiones();
+		copia.enviadas = enviadas.clone();
+		copia.abonadas = abonadas.clone();
+		copia.reservas.putAll(reservas);
+		return copia;
+	}
+
+	/**
+	 * Devuelve el número de particiones con alguna secuencia anotada.
+	 *
+	 * @return Número de particiones
+	 */
+	int numParticiones() {
+		return Math.max(enviadas.length, abonadas.length);
+	}
+
+	// Las secuencias de cada partición de destino caben de sobra en 48 bits
+	private static long clave(int particion, long secuencia) {
+		return (long) particion << 48 | secuencia;
+	}
+
+	private static long[] ampliar(long[] secuencias, int particion) {
+		return particion < secuencias.length ? secuencias : Arrays.copyOf(secuencias, particion + 1);
+	}
+}
@@ -0,0 +1,13 @@
+package cc.blockchain;
+
+/**
+ * Resultado de cada transferencia de un lote.
+ */
+public enum EstadoTransferencia {
+	/** La transferencia se ha realizado. */
+	REALIZADA,
+	/** Los parámetros de la transferencia son inválidos. */
+	INVALIDA,
+	/** La transferencia no se ha realizado según el modo del lote. */
+	OMITIDA
+}
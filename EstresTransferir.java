@@ -0,0 +1,76 @@
+package cc.blockchain;
+
+/**
+ * Prueba de estrés que mide el rendimiento de las transferencias inmediatas
+ * mientras crece el número de transferencias bloqueadas en el servidor.
+ *
+ * Uso: java cc.blockchain.EstresTransferir [transferencias] [pendientes...]
+ */
+public class EstresTransferir {
+
+	private static final int TRANSFERENCIAS = 200000;
+	private static final int[] PENDIENTES = { 0, 1000, 10000, 100000 };
+
+	/**
+	 * Punto de entrada de la prueba.
+	 *
+	 * @param args Número de transferencias medidas y tamaños de la cola de
+	 *             transferencias bloqueadas
+	 * @throws InterruptedException Si se interrumpe la espera de la cola
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int transferencias = args.length > 0 ? Integer.parseInt(args[0]) : TRANSFERENCIAS;
+		int[] pendientes = PENDIENTES;
+		if (args.length > 1) {
+			pendientes = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				pendientes[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		System.out.println("pendientes\ttransferencias/s");
+		for (int n : pendientes) {
+			System.out.println(n + "\t\t" + medir(transferencias, n));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Bloquea {@code pendientes} transferencias sin fondos y mide cuántas
+	 * transferencias con fondos se completan por segundo después.
+	 *
+	 * @param transferencias Número de transferencias medidas
+	 * @param pendientes     Número de transferencias bloqueadas
+	 * @return Transferencias completadas por segundo
+	 * @throws InterruptedException Si se interrumpe la espera de la cola
+	 */
+	private static long medir(int transferencias, int pendientes) throws InterruptedException {
+		final BlockchainCSP blockchain = new BlockchainCSP();
+		blockchain.crear("destino", "DESTINO", 0);
+		blockchain.crear("a", "A", transferencias);
+		blockchain.crear("b", "B", transferencias);
+
+		// Las transferencias bloqueadas se encolan desde este mismo hilo, sin
+		// un cliente esperando por cada una
+		for (int i = 0; i < pendientes; i++) {
+			String idPrivado = "bloqueada" + i;
+			blockchain.crear(idPrivado, "BLOQUEADA" + i, 0);
+			blockchain.transferirAsync(idPrivado, "DESTINO", 1);
+		}
+		while (blockchain.transferenciasPendientes() < pendientes) {
+			Thread.sleep(10);
+		}
+
+		long inicio = System.nanoTime();
+		for (int i = 0; i < transferencias; i++) {
+			if (i % 2 == 0) {
+				blockchain.transferir("a", "B", 1);
+			} else {
+				blockchain.transferir("b", "A", 1);
+			}
+		}
+		long duracion = System.nanoTime() - inicio;
+		return transferencias * 1000000000L / Math.max(duracion, 1);
+	}
+
+}
@@ -0,0 +1,132 @@
+package cc.blockchain;
+
+/**
+ * Histograma de latencias con cubos logarítmicos-lineales, al estilo de
+ * HdrHistogram: cada potencia de dos se divide en {@value #SUBCUBOS} cubos, así
+ * que el error relativo de cualquier percentil es menor que 1/{@value #SUBCUBOS}.
+ * Registrar un valor no crea objetos.
+ *
+ * No es seguro para hilos: cada hilo debe registrar en su propio histograma y
+ * combinarlos después con {@link #sumar(Histograma)}.
+ */
+class Histograma {
+
+	private static final int BITS_SUBCUBO = 4;
+	private static final int SUBCUBOS = 1 << BITS_SUBCUBO;
+
+	private final long[] cubos;
+	private long cuenta;
+	private long suma;
+	private long max;
+
+	/**
+	 * Constructor de un histograma vacío para valores de 0 a Long.MAX_VALUE.
+	 */
+	Histograma() {
+		this.cubos = new long[(64 - BITS_SUBCUBO + 1) * SUBCUBOS];
+	}
+
+	/**
+	 * Registra un valor.
+	 *
+	 * @param valor Valor no negativo, normalmente en nanosegundos
+	 */
+	void registrar(long valor) {
+		if (valor < 0) {
+			valor = 0;
+		}
+		cubos[indice(valor)]++;
+		cuenta++;
+		suma += valor;
+		if (valor > max) {
+			max = valor;
+		}
+	}
+
+	/**
+	 * Añade a este histograma los valores registrados en otro.
+	 *
+	 * @param otro Histograma a sumar
+	 */
+	void sumar(Histograma otro) {
+		for (int i = 0; i < cubos.length; i++) {
+			cubos[i] += otro.cubos[i];
+		}
+		cuenta += otro.cuenta;
+		suma += otro.suma;
+		max = Math.max(max, otro.max);
+	}
+
+	/**
+	 * Vacía el histograma.
+	 */
+	void reiniciar() {
+		java.util.Arrays.fill(cubos, 0);
+		cuenta = 0;
+		suma = 0;
+		max = 0;
+	}
+
+	/**
+	 * Devuelve una copia independiente de este histograma.
+	 *
+	 * @return Copia del histograma
+	 */
+	Histograma copia() {
+		Histograma copia = new Histograma();
+		copia.sumar(this);
+		return copia;
+	}
+
+	/**
+	 * Calcula un percentil de los valores registrados.
+	 *
+	 * @param percentil Percentil entre 0 y 100
+	 * @return Límite superior del cubo que contiene el percentil, o 0 si el
+	 *         histograma está vacío
+	 */
+	long percentil(double percentil) {
+		if (cuenta == 0) {
+			return 0;
+		}
+		long objetivo = Math.max(1, (long) Math.ceil(cuenta * percentil / 100.0));
+		long acumulado = 0;
+		for (int i = 0; i < cubos.length; i++) {
+			acumulado += cubos[i];
+			if (acumulado >= objetivo) {
+				return Math.min(limiteSuperior(i), max);
+			}
+		}
+		return max;
+	}
+
+	long cuenta() {
+		return cuenta;
+	}
+
+	long max() {
+		return max;
+	}
+
+	double media() {
+		return cuenta == 0 ? 0 : (double) suma / cuenta;
+	}
+
+	private static int indice(long valor) {
+		if (valor < SUBCUBOS) {
+			return (int) valor;
+		}
+		int exponente = 63 - Long.numberOfLeadingZeros(valor) - BITS_SUBCUBO;
+		int subcubo = (int) (valor >>> exponente) - SUBCUBOS;
+		return exponente * SUBCUBOS + SUBCUBOS + subcubo;
+	}
+
+	private static long limiteSuperior(int indice) {
+		if (indice < SUBCUBOS) {
+			return indice;
+		}
+		int exponente = indice / SUBCUBOS - 1;
+		long subcubo = indice % SUBCUBOS + SUBCUBOS;
+		return ((subcubo + 1) << exponente) - 1;
+	}
+}
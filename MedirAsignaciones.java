@@ -0,0 +1,102 @@
+package cc.blockchain;
+
+import java.lang.management.ManagementFactory;
+
+import org.jcsp.lang.Channel;
+
+/**
+ * Mide los bytes reservados en el heap por cada llamada a las operaciones de
+ * {@link BlockchainCSP} una vez calentada la JVM, sumando lo reservado por
+ * todos los hilos (cliente y servidor). Termina con código de salida 1 si
+ * alguna operación reserva memoria en régimen estacionario. No se mide crear,
+ * ya que cada cuenta nueva ocupa necesariamente memoria en la tabla.
+ *
+ * El total se divide entre las llamadas truncando, de modo que se toleran
+ * menos de un byte por llamada: la propia medición reserva alrededor de un
+ * kilobyte al consultar los hilos. Se escribe también el total para que se vea
+ * qué queda por debajo de esa tolerancia.
+ *
+ * Lo que reservan los canales depende de la implementación de JCSP, así que
+ * antes de medir se escribe de qué fichero se ha cargado la biblioteca. JCSP
+ * 1.1 crea un extremo nuevo en cada llamada a in() u out() de un canal; el
+ * compilador C2 suele eliminarlos, pero no siempre a tiempo ni con C1 o el
+ * intérprete, así que {@link BlockchainCSP} obtiene los extremos una sola
+ * vez.
+ *
+ * Uso: java cc.blockchain.MedirAsignaciones [llamadas]
+ */
+public class MedirAsignaciones {
+
+	private static final int LLAMADAS = 100000;
+
+	/**
+	 * Operación medida.
+	 */
+	private interface Operacion {
+		void ejecutar(int i);
+	}
+
+	/**
+	 * Punto de entrada de la medición.
+	 *
+	 * @param args Número de llamadas medidas por operación
+	 */
+	public static void main(String[] args) {
+		int llamadas = args.length > 0 ? Integer.parseInt(args[0]) : LLAMADAS;
+		System.out.println("JCSP: " + Channel.class.getProtectionDomain().getCodeSource().getLocation());
+		final BlockchainCSP blockchain = new BlockchainCSP();
+		blockchain.crear("a", "A", 1000);
+		blockchain.crear("b", "B", 1000);
+
+		boolean asigna = false;
+		asigna |= medir("disponible", llamadas, i -> blockchain.disponible("a"));
+		asigna |= medir("transferir", llamadas, i -> {
+			if (i % 2 == 0) {
+				blockchain.transferir("a", "B", 1);
+			} else {
+				blockchain.transferir("b", "A", 1);
+			}
+		});
+		asigna |= medir("alertarMax", llamadas, i -> blockchain.alertarMax("a", 0));
+		System.exit(asigna ? 1 : 0);
+	}
+
+	/**
+	 * Calienta una operación y mide los bytes reservados por llamada.
+	 *
+	 * @param nombre    Nombre de la operación
+	 * @param llamadas  Número de llamadas medidas
+	 * @param operacion Operación a medir
+	 * @return true si la operación reserva memoria
+	 */
+	private static boolean medir(String nombre, int llamadas, Operacion operacion) {
+		for (int i = 0; i < llamadas; i++) {
+			operacion.ejecutar(i);
+		}
+		long antes = reservados();
+		for (int i = 0; i < llamadas; i++) {
+			operacion.ejecutar(i);
+		}
+		// La propia medición reserva algo de memoria al consultar los hilos
+		long total = reservados() - antes;
+		long porLlamada = total / llamadas;
+		System.out.println(nombre + ": " + porLlamada + " bytes/llamada (" + total + " bytes en " + llamadas
+				+ " llamadas)");
+		return porLlamada > 0;
+	}
+
+	/**
+	 * Suma los bytes reservados hasta ahora por todos los hilos vivos.
+	 *
+	 * @return Bytes reservados
+	 */
+	private static long reservados() {
+		com.sun.management.ThreadMXBean hilos = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long total = 0;
+		for (long bytes : hilos.getThreadAllocatedBytes(hilos.getAllThreadIds())) {
+			total += Math.max(bytes, 0);
+		}
+		return total;
+	}
+}
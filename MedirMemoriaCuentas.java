@@ -0,0 +1,87 @@
+package cc.blockchain;
+
+import es.upm.aedlib.map.HashTableMap;
+import es.upm.aedlib.map.Map;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Mide la memoria de heap que ocupa la tabla de cuentas del servidor frente a
+ * la pareja de mapas que usaba antes ({@code HashTableMap<String, Integer>} de
+ * saldos por ID privado y {@code HashTableMap<String, String>} de ID público a
+ * ID privado). Los identificadores se crean antes de medir y los comparten
+ * las dos estructuras, así que no cuentan en ninguna.
+ *
+ * Uso: java -Xmx4g cc.blockchain.MedirMemoriaCuentas [cuentas]
+ *
+ * Escribe los bytes totales y por cuenta de cada estructura. Con muchas
+ * cuentas hay que ampliar el heap para que quepan los identificadores y la
+ * mayor de las dos estructuras a la vez.
+ */
+public class MedirMemoriaCuentas {
+
+	private static final int CUENTAS = 1000000;
+
+	/**
+	 * Punto de entrada de la medición.
+	 *
+	 * @param args Número de cuentas
+	 */
+	public static void main(String[] args) {
+		int numCuentas = args.length > 0 ? Integer.parseInt(args[0]) : CUENTAS;
+		String[] privados = new String[numCuentas];
+		String[] publicos = new String[numCuentas];
+		for (int i = 0; i < numCuentas; i++) {
+			privados[i] = "privado-" + i;
+			publicos[i] = "publico-" + i;
+		}
+
+		long antes = ocupada();
+		TablaCuentas tabla = new TablaCuentas();
+		for (int i = 0; i < numCuentas; i++) {
+			tabla.crear(privados[i], publicos[i], i);
+		}
+		imprimir("TablaCuentas", ocupada() - antes, numCuentas);
+		tabla = null;
+
+		antes = ocupada();
+		Map<String, Integer> saldos = new HashTableMap<>();
+		Map<String, String> identidades = new HashTableMap<>();
+		for (int i = 0; i < numCuentas; i++) {
+			saldos.put(privados[i], i);
+			identidades.put(publicos[i], privados[i]);
+		}
+		imprimir("HashTableMap x2", ocupada() - antes, numCuentas);
+
+		// Mantiene vivas las estructuras y los identificadores hasta medir
+		if (tabla != null || saldos.size() + identidades.size() != 2 * numCuentas
+				|| privados.length + publicos.length != 2 * numCuentas) {
+			throw new IllegalStateException();
+		}
+	}
+
+	/**
+	 * Escribe la memoria ocupada por una estructura.
+	 *
+	 * @param nombre     Nombre de la estructura
+	 * @param bytes      Bytes ocupados
+	 * @param numCuentas Número de cuentas
+	 */
+	private static void imprimir(String nombre, long bytes, int numCuentas) {
+		System.out.println(nombre + ": " + bytes / (1024 * 1024) + " MB, " + bytes / numCuentas + " bytes/cuenta");
+	}
+
+	/**
+	 * Devuelve la memoria de heap ocupada tras forzar varias recolecciones.
+	 *
+	 * @return Bytes ocupados
+	 */
+	private static long ocupada() {
+		MemoryMXBean memoria = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return memoria.getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,312 @@
+package cc.blockchain;
+
+/**
+ * Copia de las métricas del proceso servidor de {@link BlockchainCSP} tomada
+ * en un instante: peticiones atendidas y tiempo de servicio por tipo, pasadas
+ * de desbloqueo, peticiones bloqueadas y, si se miden, esperas en cola. No
+ * cambia aunque el servidor siga atendiendo peticiones.
+ *
+ * Los servicios son crear, disponible, transferir, alertarMax, lote, abonar,
+ * cancelar y temporizador; este último cuenta las veces que el servidor
+ * despierta por un vencimiento. Con canales acotados, los cinco primeros
+ * tienen además su ocupación y sus peticiones rechazadas.
+ */
+public class MetricasCSP {
+
+	static final String[] SERVICIOS = { "crear", "disponible", "transferir", "alertarMax", "lote", "abonar",
+			"cancelar", "temporizador" };
+
+	private final long[] peticiones;
+	private final Histograma[] servicios;
+	private final Histograma pasadas;
+	private final Histograma liberadas;
+	private long lecturasDirectas;
+	private int transferenciasPendientes;
+	private int alertasPendientes;
+	private int cuentasConTransferencias;
+	private int cuentasConAlertas;
+	private final EsperasCola esperas;
+	private final int capacidadCanales;
+	private final int[] ocupacion;
+	private final int[] ocupacionMaxima;
+	private final long[] rechazadas;
+
+	/**
+	 * Constructor de una copia de las métricas. Los arrays y los histogramas
+	 * pasan a ser de esta copia.
+	 *
+	 * @param peticiones               Peticiones atendidas por servicio
+	 * @param servicios                Tiempos de servicio en nanosegundos
+	 * @param pasadas                  Duración de las pasadas de desbloqueo
+	 * @param liberadas                Peticiones liberadas por pasada
+	 * @param lecturasDirectas         Consultas respondidas sin el servidor
+	 * @param transferenciasPendientes Transferencias bloqueadas
+	 * @param alertasPendientes        Alertas pendientes
+	 * @param cuentasConTransferencias Cuentas con transferencias bloqueadas
+	 * @param cuentasConAlertas        Cuentas con alertas pendientes
+	 * @param esperas                  Esperas en cola, o null si no se miden
+	 * @param acotados                 Canales acotados, o null si no se acotan
+	 */
+	MetricasCSP(long[] peticiones, Histograma[] servicios, Histograma pasadas, Histograma liberadas,
+			long lecturasDirectas, int transferenciasPendientes, int alertasPendientes, int cuentasConTransferencias,
+			int cuentasConAlertas, EsperasCola esperas, CanalesAcotados acotados) {
+		this.peticiones = peticiones;
+		this.servicios = servicios;
+		this.pasadas = pasadas;
+		this.liberadas = liberadas;
+		this.lecturasDirectas = lecturasDirectas;
+		this.transferenciasPendientes = transferenciasPendientes;
+		this.alertasPendientes = alertasPendientes;
+		this.cuentasConTransferencias = cuentasConTransferencias;
+		this.cuentasConAlertas = cuentasConAlertas;
+		this.esperas = esperas;
+		this.ocupacion = new int[CanalesAcotados.NUM_CANALES];
+		this.ocupacionMaxima = new int[CanalesAcotados.NUM_CANALES];
+		this.rechazadas = new long[CanalesAcotados.NUM_CANALES];
+		if (acotados == null) {
+			this.capacidadCanales = 0;
+		} else {
+			this.capacidadCanales = acotados.capacidad();
+			for (int i = 0; i < CanalesAcotados.NUM_CANALES; i++) {
+				ocupacion[i] = acotados.ocupacion(i);
+				ocupacionMaxima[i] = acotados.maximo(i);
+				rechazadas[i] = acotados.rechazadas(i);
+			}
+		}
+	}
+
+	/**
+	 * Añade a esta copia las métricas de otra, por ejemplo de otra partición.
+	 * La ocupación de los canales se suma y la máxima es la del canal más
+	 * cargado.
+	 *
+	 * @param otra Métricas a sumar
+	 */
+	void sumar(MetricasCSP otra) {
+		for (int i = 0; i < peticiones.length; i++) {
+			peticiones[i] += otra.peticiones[i];
+			servicios[i].sumar(otra.servicios[i]);
+		}
+		pasadas.sumar(otra.pasadas);
+		liberadas.sumar(otra.liberadas);
+		lecturasDirectas += otra.lecturasDirectas;
+		transferenciasPendientes += otra.transferenciasPendientes;
+		alertasPendientes += otra.alertasPendientes;
+		cuentasConTransferencias += otra.cuentasConTransferencias;
+		cuentasConAlertas += otra.cuentasConAlertas;
+		if (esperas != null && otra.esperas != null) {
+			esperas.sumar(otra.esperas);
+		}
+		for (int i = 0; i < ocupacion.length; i++) {
+			ocupacion[i] += otra.ocupacion[i];
+			ocupacionMaxima[i] = Math.max(ocupacionMaxima[i], otra.ocupacionMaxima[i]);
+			rechazadas[i] += otra.rechazadas[i];
+		}
+	}
+
+	/**
+	 * Devuelve el número de peticiones atendidas de un servicio.
+	 *
+	 * @param servicio Nombre del servicio
+	 * @return Número de peticiones
+	 * @throws IllegalArgumentException Si el servicio no existe
+	 */
+	public long peticiones(String servicio) {
+		return peticiones[indice(servicio)];
+	}
+
+	/**
+	 * Devuelve el tiempo medio de servicio de un tipo de petición, desde que
+	 * el servidor la lee hasta que termina de atenderla, sin contar la pasada
+	 * de desbloqueo posterior.
+	 *
+	 * @param servicio Nombre del servicio
+	 * @return Tiempo medio en microsegundos
+	 * @throws IllegalArgumentException Si el servicio no existe
+	 */
+	public double servicioMediaMicros(String servicio) {
+		return servicios[indice(servicio)].media() / 1e3;
+	}
+
+	/**
+	 * Devuelve un percentil del tiempo de servicio de un tipo de petición.
+	 *
+	 * @param servicio  Nombre del servicio
+	 * @param percentil Percentil entre 0 y 100
+	 * @return Tiempo de servicio en microsegundos
+	 * @throws IllegalArgumentException Si el servicio no existe
+	 */
+	public double servicioMicros(String servicio, double percentil) {
+		return servicios[indice(servicio)].percentil(percentil) / 1e3;
+	}
+
+	/**
+	 * Devuelve el número de pasadas de desbloqueo realizadas.
+	 *
+	 * @return Número de pasadas
+	 */
+	public long numPasadas() {
+		return pasadas.cuenta();
+	}
+
+	/**
+	 * Devuelve un percentil de la duración de las pasadas de desbloqueo.
+	 *
+	 * @param percentil Percentil entre 0 y 100
+	 * @return Duración en microsegundos
+	 */
+	public double pasadaMicros(double percentil) {
+		return pasadas.percentil(percentil) / 1e3;
+	}
+
+	/**
+	 * Devuelve la media de transferencias y alertas liberadas por pasada.
+	 *
+	 * @return Peticiones liberadas por pasada
+	 */
+	public double liberadasMedia() {
+		return liberadas.media();
+	}
+
+	/**
+	 * Devuelve el mayor número de peticiones liberadas en una pasada.
+	 *
+	 * @return Peticiones liberadas
+	 */
+	public long liberadasMax() {
+		return liberadas.max();
+	}
+
+	/**
+	 * Devuelve el número de consultas de saldo respondidas en el hilo que
+	 * llama, con lectura directa.
+	 *
+	 * @return Número de consultas
+	 */
+	public long lecturasDirectas() {
+		return lecturasDirectas;
+	}
+
+	public int transferenciasPendientes() {
+		return transferenciasPendientes;
+	}
+
+	public int alertasPendientes() {
+		return alertasPendientes;
+	}
+
+	public int cuentasConTransferencias() {
+		return cuentasConTransferencias;
+	}
+
+	public int cuentasConAlertas() {
+		return cuentasConAlertas;
+	}
+
+	/**
+	 * Devuelve las esperas en cola, si el servidor las mide.
+	 *
+	 * @return Esperas por operación, o null si no se miden
+	 */
+	public EsperasCola esperas() {
+		return esperas;
+	}
+
+	/**
+	 * Devuelve las posiciones del buffer de cada canal de peticiones.
+	 *
+	 * @return Capacidad de cada canal, o 0 si los canales no tienen buffer
+	 */
+	public int capacidadCanales() {
+		return capacidadCanales;
+	}
+
+	/**
+	 * Devuelve las peticiones de un servicio escritas o por escribir en su
+	 * canal que el servidor aún no ha leído.
+	 *
+	 * @param servicio Nombre del servicio, de crear a lote
+	 * @return Ocupación del canal, o 0 si los canales no tienen buffer
+	 * @throws IllegalArgumentException Si el servicio no tiene canal acotado
+	 */
+	public int ocupacion(String servicio) {
+		return ocupacion[indiceCanal(servicio)];
+	}
+
+	/**
+	 * Devuelve la mayor ocupación alcanzada por el canal de un servicio.
+	 *
+	 * @param servicio Nombre del servicio, de crear a lote
+	 * @return Ocupación máxima del canal
+	 * @throws IllegalArgumentException Si el servicio no tiene canal acotado
+	 */
+	public int ocupacionMaxima(String servicio) {
+		return ocupacionMaxima[indiceCanal(servicio)];
+	}
+
+	/**
+	 * Devuelve las peticiones de un servicio rechazadas por estar su canal
+	 * lleno.
+	 *
+	 * @param servicio Nombre del servicio, de crear a lote
+	 * @return Número de peticiones rechazadas
+	 * @throws IllegalArgumentException Si el servicio no tiene canal acotado
+	 */
+	public long rechazadas(String servicio) {
+		return rechazadas[indiceCanal(servicio)];
+	}
+
+	/**
+	 * Devuelve una línea por servicio con peticiones, la de las pasadas de
+	 * desbloqueo, la de las peticiones bloqueadas, una por canal acotado y las
+	 * esperas en cola.
+	 *
+	 * @return Resumen de las métricas
+	 */
+	@Override
+	public String toString() {
+		StringBuilder resumen = new StringBuilder();
+		for (int i = 0; i < SERVICIOS.length; i++) {
+			if (peticiones[i] > 0) {
+				resumen.append(String.format("servicio %s: n=%d media=%.1fus p50=%.1fus p99=%.1fus max=%.1fus%n",
+						SERVICIOS[i], peticiones[i], servicios[i].media() / 1e3, servicios[i].percentil(50) / 1e3,
+						servicios[i].percentil(99) / 1e3, servicios[i].max() / 1e3));
+			}
+		}
+		resumen.append(String.format("pasadas: n=%d p50=%.1fus p99=%.1fus max=%.1fus liberadas media=%.2f max=%d%n",
+				pasadas.cuenta(), pasadas.percentil(50) / 1e3, pasadas.percentil(99) / 1e3, pasadas.max() / 1e3,
+				liberadas.media(), liberadas.max()));
+		resumen.append(String.format("pendientes: transferencias=%d en %d cuentas, alertas=%d en %d cuentas%n",
+				transferenciasPendientes, cuentasConTransferencias, alertasPendientes, cuentasConAlertas));
+		if (lecturasDirectas > 0) {
+			resumen.append(String.format("lecturas directas: %d%n", lecturasDirectas));
+		}
+		if (capacidadCanales > 0) {
+			for (int i = 0; i < ocupacion.length; i++) {
+				resumen.append(String.format("canal %s: ocupacion=%d max=%d/%d rechazadas=%d%n", SERVICIOS[i],
+						ocupacion[i], ocupacionMaxima[i], capacidadCanales, rechazadas[i]));
+			}
+		}
+		if (esperas != null) {
+			resumen.append(esperas);
+		}
+		return resumen.toString();
+	}
+
+	private static int indice(String servicio) {
+		for (int i = 0; i < SERVICIOS.length; i++) {
+			if (SERVICIOS[i].equals(servicio)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException();
+	}
+
+	private static int indiceCanal(String servicio) {
+		int indice = indice(servicio);
+		if (indice >= CanalesAcotados.NUM_CANALES) {
+			throw new IllegalArgumentException();
+		}
+		return indice;
+	}
+}
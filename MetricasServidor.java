@@ -0,0 +1,318 @@
+package cc.blockchain;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Métricas en curso del proceso servidor de {@link BlockchainCSP}. Los
+ * contadores son {@link LongAdder}, que reparten las sumas entre celdas, así
+ * que los hilos cliente pueden contar sin competir con el servidor. Los
+ * histogramas solo los registra el servidor; cada uno se bloquea al registrar
+ * y al copiarlo, y ese bloqueo casi nunca encuentra a otro hilo.
+ */
+class MetricasServidor implements MetricasServidorMBean {
+
+	private static final AtomicInteger NUM_SERVIDORES = new AtomicInteger();
+
+	private final BlockchainCSP servidor;
+	private final LongAdder[] peticiones;
+	private final Histograma[] servicios;
+	private final Histograma pasadas = new Histograma();
+	private final Histograma liberadas = new Histograma();
+	private final LongAdder lecturasDirectas = new LongAdder();
+
+	// Nombre con el que están publicadas, o null si no lo están
+	private ObjectName nombre;
+
+	/**
+	 * Constructor de las métricas de un servidor.
+	 *
+	 * @param servidor Servidor del que se leen las peticiones bloqueadas
+	 */
+	MetricasServidor(BlockchainCSP servidor) {
+		this.servidor = servidor;
+		this.peticiones = new LongAdder[MetricasCSP.SERVICIOS.length];
+		this.servicios = new Histograma[MetricasCSP.SERVICIOS.length];
+		for (int i = 0; i < peticiones.length; i++) {
+			peticiones[i] = new LongAdder();
+			servicios[i] = new Histograma();
+		}
+	}
+
+	/**
+	 * Publica estas métricas en el servidor de MBeans de la plataforma con el
+	 * nombre cc.blockchain:type=BlockchainCSP,id=N, donde N numera los
+	 * servidores publicados por la aplicación. El MBean guarda una referencia
+	 * al servidor, así que lo mantiene vivo hasta que se retira.
+	 *
+	 * @throws IllegalStateException Si ya están publicadas o no puede
+	 *                               registrarse el MBean
+	 */
+	synchronized void publicar() {
+		if (nombre != null) {
+			throw new IllegalStateException();
+		}
+		try {
+			ObjectName publicado = new ObjectName(
+					"cc.blockchain:type=BlockchainCSP,id=" + NUM_SERVIDORES.getAndIncrement());
+			ManagementFactory.getPlatformMBeanServer()
+					.registerMBean(new StandardMBean(this, MetricasServidorMBean.class), publicado);
+			nombre = publicado;
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Retira el MBean publicado con {@link #publicar()}. No hace nada si no
+	 * están publicadas.
+	 *
+	 * @throws IllegalStateException Si no puede quitarse el registro del MBean
+	 */
+	synchronized void retirar() {
+		if (nombre == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(nombre);
+		} catch (InstanceNotFoundException e) {
+			// Ya lo quitó otro desde el servidor de MBeans
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+		nombre = null;
+	}
+
+	/**
+	 * Registra una petición atendida por el servidor.
+	 *
+	 * @param servicio Índice del servicio
+	 * @param nanos    Tiempo de servicio en nanosegundos
+	 */
+	void registrarServicio(int servicio, long nanos) {
+		peticiones[servicio].increment();
+		Histograma histograma = servicios[servicio];
+		synchronized (histograma) {
+			histograma.registrar(nanos);
+		}
+	}
+
+	/**
+	 * Registra una pasada de desbloqueo.
+	 *
+	 * @param nanos         Duración en nanosegundos
+	 * @param desbloqueadas Transferencias y alertas liberadas
+	 */
+	void registrarPasada(long nanos, int desbloqueadas) {
+		synchronized (pasadas) {
+			pasadas.registrar(nanos);
+			liberadas.registrar(desbloqueadas);
+		}
+	}
+
+	/**
+	 * Cuenta una consulta de saldo respondida en el hilo que llama.
+	 */
+	void registrarLecturaDirecta() {
+		lecturasDirectas.increment();
+	}
+
+	/**
+	 * Toma una copia de las métricas.
+	 *
+	 * @return Copia de las métricas
+	 */
+	MetricasCSP copia() {
+		long[] cuentas = new long[peticiones.length];
+		Histograma[] copias = new Histograma[servicios.length];
+		for (int i = 0; i < peticiones.length; i++) {
+			cuentas[i] = peticiones[i].sum();
+			synchronized (servicios[i]) {
+				copias[i] = servicios[i].copia();
+			}
+		}
+		Histograma copiaPasadas;
+		Histograma copiaLiberadas;
+		synchronized (pasadas) {
+			copiaPasadas = pasadas.copia();
+			copiaLiberadas = liberadas.copia();
+		}
+		return new MetricasCSP(cuentas, copias, copiaPasadas, copiaLiberadas, lecturasDirectas.sum(),
+				servidor.transferenciasPendientes(), servidor.alertasPendientes(), servidor.cuentasConTransferencias(),
+				servidor.cuentasConAlertas(), servidor.medirEsperas() ? servidor.esperasCola() : null,
+				servidor.canalesAcotados());
+	}
+
+	@Override
+	public long getPeticionesCrear() {
+		return peticiones[0].sum();
+	}
+
+	@Override
+	public long getPeticionesDisponible() {
+		return peticiones[1].sum();
+	}
+
+	@Override
+	public long getPeticionesTransferir() {
+		return peticiones[2].sum();
+	}
+
+	@Override
+	public long getPeticionesAlertar() {
+		return peticiones[3].sum();
+	}
+
+	@Override
+	public long getPeticionesLote() {
+		return peticiones[4].sum();
+	}
+
+	@Override
+	public long getPeticionesAbonar() {
+		return peticiones[5].sum();
+	}
+
+	@Override
+	public long getPeticionesCancelar() {
+		return peticiones[6].sum();
+	}
+
+	@Override
+	public long getDespertaresTemporizador() {
+		return peticiones[7].sum();
+	}
+
+	@Override
+	public long getLecturasDirectas() {
+		return lecturasDirectas.sum();
+	}
+
+	@Override
+	public int getTransferenciasPendientes() {
+		return servidor.transferenciasPendientes();
+	}
+
+	@Override
+	public int getAlertasPendientes() {
+		return servidor.alertasPendientes();
+	}
+
+	@Override
+	public int getCuentasConTransferencias() {
+		return servidor.cuentasConTransferencias();
+	}
+
+	@Override
+	public int getCuentasConAlertas() {
+		return servidor.cuentasConAlertas();
+	}
+
+	@Override
+	public long getPasadasDesbloqueo() {
+		synchronized (pasadas) {
+			return pasadas.cuenta();
+		}
+	}
+
+	@Override
+	public double getPasadaDesbloqueoP99Micros() {
+		synchronized (pasadas) {
+			return pasadas.percentil(99) / 1e3;
+		}
+	}
+
+	@Override
+	public double getLiberadasPorPasadaMedia() {
+		synchronized (pasadas) {
+			return liberadas.media();
+		}
+	}
+
+	@Override
+	public int getCapacidadCanales() {
+		CanalesAcotados acotados = servidor.canalesAcotados();
+		return acotados == null ? 0 : acotados.capacidad();
+	}
+
+	@Override
+	public int getOcupacionCrear() {
+		return ocupacion(0);
+	}
+
+	@Override
+	public int getOcupacionDisponible() {
+		return ocupacion(1);
+	}
+
+	@Override
+	public int getOcupacionTransferir() {
+		return ocupacion(2);
+	}
+
+	@Override
+	public int getOcupacionAlertar() {
+		return ocupacion(3);
+	}
+
+	@Override
+	public int getOcupacionLote() {
+		return ocupacion(4);
+	}
+
+	@Override
+	public long getPeticionesRechazadas() {
+		CanalesAcotados acotados = servidor.canalesAcotados();
+		long total = 0;
+		for (int canal = 0; acotados != null && canal < CanalesAcotados.NUM_CANALES; canal++) {
+			total += acotados.rechazadas(canal);
+		}
+		return total;
+	}
+
+	@Override
+	public String getResumen() {
+		return copia().toString();
+	}
+
+	@Override
+	public double percentilServicioMicros(String servicio, double percentil) {
+		return copia().servicioMicros(servicio, percentil);
+	}
+
+	@Override
+	public double percentilEsperaMicros(String operacion, double percentil) {
+		EsperasCola esperas = copia().esperas();
+		return esperas == null ? 0 : esperas.percentilMicros(operacion, percentil);
+	}
+
+	@Override
+	public void reiniciar() {
+		for (int i = 0; i < peticiones.length; i++) {
+			peticiones[i].reset();
+			synchronized (servicios[i]) {
+				servicios[i].reiniciar();
+			}
+		}
+		synchronized (pasadas) {
+			pasadas.reiniciar();
+			liberadas.reiniciar();
+		}
+		lecturasDirectas.reset();
+		servidor.reiniciarEsperas();
+		if (servidor.canalesAcotados() != null) {
+			servidor.canalesAcotados().reiniciar();
+		}
+	}
+
+	private int ocupacion(int canal) {
+		CanalesAcotados acotados = servidor.canalesAcotados();
+		return acotados == null ? 0 : acotados.ocupacion(canal);
+	}
+}
@@ -0,0 +1,80 @@
+package cc.blockchain;
+
+/**
+ * Interfaz JMX de las métricas de un proceso servidor de {@link
+ * BlockchainCSP}. Cada lectura se calcula sobre una copia de las métricas
+ * tomada en ese momento.
+ */
+public interface MetricasServidorMBean {
+
+	long getPeticionesCrear();
+
+	long getPeticionesDisponible();
+
+	long getPeticionesTransferir();
+
+	long getPeticionesAlertar();
+
+	long getPeticionesLote();
+
+	long getPeticionesAbonar();
+
+	long getPeticionesCancelar();
+
+	long getDespertaresTemporizador();
+
+	long getLecturasDirectas();
+
+	int getTransferenciasPendientes();
+
+	int getAlertasPendientes();
+
+	int getCuentasConTransferencias();
+
+	int getCuentasConAlertas();
+
+	long getPasadasDesbloqueo();
+
+	double getPasadaDesbloqueoP99Micros();
+
+	double getLiberadasPorPasadaMedia();
+
+	int getCapacidadCanales();
+
+	int getOcupacionCrear();
+
+	int getOcupacionDisponible();
+
+	int getOcupacionTransferir();
+
+	int getOcupacionAlertar();
+
+	int getOcupacionLote();
+
+	long getPeticionesRechazadas();
+
+	String getResumen();
+
+	/**
+	 * Calcula un percentil del tiempo de servicio de un tipo de petición.
+	 *
+	 * @param servicio  Nombre del servicio, como en {@link MetricasCSP}
+	 * @param percentil Percentil entre 0 y 100
+	 * @return Tiempo de servicio en microsegundos
+	 */
+	double percentilServicioMicros(String servicio, double percentil);
+
+	/**
+	 * Calcula un percentil de la espera en cola de una operación.
+	 *
+	 * @param operacion Nombre de la operación, como en {@link EsperasCola}
+	 * @param percentil Percentil entre 0 y 100
+	 * @return Espera en microsegundos, o 0 si no se miden las esperas
+	 */
+	double percentilEsperaMicros(String operacion, double percentil);
+
+	/**
+	 * Pone a cero los contadores y los histogramas.
+	 */
+	void reiniciar();
+}
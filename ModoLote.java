@@ -0,0 +1,15 @@
+package cc.blockchain;
+
+/**
+ * Comportamiento de un lote de transferencias ante una transferencia que no
+ * puede realizarse inmediatamente, bien por falta de fondos o porque la cuenta
+ * de origen tiene transferencias anteriores pendientes.
+ */
+public enum ModoLote {
+	/** Se omite esa transferencia y todas las siguientes del lote. */
+	FALLAR,
+	/** La transferencia espera su turno como cualquier transferencia bloqueada. */
+	BLOQUEAR,
+	/** Se omite esa transferencia y se continúa con las siguientes. */
+	OMITIR
+}
@@ -0,0 +1,17 @@
+package cc.blockchain;
+
+/**
+ * Comportamiento de los canales de peticiones con buffer de {@link
+ * BlockchainCSP} cuando el buffer de una petición está lleno.
+ */
+public enum PoliticaDesborde {
+	/** El cliente espera a que el servidor lea peticiones y quede sitio. */
+	BLOQUEAR,
+	/** La petición se rechaza con RejectedExecutionException. */
+	RECHAZAR,
+	/**
+	 * Las consultas de saldo se rechazan cuando su buffer o el de las
+	 * transferencias están llenos; el resto de peticiones espera.
+	 */
+	DESCARTAR_LECTURAS
+}
@@ -0,0 +1,119 @@
+package cc.blockchain;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Prueba de inclusión de una transferencia en un bloque. Contiene la
+ * transferencia, los hashes hermanos del camino desde su hoja hasta la raíz
+ * de Merkle del bloque y la raíz resultante. Un auditor la comprueba con
+ * {@link #verificar(byte[])} frente a una raíz que obtenga por otra vía.
+ */
+public class PruebaInclusion {
+	private final long transaccion;
+	private final String origen;
+	private final String destino;
+	private final int valor;
+	private final long altura;
+	private final byte[][] hermanos;
+	private final boolean[] izquierdos;
+	private final byte[] raiz;
+
+	/**
+	 * Constructor de una prueba de inclusión.
+	 *
+	 * @param transaccion Número de la transferencia
+	 * @param origen      ID público de la cuenta de origen
+	 * @param destino     ID público de la cuenta de destino
+	 * @param valor       Monto transferido
+	 * @param altura      Altura del bloque que contiene la transferencia
+	 * @param hermanos    Hashes hermanos, de la hoja hacia la raíz
+	 * @param izquierdos  Si cada hermano queda a la izquierda del camino
+	 * @param numHermanos Número de hermanos del camino
+	 * @param raiz        Raíz de Merkle del bloque
+	 */
+	PruebaInclusion(long transaccion, String origen, String destino, int valor, long altura, byte[][] hermanos,
+			boolean[] izquierdos, int numHermanos, byte[] raiz) {
+		this.transaccion = transaccion;
+		this.origen = origen;
+		this.destino = destino;
+		this.valor = valor;
+		this.altura = altura;
+		this.hermanos = Arrays.copyOf(hermanos, numHermanos);
+		this.izquierdos = Arrays.copyOf(izquierdos, numHermanos);
+		this.raiz = raiz;
+	}
+
+	/**
+	 * Comprueba que la transferencia de la prueba está incluida en un árbol de
+	 * Merkle con la raíz dada.
+	 *
+	 * @param raizConfiada Raíz de Merkle obtenida por el auditor
+	 * @return true si el camino de la prueba lleva a esa raíz
+	 * @throws IllegalArgumentException Si la raíz es nula
+	 */
+	public boolean verificar(byte[] raizConfiada) {
+		if (raizConfiada == null) {
+			throw new IllegalArgumentException();
+		}
+		byte[] hash = Bloque.hashHoja(transaccion, origen, destino, valor);
+		for (int i = 0; i < hermanos.length; i++) {
+			hash = izquierdos[i] ? Bloque.hashNodo(hermanos[i], hash) : Bloque.hashNodo(hash, hermanos[i]);
+		}
+		return MessageDigest.isEqual(hash, raizConfiada);
+	}
+
+	/**
+	 * Devuelve el número de la transferencia en la cadena.
+	 *
+	 * @return Número de la transferencia
+	 */
+	public long getTransaccion() {
+		return transaccion;
+	}
+
+	/**
+	 * Devuelve el ID público de la cuenta de origen.
+	 *
+	 * @return ID público de origen
+	 */
+	public String getOrigen() {
+		return origen;
+	}
+
+	/**
+	 * Devuelve el ID público de la cuenta de destino.
+	 *
+	 * @return ID público de destino
+	 */
+	public String getDestino() {
+		return destino;
+	}
+
+	/**
+	 * Devuelve el monto transferido.
+	 *
+	 * @return Monto de la transferencia
+	 */
+	public int getValor() {
+		return valor;
+	}
+
+	/**
+	 * Devuelve la altura del bloque que contiene la transferencia.
+	 *
+	 * @return Altura del bloque
+	 */
+	public long getAltura() {
+		return altura;
+	}
+
+	/**
+	 * Devuelve la raíz de Merkle del bloque según el servidor.
+	 *
+	 * @return Copia de la raíz
+	 */
+	public byte[] getRaiz() {
+		return raiz.clone();
+	}
+}
@@ -0,0 +1,285 @@
+package cc.blockchain;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Puntos de control de la tabla de cuentas en un fichero binario proyectado en
+ * memoria. Un punto de control guarda el estado hasta una posición del
+ * registro de escritura, de modo que al arrancar solo hay que reproducir los
+ * registros posteriores.
+ *
+ * Formato del fichero, con enteros big-endian:
+ *
+ * <pre>
+ * int    MAGICO
+ * int    VERSION
+ * long   posición del registro de escritura
+ * int    número de cuentas (n)
+ * int    número de transferencias pendientes (t)
+ * int    número de alertas pendientes (a)
+ * int[n] saldos
+ * n x    (int longitud, UTF-8) ID privado y (int longitud, UTF-8) ID público
+ * t x    (int origen, int destino, int valor)
+ * a x    (int cuenta, int max)
+ * int    número de particiones con secuencias (p)
+ * p x    (long última secuencia reservada, long última secuencia abonada)
+ * int    número de reservas entre particiones (r)
+ * r x    (int origen, int valor, int partición, long secuencia,
+ *         int longitud, UTF-8) con el ID público de destino
+ * </pre>
+ *
+ * Las peticiones pendientes se guardan solo como información: sus clientes no
+ * sobreviven a un reinicio, así que no se restauran. Las reservas entre
+ * particiones sí se restauran, porque sus fondos ya se han cargado en origen
+ * y el abono debe completarse. Los ficheros de la versión 1 no tienen las
+ * dos últimas secciones, y los de las versiones 1 y 2 guardan la longitud de
+ * los IDs en un short. Los IDs caben en cualquier caso, porque el servidor no
+ * admite cuentas con IDs de más de {@link RegistroEscritura#MAX_BYTES_ID}
+ * bytes.
+ *
+ * El servidor prepara la {@link Instantanea} por bloques, sin detenerse más
+ * que lo que tarda en copiar un bloque de saldos, y un hilo propio escribe el
+ * fichero en segundo plano.
+ */
+class PuntoControl {
+
+	private static final int MAGICO = 0x42435350;
+	private static final int VERSION = 3;
+	private static final int CABECERA = 4 + 4 + 8 + 4 + 4 + 4;
+
+	/**
+	 * Estado copiado por el servidor para escribir un punto de control.
+	 */
+	static class Instantanea {
+		long posicionRegistro;
+		int numCuentas;
+		String[] privados;
+		String[] publicos;
+		int[][] saldos;
+		int[] transferencias = new int[48];
+		int numTransferencias;
+		int[] alertas = new int[32];
+		int numAlertas;
+		EstadoParticiones particiones;
+
+		/**
+		 * Anota una transferencia pendiente.
+		 *
+		 * @param origen  Slot de la cuenta de origen
+		 * @param destino Slot de la cuenta de destino, o -1 si está en otra
+		 *                partición
+		 * @param valor   Monto de la transferencia
+		 */
+		void anotarTransferencia(int origen, int destino, int valor) {
+			if (numTransferencias + 3 > transferencias.length) {
+				transferencias = Arrays.copyOf(transferencias, transferencias.length * 2);
+			}
+			transferencias[numTransferencias++] = origen;
+			transferencias[numTransferencias++] = destino;
+			transferencias[numTransferencias++] = valor;
+		}
+
+		/**
+		 * Anota una alerta pendiente.
+		 *
+		 * @param cuenta Slot de la cuenta
+		 * @param max    Saldo máximo de la alerta
+		 */
+		void anotarAlerta(int cuenta, int max) {
+			if (numAlertas + 2 > alertas.length) {
+				alertas = Arrays.copyOf(alertas, alertas.length * 2);
+			}
+			alertas[numAlertas++] = cuenta;
+			alertas[numAlertas++] = max;
+		}
+	}
+
+	private final Path ruta;
+	private final RegistroEscritura registro;
+	private final ExecutorService escritor;
+	private Future<?> escritura;
+
+	/**
+	 * Constructor para los puntos de control de un fichero.
+	 *
+	 * @param ruta     Ruta del fichero de punto de control
+	 * @param registro Registro de escritura cuya posición cubren los puntos de
+	 *                 control
+	 */
+	PuntoControl(Path ruta, RegistroEscritura registro) {
+		this.ruta = ruta;
+		this.registro = registro;
+		this.escritor = Executors.newSingleThreadExecutor(tarea -> {
+			Thread hilo = new Thread(tarea, "punto-control");
+			hilo.setDaemon(true);
+			return hilo;
+		});
+	}
+
+	/**
+	 * Comprueba si hay un punto de control escribiéndose.
+	 *
+	 * @return true si la última escritura no ha terminado
+	 */
+	boolean escribiendo() {
+		return escritura != null && !escritura.isDone();
+	}
+
+	/**
+	 * Escribe una instantánea en segundo plano. El fichero anterior se
+	 * sustituye de forma atómica cuando el nuevo y el registro hasta su
+	 * posición están en disco.
+	 *
+	 * @param instantanea Instantanea completa
+	 */
+	void escribir(Instantanea instantanea) {
+		escritura = escritor.submit(() -> volcar(instantanea));
+	}
+
+	/**
+	 * Carga el último punto de control en la tabla de cuentas y en el estado
+	 * de las transferencias entre particiones.
+	 *
+	 * @param ruta        Ruta del fichero de punto de control
+	 * @param cuentas     Tabla de cuentas vacía
+	 * @param particiones Estado de las transferencias entre particiones vacío
+	 * @return Posición del registro de escritura desde la que reproducir, o 0 si
+	 *         no hay punto de control
+	 * @throws UncheckedIOException Si no puede leerse el fichero
+	 */
+	static long cargar(Path ruta, TablaCuentas cuentas, EstadoParticiones particiones) {
+		if (!Files.exists(ruta)) {
+			return 0;
+		}
+		try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ)) {
+			MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+			int version = mapa.getInt() == MAGICO ? mapa.getInt() : -1;
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Punto de control no válido: " + ruta);
+			}
+			long posicion = mapa.getLong();
+			int numCuentas = mapa.getInt();
+			int numTransferencias = mapa.getInt();
+			int numAlertas = mapa.getInt();
+			int[] saldos = new int[numCuentas];
+			mapa.asIntBuffer().get(saldos);
+			mapa.position(mapa.position() + numCuentas * 4);
+			cuentas.reservar(numCuentas);
+			for (int cuenta = 0; cuenta < numCuentas; cuenta++) {
+				String idPrivado = leerCadena(mapa, version);
+				String idPublico = leerCadena(mapa, version);
+				cuentas.crear(idPrivado, idPublico, saldos[cuenta]);
+			}
+			if (version > 1) {
+				mapa.position(mapa.position() + numTransferencias * 12 + numAlertas * 8);
+				int numParticiones = mapa.getInt();
+				for (int particion = 0; particion < numParticiones; particion++) {
+					particiones.enviar(particion, mapa.getLong());
+					particiones.abonar(particion, mapa.getLong());
+				}
+				int numReservas = mapa.getInt();
+				for (int i = 0; i < numReservas; i++) {
+					int origen = mapa.getInt();
+					int valor = mapa.getInt();
+					int particion = mapa.getInt();
+					long secuencia = mapa.getLong();
+					particiones.reservar(
+							new EstadoParticiones.Reserva(origen, valor, particion, secuencia, leerCadena(mapa, version)));
+				}
+			}
+			return posicion;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void volcar(Instantanea instantanea) {
+		byte[][] ids = new byte[instantanea.numCuentas * 2][];
+		EstadoParticiones particiones = instantanea.particiones;
+		long tamano = CABECERA + 4L * instantanea.numCuentas + 4L * instantanea.numTransferencias
+				+ 4L * instantanea.numAlertas + 4 + 16L * particiones.numParticiones() + 4;
+		for (int cuenta = 0; cuenta < instantanea.numCuentas; cuenta++) {
+			ids[2 * cuenta] = instantanea.privados[cuenta].getBytes(StandardCharsets.UTF_8);
+			ids[2 * cuenta + 1] = instantanea.publicos[cuenta].getBytes(StandardCharsets.UTF_8);
+			tamano += 8 + ids[2 * cuenta].length + ids[2 * cuenta + 1].length;
+		}
+		EstadoParticiones.Reserva[] reservas = particiones.reservas.values()
+				.toArray(new EstadoParticiones.Reserva[0]);
+		byte[][] destinos = new byte[reservas.length][];
+		for (int i = 0; i < destinos.length; i++) {
+			destinos[i] = reservas[i].idPublicoDestino.getBytes(StandardCharsets.UTF_8);
+			tamano += 4 + 4 + 4 + 8 + 4 + destinos[i].length;
+		}
+		Path temporal = Paths.get(ruta.toString() + ".tmp");
+		try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_WRITE, 0, tamano);
+			mapa.putInt(MAGICO);
+			mapa.putInt(VERSION);
+			mapa.putLong(instantanea.posicionRegistro);
+			mapa.putInt(instantanea.numCuentas);
+			mapa.putInt(instantanea.numTransferencias / 3);
+			mapa.putInt(instantanea.numAlertas / 2);
+			int restantes = instantanea.numCuentas;
+			for (int[] bloque : instantanea.saldos) {
+				int cantidad = Math.min(bloque.length, restantes);
+				mapa.asIntBuffer().put(bloque, 0, cantidad);
+				mapa.position(mapa.position() + cantidad * 4);
+				restantes -= cantidad;
+			}
+			for (byte[] id : ids) {
+				mapa.putInt(id.length);
+				mapa.put(id);
+			}
+			for (int i = 0; i < instantanea.numTransferencias; i++) {
+				mapa.putInt(instantanea.transferencias[i]);
+			}
+			for (int i = 0; i < instantanea.numAlertas; i++) {
+				mapa.putInt(instantanea.alertas[i]);
+			}
+			mapa.putInt(particiones.numParticiones());
+			for (int particion = 0; particion < particiones.numParticiones(); particion++) {
+				mapa.putLong(particiones.enviada(particion));
+				mapa.putLong(particiones.abonada(particion));
+			}
+			mapa.putInt(destinos.length);
+			for (int i = 0; i < destinos.length; i++) {
+				EstadoParticiones.Reserva reserva = reservas[i];
+				mapa.putInt(reserva.origen);
+				mapa.putInt(reserva.valor);
+				mapa.putInt(reserva.particion);
+				mapa.putLong(reserva.secuencia);
+				mapa.putInt(destinos[i].length);
+				mapa.put(destinos[i]);
+			}
+			mapa.force();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		registro.forzar();
+		try {
+			Files.move(temporal, ruta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static String leerCadena(MappedByteBuffer mapa, int version) {
+		byte[] bytes = new byte[version < 3 ? mapa.getShort() & 0xFFFF : mapa.getInt()];
+		mapa.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,334 @@
+package cc.blockchain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Registro de escritura anticipada (write-ahead log) del servidor. Guarda en
+ * un fichero de solo añadido las cuentas creadas y los movimientos de fondos
+ * ya realizados, identificando las cuentas por su slot en
+ * {@link TablaCuentas}. Los registros se acumulan en un buffer y se llevan a
+ * disco con {@link #sincronizar()}, que el servidor llama una vez por grupo de
+ * peticiones.
+ *
+ * Una transferencia a otra partición deja tres registros: la reserva en
+ * origen, el abono en destino y la confirmación en origen, los dos últimos
+ * con la secuencia de la reserva para poder casarlos al recuperar.
+ *
+ * Solo lo usa el proceso servidor, salvo {@link #forzar()}.
+ */
+class RegistroEscritura {
+
+	/**
+	 * Longitud máxima de un ID en bytes, la que admite
+	 * {@link DataOutputStream#writeUTF(String)}. El servidor rechaza al crear
+	 * las cuentas con IDs más largos, antes de aplicar ni registrar nada.
+	 */
+	static final int MAX_BYTES_ID = 0xFFFF;
+
+	private static final byte CREAR = 1;
+	private static final byte TRANSFERIR = 2;
+	// Cargo y abono entre particiones sin confirmación, de versiones
+	// anteriores: solo se leen
+	private static final byte CARGAR = 3;
+	private static final byte ABONAR = 4;
+	private static final byte RESERVAR = 5;
+	private static final byte CONFIRMAR = 6;
+	private static final byte ABONAR_PARTICION = 7;
+
+	/**
+	 * Receptor de los registros leídos al recuperar un fichero.
+	 */
+	interface Lector {
+		void crear(String idPrivado, String idPublico, int saldo);
+
+		void transferir(int origen, int destino, int valor);
+
+		void ajustar(int cuenta, int cantidad);
+
+		void reservar(EstadoParticiones.Reserva reserva);
+
+		void confirmar(int particion, long secuencia);
+
+		void abonar(int cuenta, int valor, int particion, long secuencia);
+	}
+
+	private final FileChannel fichero;
+	private final DataOutputStream salida;
+	private long posicion;
+
+	/**
+	 * Abre el registro para añadir al final del fichero, creándolo si no
+	 * existe.
+	 *
+	 * @param ruta Ruta del fichero
+	 * @throws UncheckedIOException Si no puede abrirse el fichero
+	 */
+	RegistroEscritura(Path ruta) {
+		try {
+			this.fichero = FileChannel.open(ruta, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			this.posicion = fichero.size();
+			this.fichero.position(posicion);
+			this.salida = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(fichero), 1 << 16));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Lee los registros completos de un fichero a partir de una posición y
+	 * descarta un posible registro final a medio escribir.
+	 *
+	 * @param ruta   Ruta del fichero
+	 * @param desde  Posición en bytes desde la que leer
+	 * @param lector Receptor de los registros
+	 * @return Posición del final del último registro completo
+	 * @throws UncheckedIOException Si no puede leerse el fichero
+	 */
+	static long recuperar(Path ruta, long desde, Lector lector) {
+		if (!Files.exists(ruta)) {
+			return desde;
+		}
+		long completo = desde;
+		try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			canal.position(desde);
+			DataInputStream entrada = new DataInputStream(new BufferedInputStream(Channels.newInputStream(canal), 1 << 16));
+			try {
+				while (true) {
+					byte tipo = entrada.readByte();
+					switch (tipo) {
+						case CREAR:
+							String idPrivado = entrada.readUTF();
+							String idPublico = entrada.readUTF();
+							int saldo = entrada.readInt();
+							lector.crear(idPrivado, idPublico, saldo);
+							completo += 1 + 2 + utf(idPrivado) + 2 + utf(idPublico) + 4;
+							break;
+						case TRANSFERIR:
+							int origen = entrada.readInt();
+							int destino = entrada.readInt();
+							int valor = entrada.readInt();
+							lector.transferir(origen, destino, valor);
+							completo += 13;
+							break;
+						case CARGAR:
+						case ABONAR:
+							int cuenta = entrada.readInt();
+							int cantidad = entrada.readInt();
+							lector.ajustar(cuenta, tipo == CARGAR ? -cantidad : cantidad);
+							completo += 9;
+							break;
+						case RESERVAR:
+							int reservada = entrada.readInt();
+							int monto = entrada.readInt();
+							int particionDestino = entrada.readInt();
+							long secuencia = entrada.readLong();
+							String idDestino = entrada.readUTF();
+							lector.reservar(new EstadoParticiones.Reserva(reservada, monto, particionDestino, secuencia,
+									idDestino));
+							completo += 1 + 4 + 4 + 4 + 8 + 2 + utf(idDestino);
+							break;
+						case CONFIRMAR:
+							int confirmada = entrada.readInt();
+							lector.confirmar(confirmada, entrada.readLong());
+							completo += 13;
+							break;
+						case ABONAR_PARTICION:
+							int abonada = entrada.readInt();
+							int abono = entrada.readInt();
+							int particionOrigen = entrada.readInt();
+							lector.abonar(abonada, abono, particionOrigen, entrada.readLong());
+							completo += 21;
+							break;
+						default:
+							throw new EOFException();
+					}
+				}
+			} catch (EOFException e) {
+				// Fin del fichero o registro final incompleto
+			}
+			canal.truncate(completo);
+			canal.force(true);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return completo;
+	}
+
+	/**
+	 * Registra la creación de una cuenta.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param idPublico ID público de la cuenta
+	 * @param saldo     Saldo inicial de la cuenta
+	 */
+	void crear(String idPrivado, String idPublico, int saldo) {
+		try {
+			salida.writeByte(CREAR);
+			salida.writeUTF(idPrivado);
+			salida.writeUTF(idPublico);
+			salida.writeInt(saldo);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Registra una transferencia entre dos cuentas de este servidor.
+	 *
+	 * @param origen  Slot de la cuenta de origen
+	 * @param destino Slot de la cuenta de destino
+	 * @param valor   Monto transferido
+	 */
+	void transferir(int origen, int destino, int valor) {
+		try {
+			salida.writeByte(TRANSFERIR);
+			salida.writeInt(origen);
+			salida.writeInt(destino);
+			salida.writeInt(valor);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Registra el cargo en origen de una transferencia a otra partición, que
+	 * queda reservada hasta que se confirme su abono.
+	 *
+	 * @param reserva Transferencia reservada
+	 */
+	void reservar(EstadoParticiones.Reserva reserva) {
+		try {
+			salida.writeByte(RESERVAR);
+			salida.writeInt(reserva.origen);
+			salida.writeInt(reserva.valor);
+			salida.writeInt(reserva.particion);
+			salida.writeLong(reserva.secuencia);
+			salida.writeUTF(reserva.idPublicoDestino);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Registra que la partición de destino ha abonado una transferencia
+	 * reservada.
+	 *
+	 * @param particion Partición de destino
+	 * @param secuencia Secuencia de la reserva
+	 */
+	void confirmar(int particion, long secuencia) {
+		try {
+			salida.writeByte(CONFIRMAR);
+			salida.writeInt(particion);
+			salida.writeLong(secuencia);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Registra el abono de una transferencia recibida de otra partición.
+	 *
+	 * @param cuenta    Slot de la cuenta
+	 * @param valor     Monto abonado
+	 * @param particion Partición de origen
+	 * @param secuencia Secuencia de la reserva en origen
+	 */
+	void abonar(int cuenta, int valor, int particion, long secuencia) {
+		try {
+			salida.writeByte(ABONAR_PARTICION);
+			salida.writeInt(cuenta);
+			salida.writeInt(valor);
+			salida.writeInt(particion);
+			salida.writeLong(secuencia);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Lleva a disco todos los registros escritos hasta ahora.
+	 *
+	 * @throws UncheckedIOException Si falla la escritura
+	 */
+	void sincronizar() {
+		try {
+			salida.flush();
+			fichero.force(false);
+			posicion = fichero.position();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Pasa al fichero los registros escritos hasta ahora, sin esperar a que
+	 * lleguen a disco, y devuelve la posición de su final.
+	 *
+	 * @return Posición en bytes del final del último registro escrito
+	 * @throws UncheckedIOException Si falla la escritura
+	 */
+	long marcar() {
+		try {
+			salida.flush();
+			return fichero.position();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Lleva a disco lo que ya se ha pasado al fichero. A diferencia del resto
+	 * de métodos, puede llamarse desde otro hilo mientras el servidor escribe.
+	 *
+	 * @throws UncheckedIOException Si falla la sincronización
+	 */
+	void forzar() {
+		try {
+			fichero.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Devuelve la posición del final del último registro sincronizado.
+	 *
+	 * @return Posición en bytes
+	 */
+	long posicion() {
+		return posicion;
+	}
+
+	/**
+	 * Comprueba si un ID cabe en un registro.
+	 *
+	 * @param id ID no nulo
+	 * @return true si su codificación ocupa como mucho {@link #MAX_BYTES_ID}
+	 *         bytes
+	 */
+	static boolean idAdmisible(String id) {
+		// Ningún carácter ocupa más de tres bytes
+		return id.length() <= MAX_BYTES_ID / 3 || utf(id) <= MAX_BYTES_ID;
+	}
+
+	private static int utf(String cadena) {
+		int bytes = 0;
+		for (int i = 0; i < cadena.length(); i++) {
+			char c = cadena.charAt(i);
+			bytes += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+		}
+		return bytes;
+	}
+}
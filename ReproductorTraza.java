@@ -0,0 +1,97 @@
+package cc.blockchain;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+/**
+ * Reproduce una traza de peticiones anotada con
+ * {@link ConfiguracionCSP#traza(Path)} sobre un servidor nuevo, en el hilo
+ * principal y sin canales, de modo que mide solo el coste de atender las
+ * peticiones y de las pasadas de desbloqueo con el tráfico real. Primero
+ * comprueba que la reproducción es fiel: el servidor reproducido anota su
+ * propia traza, que debe coincidir byte a byte con la original.
+ *
+ * Uso: java cc.blockchain.ReproductorTraza traza=fichero [clave=valor ...]
+ *
+ * Claves (valor por defecto entre paréntesis): traza, fichero de la traza;
+ * repeticiones (5), reproducciones medidas; comprobar (true), si se compara
+ * antes la reproducción con la traza.
+ *
+ * Escribe una línea por repetición con las peticiones reproducidas por
+ * segundo. Termina con código 1 si la reproducción no es fiel.
+ */
+public class ReproductorTraza {
+
+	/**
+	 * Punto de entrada del reproductor.
+	 *
+	 * @param args Parámetros clave=valor
+	 * @throws IOException Si no puede crearse o compararse la traza de
+	 *                     comprobación
+	 */
+	public static void main(String[] args) throws IOException {
+		HashMap<String, String> parametros = new HashMap<>();
+		for (String arg : args) {
+			int igual = arg.indexOf('=');
+			if (igual < 0) {
+				throw new IllegalArgumentException("Parámetro sin valor: " + arg);
+			}
+			parametros.put(arg.substring(0, igual), arg.substring(igual + 1));
+		}
+		if (!parametros.containsKey("traza")) {
+			throw new IllegalArgumentException("Falta el parámetro traza");
+		}
+		Path traza = Paths.get(parametros.get("traza"));
+		int repeticiones = Integer.parseInt(parametros.getOrDefault("repeticiones", "5"));
+		boolean comprobar = Boolean.parseBoolean(parametros.getOrDefault("comprobar", "true"));
+
+		if (comprobar && !comprobar(traza)) {
+			System.exit(1);
+		}
+		System.out.println("repeticion\tpeticiones\tpeticiones/s");
+		for (int i = 1; i <= repeticiones; i++) {
+			BlockchainCSP servidor = new BlockchainCSP(new ConfiguracionCSP(), false);
+			long inicio = System.nanoTime();
+			long peticiones = servidor.reproducir(traza);
+			long nanos = System.nanoTime() - inicio;
+			System.out.println(i + "\t\t" + peticiones + "\t\t" + peticiones * 1000000000L / Math.max(nanos, 1));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Reproduce la traza anotando la del servidor reproducido y compara las
+	 * dos. Un registro final a medio escribir en la original no se reproduce,
+	 * así que la reproducida debe coincidir exactamente con la original hasta
+	 * el final de su último registro completo, y acabar ahí.
+	 *
+	 * @param traza Fichero de la traza original
+	 * @return true si la reproducción es fiel
+	 * @throws IOException Si no puede crearse o leerse la traza reproducida
+	 */
+	private static boolean comprobar(Path traza) throws IOException {
+		long completos = TrazaPeticiones.leer(traza, new TrazaPeticiones.Lector() {
+		});
+		Path copia = Files.createTempFile("traza", ".bin");
+		try {
+			new BlockchainCSP(new ConfiguracionCSP().traza(copia), false).reproducir(traza);
+			long diferencia = Files.mismatch(traza, copia);
+			if (diferencia >= 0 && diferencia < completos) {
+				System.out.println("La reproducción difiere de la traza en el byte " + diferencia);
+				return false;
+			}
+			if (Files.size(copia) != completos) {
+				System.out.println("La reproducción ocupa " + Files.size(copia) + " bytes y la traza completa "
+						+ completos);
+				return false;
+			}
+			System.out.println("Reproducción fiel: " + Files.size(copia) + " bytes");
+			return true;
+		} finally {
+			Files.deleteIfExists(copia);
+		}
+	}
+}
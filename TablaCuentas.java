@@ -0,0 +1,318 @@
+package cc.blockchain;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tabla de cuentas del servidor. Cada cuenta recibe al crearse una posición
+ * densa (slot) y su saldo se guarda en un array de enteros, de modo que
+ * consultar o modificar saldos no crea objetos. Los identificadores privado y
+ * público se resuelven directamente al slot mediante dos tablas hash de
+ * direccionamiento abierto.
+ *
+ * No es segura para hilos: solo la modifica el proceso servidor. Si se crea
+ * con publicación de saldos, además mantiene una copia de los saldos que
+ * cualquier hilo puede leer con {@link #saldoPublicado(String)}.
+ *
+ * Para los puntos de control, la tabla puede tomar una instantánea de los
+ * saldos por bloques: mientras está en curso, el primer ajuste de un bloque no
+ * copiado lo copia antes de modificarlo, así que la instantánea refleja los
+ * saldos del momento en que se inició aunque el servidor siga atendiendo
+ * peticiones.
+ */
+class TablaCuentas {
+
+	private static final int CAPACIDAD_INICIAL = 16;
+	static final int BITS_BLOQUE = 16;
+
+	// Saldo publicado de una cuenta retenida: su saldo solo puede leerse en el
+	// servidor
+	static final int RETENIDO = Integer.MIN_VALUE;
+
+	private String[] privados;
+	private String[] publicos;
+	private int[] saldos;
+	private int numCuentas;
+
+	// Cada posición guarda slot + 1; 0 indica posición libre
+	private int[] indicePrivados;
+	private int[] indicePublicos;
+
+	// Copia de lectura concurrente, o null si no se publican los saldos. Solo
+	// escribe el servidor; al ampliarla copia los saldos antes de publicar el
+	// nuevo array, así que ningún lector pierde una escritura ya respondida.
+	private volatile AtomicIntegerArray saldosPublicados;
+	private ConcurrentHashMap<String, Integer> indicePublicado;
+
+	// Bloques de saldos de la instantánea en curso, o null si no hay ninguna
+	private int[][] bloquesInstantanea;
+	private int cuentasInstantanea;
+
+	/**
+	 * Constructor de una tabla de cuentas vacía.
+	 */
+	TablaCuentas() {
+		this(false);
+	}
+
+	/**
+	 * Constructor de una tabla de cuentas vacía.
+	 *
+	 * @param publicar true para mantener una copia de los saldos de lectura
+	 *                 concurrente
+	 */
+	TablaCuentas(boolean publicar) {
+		this.privados = new String[CAPACIDAD_INICIAL];
+		this.publicos = new String[CAPACIDAD_INICIAL];
+		this.saldos = new int[CAPACIDAD_INICIAL];
+		this.indicePrivados = new int[CAPACIDAD_INICIAL * 2];
+		this.indicePublicos = new int[CAPACIDAD_INICIAL * 2];
+		if (publicar) {
+			this.saldosPublicados = new AtomicIntegerArray(CAPACIDAD_INICIAL);
+			this.indicePublicado = new ConcurrentHashMap<>();
+		}
+	}
+
+	/**
+	 * Busca el slot de una cuenta a partir de su ID privado.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @return Slot de la cuenta, o -1 si no existe
+	 */
+	int buscarPrivado(String idPrivado) {
+		return buscar(indicePrivados, privados, idPrivado);
+	}
+
+	/**
+	 * Busca el slot de una cuenta a partir de su ID público.
+	 *
+	 * @param idPublico ID público de la cuenta
+	 * @return Slot de la cuenta, o -1 si no existe
+	 */
+	int buscarPublico(String idPublico) {
+		return buscar(indicePublicos, publicos, idPublico);
+	}
+
+	/**
+	 * Crea una cuenta nueva. Quien llama debe haber comprobado que ninguno de
+	 * los dos identificadores está en uso.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param idPublico ID público de la cuenta
+	 * @param saldo     Saldo inicial de la cuenta
+	 * @return Slot asignado a la cuenta
+	 */
+	int crear(String idPrivado, String idPublico, int saldo) {
+		if (numCuentas == saldos.length) {
+			ampliar();
+		}
+		int cuenta = numCuentas++;
+		privados[cuenta] = idPrivado;
+		publicos[cuenta] = idPublico;
+		saldos[cuenta] = saldo;
+		insertar(indicePrivados, idPrivado, cuenta);
+		insertar(indicePublicos, idPublico, cuenta);
+		if (saldosPublicados != null) {
+			saldosPublicados.set(cuenta, saldo);
+			indicePublicado.put(idPrivado, cuenta);
+		}
+		return cuenta;
+	}
+
+	/**
+	 * Devuelve el saldo de una cuenta.
+	 *
+	 * @param cuenta Slot de la cuenta
+	 * @return Saldo de la cuenta
+	 */
+	int saldo(int cuenta) {
+		return saldos[cuenta];
+	}
+
+	/**
+	 * Suma una cantidad, positiva o negativa, al saldo de una cuenta.
+	 *
+	 * @param cuenta   Slot de la cuenta
+	 * @param cantidad Cantidad a sumar
+	 */
+	void ajustar(int cuenta, int cantidad) {
+		if (bloquesInstantanea != null && cuenta < cuentasInstantanea) {
+			copiarBloque(cuenta >>> BITS_BLOQUE);
+		}
+		saldos[cuenta] += cantidad;
+		if (saldosPublicados != null && saldosPublicados.get(cuenta) != RETENIDO) {
+			saldosPublicados.set(cuenta, saldos[cuenta]);
+		}
+	}
+
+	/**
+	 * Retiene el saldo publicado de una cuenta: hasta que se libere, las
+	 * lecturas de saldos publicados de esa cuenta devuelven
+	 * {@link #RETENIDO} y deben hacerse en el servidor.
+	 *
+	 * @param cuenta Slot de la cuenta
+	 */
+	void retener(int cuenta) {
+		if (saldosPublicados != null) {
+			saldosPublicados.set(cuenta, RETENIDO);
+		}
+	}
+
+	/**
+	 * Vuelve a publicar el saldo de una cuenta retenida.
+	 *
+	 * @param cuenta Slot de la cuenta
+	 */
+	void liberar(int cuenta) {
+		if (saldosPublicados != null) {
+			saldosPublicados.set(cuenta, saldos[cuenta]);
+		}
+	}
+
+	/**
+	 * Lee el saldo publicado de una cuenta. Puede llamarse desde cualquier hilo
+	 * si la tabla se creó con publicación de saldos.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @return Saldo de la cuenta, -1 si no existe o {@link #RETENIDO} si está
+	 *         retenida
+	 */
+	int saldoPublicado(String idPrivado) {
+		Integer cuenta = indicePublicado.get(idPrivado);
+		return cuenta == null ? -1 : saldosPublicados.get(cuenta);
+	}
+
+	/**
+	 * Devuelve el ID privado de una cuenta.
+	 *
+	 * @param cuenta Slot de la cuenta
+	 * @return ID privado de la cuenta
+	 */
+	String idPrivado(int cuenta) {
+		return privados[cuenta];
+	}
+
+	/**
+	 * Devuelve el ID público de una cuenta.
+	 *
+	 * @param cuenta Slot de la cuenta
+	 * @return ID público de la cuenta
+	 */
+	String idPublico(int cuenta) {
+		return publicos[cuenta];
+	}
+
+	/**
+	 * Devuelve el número de cuentas creadas. Los slots válidos van de 0 a
+	 * tamano() - 1.
+	 *
+	 * @return Número de cuentas
+	 */
+	int tamano() {
+		return numCuentas;
+	}
+
+	/**
+	 * Reserva capacidad para al menos un número de cuentas.
+	 *
+	 * @param capacidad Número de cuentas
+	 */
+	void reservar(int capacidad) {
+		while (saldos.length < capacidad) {
+			ampliar();
+		}
+	}
+
+	/**
+	 * Inicia una instantánea de las cuentas existentes. Los identificadores no
+	 * cambian una vez creada la cuenta, así que se comparten sin copiarlos; los
+	 * saldos se copian por bloques con {@link #copiarBloque(int)}.
+	 *
+	 * @param instantanea Instantanea a rellenar
+	 * @return Número de bloques de la instantánea
+	 */
+	int iniciarInstantanea(PuntoControl.Instantanea instantanea) {
+		cuentasInstantanea = numCuentas;
+		bloquesInstantanea = new int[(numCuentas + (1 << BITS_BLOQUE) - 1) >>> BITS_BLOQUE][];
+		instantanea.numCuentas = numCuentas;
+		instantanea.privados = privados;
+		instantanea.publicos = publicos;
+		instantanea.saldos = bloquesInstantanea;
+		return bloquesInstantanea.length;
+	}
+
+	/**
+	 * Copia un bloque de saldos en la instantánea en curso si aún no se ha
+	 * copiado.
+	 *
+	 * @param bloque Índice del bloque
+	 */
+	void copiarBloque(int bloque) {
+		if (bloquesInstantanea[bloque] == null) {
+			int inicio = bloque << BITS_BLOQUE;
+			bloquesInstantanea[bloque] = Arrays.copyOfRange(saldos, inicio,
+					Math.min(inicio + (1 << BITS_BLOQUE), cuentasInstantanea));
+		}
+	}
+
+	/**
+	 * Termina la instantánea en curso. Todos sus bloques deben estar copiados.
+	 */
+	void terminarInstantanea() {
+		bloquesInstantanea = null;
+	}
+
+	private static int buscar(int[] indice, String[] claves, String clave) {
+		if (clave == null) {
+			return -1;
+		}
+		int mascara = indice.length - 1;
+		for (int i = dispersar(clave.hashCode()) & mascara;; i = (i + 1) & mascara) {
+			int cuenta = indice[i] - 1;
+			if (cuenta < 0) {
+				return -1;
+			}
+			if (clave.equals(claves[cuenta])) {
+				return cuenta;
+			}
+		}
+	}
+
+	private static void insertar(int[] indice, String clave, int cuenta) {
+		int mascara = indice.length - 1;
+		int i = dispersar(clave.hashCode()) & mascara;
+		while (indice[i] != 0) {
+			i = (i + 1) & mascara;
+		}
+		indice[i] = cuenta + 1;
+	}
+
+	private static int dispersar(int h) {
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Duplica la capacidad de la tabla y reconstruye los índices, que se
+	 * mantienen con un factor de carga máximo de 1/2.
+	 */
+	private void ampliar() {
+		int capacidad = saldos.length * 2;
+		privados = Arrays.copyOf(privados, capacidad);
+		publicos = Arrays.copyOf(publicos, capacidad);
+		saldos = Arrays.copyOf(saldos, capacidad);
+		if (saldosPublicados != null) {
+			AtomicIntegerArray publicados = new AtomicIntegerArray(capacidad);
+			for (int cuenta = 0; cuenta < numCuentas; cuenta++) {
+				publicados.set(cuenta, saldosPublicados.get(cuenta));
+			}
+			saldosPublicados = publicados;
+		}
+		indicePrivados = new int[capacidad * 2];
+		indicePublicos = new int[capacidad * 2];
+		for (int cuenta = 0; cuenta < numCuentas; cuenta++) {
+			insertar(indicePrivados, privados[cuenta], cuenta);
+			insertar(indicePublicos, publicos[cuenta], cuenta);
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package cc.blockchain;
+
+/**
+ * Transferencia de fondos que forma parte de un lote.
+ */
+public class Transferencia {
+	final String idPrivado;
+	final String idPublicoDestino;
+	final int valor;
+
+	/**
+	 * Constructor de una transferencia de un lote.
+	 *
+	 * @param idPrivado        ID privado de la cuenta de origen
+	 * @param idPublicoDestino ID público de la cuenta de destino
+	 * @param valor            Monto a transferir
+	 */
+	public Transferencia(String idPrivado, String idPublicoDestino, int valor) {
+		this.idPrivado = idPrivado;
+		this.idPublicoDestino = idPublicoDestino;
+		this.valor = valor;
+	}
+}
@@ -0,0 +1,547 @@
+package cc.blockchain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Traza binaria de las peticiones que atiende el servidor de
+ * {@link BlockchainCSP}, en el orden en que las lee: cada petición con sus
+ * argumentos y su resultado inmediato, cada pasada de desbloqueo y las
+ * peticiones que libera, y las que vencen o se cancelan estando bloqueadas.
+ * Con ella puede reproducirse fuera de línea la misma secuencia de estados
+ * del servidor, sin depender de qué canal eligió la selección en cada vuelta.
+ *
+ * Para que la traza sea compacta, los enteros se escriben con longitud
+ * variable, cada ID se escribe entero solo la primera vez y después por su
+ * número de orden, y las peticiones liberadas o vencidas se identifican por
+ * la distancia a la petición en curso. Las peticiones se numeran desde 0 en
+ * el orden de la traza.
+ *
+ * Solo la escribe el proceso servidor, en un buffer que se lleva al fichero
+ * al llenarse, cada vez que el servidor va a esperar sin peticiones, al
+ * cerrarla y al terminar la máquina virtual. Ese último volcado puede llegar
+ * a mitad de un registro, que la lectura descarta.
+ */
+class TrazaPeticiones implements Closeable {
+
+	// Registros de peticiones, uno por servicio del servidor
+	private static final byte CREAR = 1;
+	private static final byte DISPONIBLE = 2;
+	private static final byte TRANSFERIR = 3;
+	private static final byte ALERTAR = 4;
+	private static final byte LOTE = 5;
+	private static final byte ABONAR = 6;
+	private static final byte CANCELAR = 7;
+	private static final byte TRANSFERIR_PARTICION = 8;
+	// Sucesos del servidor, que no son peticiones
+	private static final byte PASADA = 9;
+	private static final byte LIBERADA = 10;
+	private static final byte VENCIDA = 11;
+
+	// Resultado inmediato de una petición
+	static final byte INVALIDA = 0;
+	static final byte REALIZADA = 1;
+	static final byte BLOQUEADA = 2;
+	// Cancelada por su cliente antes de que el servidor la leyera
+	static final byte CANCELADA = 3;
+
+	private static final EstadoTransferencia[] ESTADOS = EstadoTransferencia.values();
+	private static final ModoLote[] MODOS = ModoLote.values();
+
+	/**
+	 * Receptor de los registros leídos de una traza. Las peticiones liberadas,
+	 * vencidas o canceladas se identifican por su número en la traza, o -1 si
+	 * la petición cancelada no llegó a anotarse. Por defecto cada registro se
+	 * ignora, para los lectores que solo recorren la traza.
+	 */
+	interface Lector {
+		default void crear(String idPrivado, String idPublico, int saldo, byte resultado) {
+		}
+
+		default void disponible(String idPrivado, byte resultado, int saldo) {
+		}
+
+		default void transferir(String idPrivado, String idPublicoDestino, int valor, boolean otraParticion,
+				byte resultado) {
+		}
+
+		default void alertar(String idPrivado, int max, byte resultado) {
+		}
+
+		default void lote(List<Transferencia> transferencias, ModoLote modo, EstadoTransferencia[] resultados) {
+		}
+
+		default void abonar(String idPublicoDestino, int valor) {
+		}
+
+		default void cancelar(long peticion) {
+		}
+
+		default void pasada() {
+		}
+
+		default void liberada(long peticion, int posicion) {
+		}
+
+		default void vencida(long peticion) {
+		}
+	}
+
+	/**
+	 * Flujo de entrada que cuenta los bytes leídos.
+	 */
+	private static class EntradaContada extends FilterInputStream {
+		long leidos;
+
+		EntradaContada(InputStream entrada) {
+			super(entrada);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int octeto = super.read();
+			if (octeto >= 0) {
+				leidos++;
+			}
+			return octeto;
+		}
+
+		@Override
+		public int read(byte[] destino, int desde, int cuantos) throws IOException {
+			int n = super.read(destino, desde, cuantos);
+			if (n > 0) {
+				leidos += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long cuantos) throws IOException {
+			long n = super.skip(cuantos);
+			leidos += n;
+			return n;
+		}
+	}
+
+	private final DataOutputStream salida;
+	private final HashMap<String, Integer> ids = new HashMap<>();
+	private long numPeticiones;
+
+	// Vuelca el buffer al terminar la máquina virtual si la traza no se ha
+	// cerrado antes
+	private final Thread volcado;
+
+	/**
+	 * Crea la traza, vaciando el fichero si ya existe.
+	 *
+	 * @param ruta Ruta del fichero
+	 * @throws UncheckedIOException Si no puede crearse el fichero
+	 */
+	TrazaPeticiones(Path ruta) {
+		try {
+			this.salida = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(ruta), 1 << 16));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.volcado = new Thread(() -> {
+			try {
+				salida.flush();
+			} catch (IOException e) {
+				// Ya cerrada, o la máquina virtual termina sin poder escribir
+			}
+		}, "traza-volcado");
+		Runtime.getRuntime().addShutdownHook(volcado);
+	}
+
+	/**
+	 * Lee todos los registros completos de una traza, en orden, y descarta un
+	 * posible registro final a medio escribir.
+	 *
+	 * @param ruta   Ruta del fichero
+	 * @param lector Receptor de los registros
+	 * @return Posición en bytes del final del último registro completo
+	 * @throws UncheckedIOException  Si no puede leerse el fichero
+	 * @throws IllegalStateException Si el fichero no es una traza
+	 */
+	static long leer(Path ruta, Lector lector) {
+		ArrayList<String> ids = new ArrayList<>();
+		long peticiones = 0;
+		long completos = 0;
+		try (EntradaContada contada = new EntradaContada(new BufferedInputStream(Files.newInputStream(ruta), 1 << 16));
+				DataInputStream entrada = new DataInputStream(contada)) {
+			while (true) {
+				completos = contada.leidos;
+				byte tipo = entrada.readByte();
+				switch (tipo) {
+					case CREAR:
+						lector.crear(leerId(entrada, ids), leerId(entrada, ids), leerEntero(entrada),
+								entrada.readByte());
+						peticiones++;
+						break;
+					case DISPONIBLE:
+						String idPrivado = leerId(entrada, ids);
+						byte resultado = entrada.readByte();
+						lector.disponible(idPrivado, resultado, resultado == REALIZADA ? leerEntero(entrada) : 0);
+						peticiones++;
+						break;
+					case TRANSFERIR:
+					case TRANSFERIR_PARTICION:
+						lector.transferir(leerId(entrada, ids), leerId(entrada, ids), leerEntero(entrada),
+								tipo == TRANSFERIR_PARTICION, entrada.readByte());
+						peticiones++;
+						break;
+					case ALERTAR:
+						lector.alertar(leerId(entrada, ids), leerEntero(entrada), entrada.readByte());
+						peticiones++;
+						break;
+					case LOTE:
+						int tamano = (int) leerVariable(entrada);
+						ArrayList<Transferencia> transferencias = new ArrayList<>(tamano);
+						for (int i = 0; i < tamano; i++) {
+							transferencias.add(entrada.readBoolean()
+									? new Transferencia(leerId(entrada, ids), leerId(entrada, ids), leerEntero(entrada))
+									: null);
+						}
+						ModoLote modo = MODOS[entrada.readByte()];
+						EstadoTransferencia[] resultados = new EstadoTransferencia[tamano];
+						for (int i = 0; i < tamano; i++) {
+							byte estado = entrada.readByte();
+							resultados[i] = estado == 0 ? null : ESTADOS[estado - 1];
+						}
+						lector.lote(transferencias, modo, resultados);
+						peticiones++;
+						break;
+					case ABONAR:
+						lector.abonar(leerId(entrada, ids), leerEntero(entrada));
+						peticiones++;
+						break;
+					case CANCELAR:
+						lector.cancelar(peticiones - leerVariable(entrada));
+						peticiones++;
+						break;
+					case PASADA:
+						lector.pasada();
+						break;
+					case LIBERADA:
+						long liberada = peticiones - leerVariable(entrada);
+						lector.liberada(liberada, (int) leerVariable(entrada) - 1);
+						break;
+					case VENCIDA:
+						lector.vencida(peticiones - leerVariable(entrada));
+						break;
+					default:
+						throw new IllegalStateException("Registro de traza desconocido: " + tipo);
+				}
+			}
+		} catch (EOFException e) {
+			// Fin del fichero o registro final incompleto
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return completos;
+	}
+
+	/**
+	 * Anota una petición de creación de cuenta.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param idPublico ID público de la cuenta
+	 * @param saldo     Saldo inicial
+	 * @param creada    true si la cuenta se ha creado
+	 */
+	void crear(String idPrivado, String idPublico, int saldo, boolean creada) {
+		try {
+			salida.writeByte(CREAR);
+			escribirId(idPrivado);
+			escribirId(idPublico);
+			escribirEntero(saldo);
+			salida.writeByte(creada ? REALIZADA : INVALIDA);
+			numPeticiones++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Anota una consulta de saldo.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param saldo     Saldo respondido, o negativo si la cuenta no existe
+	 */
+	void disponible(String idPrivado, int saldo) {
+		try {
+			salida.writeByte(DISPONIBLE);
+			escribirId(idPrivado);
+			if (saldo < 0) {
+				salida.writeByte(INVALIDA);
+			} else {
+				salida.writeByte(REALIZADA);
+				escribirEntero(saldo);
+			}
+			numPeticiones++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Anota una petición de transferencia.
+	 *
+	 * @param idPrivado        ID privado de la cuenta de origen
+	 * @param idPublicoDestino ID público de la cuenta de destino
+	 * @param valor            Monto
+	 * @param otraParticion    true si el destino está en otra partición
+	 * @param resultado        INVALIDA, REALIZADA, BLOQUEADA o CANCELADA
+	 * @return Número de la petición en la traza
+	 */
+	long transferir(String idPrivado, String idPublicoDestino, int valor, boolean otraParticion, byte resultado) {
+		try {
+			salida.writeByte(otraParticion ? TRANSFERIR_PARTICION : TRANSFERIR);
+			escribirId(idPrivado);
+			escribirId(idPublicoDestino);
+			escribirEntero(valor);
+			salida.writeByte(resultado);
+			return numPeticiones++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Anota una petición de alerta.
+	 *
+	 * @param idPrivado ID privado de la cuenta
+	 * @param max       Saldo máximo
+	 * @param resultado INVALIDA, REALIZADA si ya se cumple, BLOQUEADA o
+	 *                  CANCELADA
+	 * @return Número de la petición en la traza
+	 */
+	long alertar(String idPrivado, int max, byte resultado) {
+		try {
+			salida.writeByte(ALERTAR);
+			escribirId(idPrivado);
+			escribirEntero(max);
+			salida.writeByte(resultado);
+			return numPeticiones++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Anota un lote de transferencias ya aplicado.
+	 *
+	 * @param transferencias Transferencias del lote
+	 * @param modo           Modo del lote
+	 * @param resultados     Resultado de cada transferencia, o null si ha
+	 *                       quedado bloqueada
+	 * @return Número de la petición en la traza
+	 */
+	long lote(List<Transferencia> transferencias, ModoLote modo, EstadoTransferencia[] resultados) {
+		try {
+			salida.writeByte(LOTE);
+			escribirVariable(transferencias.size());
+			for (Transferencia transferencia : transferencias) {
+				salida.writeBoolean(transferencia != null);
+				if (transferencia != null) {
+					escribirId(transferencia.idPrivado);
+					escribirId(transferencia.idPublicoDestino);
+					escribirEntero(transferencia.valor);
+				}
+			}
+			salida.writeByte(modo.ordinal());
+			for (EstadoTransferencia resultado : resultados) {
+				salida.writeByte(resultado == null ? 0 : resultado.ordinal() + 1);
+			}
+			return numPeticiones++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Anota el abono de una transferencia recibida de otra partición.
+	 *
+	 * @param idPublicoDestino ID público de la cuenta abonada
+	 * @param valor            Monto
+	 */
+	void abonar(String idPublicoDestino, int valor) {
+		try {
+			salida.writeByte(ABONAR);
+			escribirId(idPublicoDestino);
+			escribirEntero(valor);
+			numPeticiones++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Anota la cancelación de una petición por su cliente.
+	 *
+	 * @param peticion Número de la petición cancelada, o -1 si no se ha
+	 *                 anotado
+	 */
+	void cancelar(long peticion) {
+		suceso(CANCELAR, peticion);
+		numPeticiones++;
+	}
+
+	/**
+	 * Anota el comienzo de una pasada de desbloqueo.
+	 */
+	void pasada() {
+		try {
+			salida.writeByte(PASADA);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Anota una petición bloqueada que se libera.
+	 *
+	 * @param peticion Número de la petición
+	 * @param posicion Posición de la transferencia en su lote, o -1
+	 */
+	void liberada(long peticion, int posicion) {
+		suceso(LIBERADA, peticion);
+		try {
+			escribirVariable(posicion + 1);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Anota una petición bloqueada que vence o se cancela.
+	 *
+	 * @param peticion Número de la petición
+	 */
+	void vencida(long peticion) {
+		suceso(VENCIDA, peticion);
+	}
+
+	/**
+	 * Lleva al fichero los registros acumulados en el buffer.
+	 *
+	 * @throws UncheckedIOException Si falla la escritura
+	 */
+	void vaciar() {
+		try {
+			salida.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Lleva al fichero los registros acumulados y lo cierra. Después ya no
+	 * puede anotarse nada.
+	 *
+	 * @throws UncheckedIOException Si falla la escritura
+	 */
+	@Override
+	public void close() {
+		try {
+			Runtime.getRuntime().removeShutdownHook(volcado);
+		} catch (IllegalStateException e) {
+			// La máquina virtual ya está terminando y el volcado está en curso
+		}
+		try {
+			salida.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void suceso(byte tipo, long peticion) {
+		try {
+			salida.writeByte(tipo);
+			escribirVariable(numPeticiones - peticion);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Un ID se escribe como 0 si es nulo, 1 seguido de su longitud y su texto
+	// en UTF-8 la primera vez y su número de orden más 2 las siguientes. Se
+	// traza cualquier ID que llegue en una petición, así que no puede usarse
+	// writeUTF, limitado a 65535 bytes
+	private void escribirId(String id) throws IOException {
+		if (id == null) {
+			escribirVariable(0);
+			return;
+		}
+		Integer numero = ids.get(id);
+		if (numero == null) {
+			ids.put(id, ids.size());
+			byte[] texto = id.getBytes(StandardCharsets.UTF_8);
+			escribirVariable(1);
+			escribirVariable(texto.length);
+			salida.write(texto);
+		} else {
+			escribirVariable(numero + 2);
+		}
+	}
+
+	private static String leerId(DataInputStream entrada, ArrayList<String> ids) throws IOException {
+		long numero = leerVariable(entrada);
+		if (numero == 0) {
+			return null;
+		}
+		if (numero == 1) {
+			byte[] texto = new byte[(int) leerVariable(entrada)];
+			entrada.readFully(texto);
+			String id = new String(texto, StandardCharsets.UTF_8);
+			ids.add(id);
+			return id;
+		}
+		return ids.get((int) numero - 2);
+	}
+
+	// Enteros con signo en zigzag, para que los negativos pequeños también
+	// ocupen poco
+	private void escribirEntero(int valor) throws IOException {
+		escribirVariable(((valor << 1) ^ (valor >> 31)) & 0xFFFFFFFFL);
+	}
+
+	private static int leerEntero(DataInputStream entrada) throws IOException {
+		int valor = (int) leerVariable(entrada);
+		return (valor >>> 1) ^ -(valor & 1);
+	}
+
+	// Enteros sin signo en grupos de 7 bits, del menos significativo al más
+	private void escribirVariable(long valor) throws IOException {
+		while ((valor & ~0x7FL) != 0) {
+			salida.writeByte((int) (valor & 0x7F) | 0x80);
+			valor >>>= 7;
+		}
+		salida.writeByte((int) valor);
+	}
+
+	private static long leerVariable(DataInputStream entrada) throws IOException {
+		long valor = 0;
+		for (int desplazamiento = 0;; desplazamiento += 7) {
+			byte octeto = entrada.readByte();
+			valor |= (long) (octeto & 0x7F) << desplazamiento;
+			if (octeto >= 0) {
+				return valor;
+			}
+		}
+	}
+}